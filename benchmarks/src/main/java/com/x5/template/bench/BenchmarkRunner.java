@@ -0,0 +1,40 @@
+package com.x5.template.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark twice, single-threaded and with one thread per
+ * core, with the gc profiler on so allocation rates show up next to the
+ * timings.  With any arguments, hands off to the stock JMH command line
+ * instead.
+ */
+public class BenchmarkRunner
+{
+    public static void main(String[] args)
+    throws Exception
+    {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        run(1);
+        if (cores > 1) run(cores);
+    }
+
+    private static void run(int threads)
+    throws RunnerException
+    {
+        Options opts = new OptionsBuilder()
+            .include(BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark")
+            .threads(threads)
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,67 @@
+package com.x5.template.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.x5.template.Chunk;
+import com.x5.template.Snippet;
+import com.x5.template.Theme;
+
+/**
+ * Nested {% if %} blocks with boolean expressions (CondTree), evaluated
+ * for every row of a 1000 row loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConditionalBenchmark
+{
+    private Theme theme;
+    private Snippet template;
+    private Object rows;
+
+    @Setup
+    public void setup()
+    {
+        theme = new Theme();
+        template = Snippet.getSnippet(
+            "{% loop in $rows as $r counter_tag=$i %}"
+            + "{% if ($r.active && $show_active) || ($r.price =~ /^9/ && !$hide_pricey) %}"
+            +   "{% if $r.id == $featured %}featured"
+            +   "{% elseIf $r.name =~ /#1\\d*\\b/ && $i != 0 %}"
+            +     "{% if !$compact || ($user && $user.admin == yes) %}ones{% else %}o{% endif %}"
+            +   "{% else %}plain{% endif %}"
+            + "{% elseIf $r.missing || $also_missing %}never"
+            + "{% else %}"
+            +   "{% if $i =~ /0$/ %}tenth{% endif %}"
+            + "{% endif %}\n"
+            + "{% endloop %}");
+        rows = Fixtures.mapRows(1000);
+    }
+
+    @Benchmark
+    public String render()
+    {
+        Chunk c = theme.makeChunk();
+        c.append(template);
+        c.set("rows", rows);
+        c.set("show_active", true);
+        c.set("featured", "500");
+        c.set("compact", true);
+        c.set("user.admin", "yes");
+        return c.toString();
+    }
+}
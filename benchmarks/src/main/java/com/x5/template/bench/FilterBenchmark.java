@@ -0,0 +1,58 @@
+package com.x5.template.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.x5.template.Chunk;
+import com.x5.template.Snippet;
+import com.x5.template.Theme;
+
+/**
+ * Long filter chains (string, regex, calc, format) applied to every row
+ * of a 1000 row loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark
+{
+    private Theme theme;
+    private Snippet template;
+    private Object rows;
+
+    @Setup
+    public void setup()
+    {
+        theme = new Theme();
+        template = Snippet.getSnippet(
+            "{% loop in $rows as $r %}"
+            + "{$r.name|trim|lc|s/widget #(\\d+)/item-$1/i|uc|xml|lpad(>,2)}"
+            + " {$r.price|calc(*1.0825)|sprintf(%.2f)|s/\\./,/}"
+            + " {$r.id|qcalc(+1000)|ordsuffix|onmatch(/^10[0-4]/,low,/^10/,mid)nomatch(high)}"
+            + " {$r.missing:$r.name|length|alternate(even,odd)}"
+            + "\n{% endloop %}");
+        rows = Fixtures.mapRows(1000);
+    }
+
+    @Benchmark
+    public String render()
+    {
+        Chunk c = theme.makeChunk();
+        c.append(template);
+        c.set("rows", rows);
+        return c.toString();
+    }
+}
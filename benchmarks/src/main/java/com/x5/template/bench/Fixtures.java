@@ -0,0 +1,191 @@
+package com.x5.template.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test data shared by the benchmarks.  Everything is built once per trial
+ * so the measured code only sees ready-made inputs.
+ */
+public class Fixtures
+{
+    public static final String THEME_FOLDER = "themes";
+    public static final String THEME_LAYERS = "bench/base,bench/override";
+
+    public static final String[] SECTIONS = new String[]{"Home","Products","Support","About","Contact"};
+
+    public static List<Map<String,Object>> mapRows(int count)
+    {
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>(count);
+        for (int i=0; i<count; i++) {
+            Map<String,Object> row = new HashMap<String,Object>();
+            row.put("id", Integer.toString(i));
+            row.put("name", "Widget #" + i + " <deluxe>");
+            row.put("price", price(i));
+            row.put("active", (i % 3 == 0) ? "TRUE" : null);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    public static List<Item> pojoRows(int count)
+    {
+        List<Item> rows = new ArrayList<Item>(count);
+        for (int i=0; i<count; i++) {
+            rows.add(new Item(i, "Widget #" + i + " <deluxe>", price(i), i % 3 == 0));
+        }
+        return rows;
+    }
+
+    public static List<ItemBean> beanRows(int count)
+    {
+        List<ItemBean> rows = new ArrayList<ItemBean>(count);
+        for (int i=0; i<count; i++) {
+            ItemBean bean = new ItemBean();
+            bean.setId(i);
+            bean.setName("Widget #" + i + " <deluxe>");
+            bean.setPrice(price(i));
+            bean.setActive(i % 3 == 0);
+            rows.add(bean);
+        }
+        return rows;
+    }
+
+    private static String price(int i)
+    {
+        return Integer.toString((i * 37) % 100) + "." + Integer.toString(10 + i % 90);
+    }
+
+    /**
+     * A large .chtml file: the bench theme's page.chtml repeated under
+     * different snippet names, about a quarter megabyte in all.
+     */
+    public static String bigTemplateFile(int copies)
+    throws IOException
+    {
+        String page = readResource(THEME_FOLDER + "/bench/base/page.chtml");
+        StringBuilder big = new StringBuilder(page.length() * copies);
+        big.append(page);
+        for (int i=0; i<copies; i++) {
+            big.append("\n{#copy_");
+            big.append(i);
+            big.append("}\n");
+            // the root template, made into a named snippet
+            big.append(page.substring(0, page.indexOf("{#header}")));
+            big.append("{#}\n");
+        }
+        return big.toString();
+    }
+
+    public static String readResource(String path)
+    throws IOException
+    {
+        InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(path);
+        if (in == null) throw new IOException("Missing benchmark resource " + path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] bytes = new byte[8192];
+            int len;
+            while ((len = in.read(bytes)) > 0) {
+                out.write(bytes, 0, len);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    public static Catalog catalog(int count)
+    {
+        Catalog catalog = new Catalog();
+        catalog.setRows(beanRows(count));
+        return catalog;
+    }
+
+    // bean wrapper so the rows are also treated as beans (loop in $catalog.rows)
+    public static class Catalog
+    {
+        private List<ItemBean> rows;
+
+        public List<ItemBean> getRows()
+        {
+            return rows;
+        }
+
+        public void setRows(List<ItemBean> rows)
+        {
+            this.rows = rows;
+        }
+    }
+
+    // plain object, exposed through its fields
+    public static class Item
+    {
+        public int id;
+        public String name;
+        public String price;
+        public boolean active;
+
+        public Item(int id, String name, String price, boolean active)
+        {
+            this.id = id;
+            this.name = name;
+            this.price = price;
+            this.active = active;
+        }
+    }
+
+    // java bean, exposed through its getters (Chunk.setToBean)
+    public static class ItemBean
+    {
+        private int id;
+        private String name;
+        private String price;
+        private boolean active;
+
+        public int getId()
+        {
+            return id;
+        }
+
+        public void setId(int id)
+        {
+            this.id = id;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        public String getPrice()
+        {
+            return price;
+        }
+
+        public void setPrice(String price)
+        {
+            this.price = price;
+        }
+
+        public boolean isActive()
+        {
+            return active;
+        }
+
+        public void setActive(boolean active)
+        {
+            this.active = active;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.x5.template.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.x5.template.Chunk;
+import com.x5.template.Snippet;
+import com.x5.template.Theme;
+
+/**
+ * A {% loop %} over 10k rows, with the rows as maps, plain objects
+ * (public fields) or beans (getters).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopBenchmark
+{
+    private static final String ROW = "{$r.id} {$r.name|xml} {$r.price}{% if $r.active %} *{% endif %}\n";
+
+    @Param({"maps", "pojos", "beans"})
+    public String rows;
+
+    @Param({"10000"})
+    public int rowCount;
+
+    private Theme theme;
+    private Snippet loop;
+    private Object data;
+
+    @Setup
+    public void setup()
+    {
+        theme = new Theme();
+        if (rows.equals("beans")) {
+            data = Fixtures.catalog(rowCount);
+            loop = Snippet.getSnippet("{% loop in $catalog.rows as $r %}" + ROW + "{% endloop %}");
+        } else {
+            data = rows.equals("maps") ? Fixtures.mapRows(rowCount) : Fixtures.pojoRows(rowCount);
+            loop = Snippet.getSnippet("{% loop in $rows as $r %}" + ROW + "{% endloop %}");
+        }
+    }
+
+    @Benchmark
+    public String render()
+    {
+        Chunk c = theme.makeChunk();
+        c.append(loop);
+        if (rows.equals("beans")) {
+            c.setToBean("catalog", data);
+        } else {
+            c.set("rows", data);
+        }
+        return c.toString();
+    }
+}
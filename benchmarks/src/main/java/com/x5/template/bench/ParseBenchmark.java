@@ -0,0 +1,67 @@
+package com.x5.template.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.x5.template.Snippet;
+import com.x5.template.TemplateDoc;
+
+/**
+ * Cost of loading a big .chtml file: splitting it into snippets
+ * (TemplateDoc) and parsing each one (Snippet.getSnippet).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark
+{
+    private String bigFile;
+    private String bigSnippet;
+
+    @Setup
+    public void setup()
+    throws IOException
+    {
+        bigFile = Fixtures.bigTemplateFile(250);
+
+        // one huge snippet, no subtemplate markers
+        StringBuilder body = new StringBuilder();
+        String page = Fixtures.readResource(Fixtures.THEME_FOLDER + "/bench/base/page.chtml");
+        String root = page.substring(0, page.indexOf("{#header}"));
+        for (int i=0; i<250; i++) {
+            body.append(root);
+        }
+        bigSnippet = body.toString();
+    }
+
+    @Benchmark
+    public void splitAndParseFile(Blackhole bh)
+    throws IOException
+    {
+        TemplateDoc doc = new TemplateDoc("big", bigFile);
+        for (TemplateDoc.Doclet doclet : doc.parseTemplates("UTF-8")) {
+            bh.consume(doclet.getSnippet());
+        }
+    }
+
+    @Benchmark
+    public Snippet parseSnippet()
+    {
+        return Snippet.getSnippet(bigSnippet);
+    }
+}
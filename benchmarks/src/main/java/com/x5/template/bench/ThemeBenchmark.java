@@ -0,0 +1,76 @@
+package com.x5.template.bench;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.x5.template.Chunk;
+import com.x5.template.Theme;
+
+/**
+ * Whole pages from a two-layer theme: includes that resolve across the
+ * layers, and a macro ({% exec %}) whose args are given as json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThemeBenchmark
+{
+    private Theme theme;
+    private List<Map<String,Object>> items;
+    private Map<String,Object> user;
+
+    @Setup
+    public void setup()
+    {
+        theme = new Theme(Fixtures.THEME_FOLDER, Fixtures.THEME_LAYERS);
+        items = Fixtures.mapRows(100);
+        user = new HashMap<String,Object>();
+        user.put("name", "Pat <admin>");
+
+        // fail fast if the templates are not on the classpath
+        if (render().indexOf("class=\"footer\"") < 0) {
+            throw new IllegalStateException("bench theme not found on classpath");
+        }
+    }
+
+    @Benchmark
+    public String includesAcrossLayers()
+    {
+        return render();
+    }
+
+    @Benchmark
+    public String macroWithJsonArgs()
+    {
+        Chunk c = theme.makeChunk("page#invoice");
+        c.set("customer", "ACME Widgets");
+        return c.toString();
+    }
+
+    private String render()
+    {
+        Chunk c = theme.makeChunk("page");
+        c.set("title", " Catalog ");
+        c.set("user", user);
+        c.set("sections", Fixtures.SECTIONS);
+        c.set("current", "Products");
+        c.set("items", items);
+        return c.toString();
+    }
+}
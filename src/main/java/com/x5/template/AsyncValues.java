@@ -0,0 +1,118 @@
+package com.x5.template;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tag values that are computed on demand: a Future (eg a
+ * CompletableFuture), a Callable, or on Java 8+ a
+ * java.util.function.Supplier, handed over with Chunk.setAsync().
+ * The value is fetched when the tag is rendered, and
+ * Chunk.setRenderExecutor() lets several of them be fetched at once.
+ *
+ * <P>
+ * Only values passed to setAsync() are treated this way.  A bean that
+ * happens to implement Callable or Supplier and is passed to set() is
+ * boxed like any other bean.
+ */
+final class AsyncValues
+{
+    // how long a render waits on a Future unless told otherwise
+    static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    // java.util.function is missing before Java 8 and on older android
+    private static final Class<?> SUPPLIER;
+    private static final Method SUPPLIER_GET;
+
+    static {
+        Class<?> supplier = null;
+        Method get = null;
+        try {
+            supplier = Class.forName("java.util.function.Supplier");
+            get = supplier.getMethod("get");
+        } catch (Exception e) {
+            supplier = null;
+        }
+        SUPPLIER = supplier;
+        SUPPLIER_GET = get;
+    }
+
+    /**
+     * A value handed to setAsync(), not yet fetched.
+     */
+    static final class Pending
+    {
+        private final Object source;
+        private final long timeoutMillis;
+
+        private Pending(Object source, long timeoutMillis)
+        {
+            this.source = source;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        long getTimeoutMillis()
+        {
+            return timeoutMillis;
+        }
+
+        /**
+         * Wait for the value, at most timeoutMillis if it is a Future.
+         * A Callable or Supplier is simply called.
+         */
+        Object await()
+        throws Exception
+        {
+            if (source instanceof Future) {
+                try {
+                    return ((Future<?>)source).get(timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    throw unwrap(e.getCause(), e);
+                }
+            } else if (source instanceof Callable) {
+                return ((Callable<?>)source).call();
+            } else {
+                try {
+                    return SUPPLIER_GET.invoke(source);
+                } catch (InvocationTargetException e) {
+                    throw unwrap(e.getCause(), e);
+                }
+            }
+        }
+    }
+
+    private AsyncValues()
+    {
+    }
+
+    /**
+     * @return true if value is something setAsync() can wait on.
+     */
+    static boolean canWait(Object value)
+    {
+        if (value == null) return false;
+        return value instanceof Future || value instanceof Callable
+            || (SUPPLIER != null && SUPPLIER.isInstance(value));
+    }
+
+    static Pending wrap(Object value, long timeoutMillis)
+    {
+        return new Pending(value, timeoutMillis);
+    }
+
+    static boolean isAsync(Object value)
+    {
+        return value instanceof Pending;
+    }
+
+    private static Exception unwrap(Throwable cause, Exception wrapper)
+    {
+        if (cause instanceof Exception) return (Exception)cause;
+        if (cause instanceof Error) throw (Error)cause;
+        return wrapper;
+    }
+}
@@ -1,18 +1,21 @@
 package com.x5.template;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.Vector;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 
 import com.x5.template.filters.Calc;
@@ -182,8 +185,8 @@ import com.x5.util.TableData;
  * extremely handy once you get the hang of it.
  *
  * <P>
- * Internally it resists creating an expensive Hashtable until certain<BR>
- * threshhold conditions are reached.
+ * Internally tags live in a compact, unsynchronized open-addressing<BR>
+ * map, created on the first set() call.
  *
  * <P>
  * Output can be constructed on-the-fly with .append() -- say<BR>
@@ -247,7 +250,7 @@ import com.x5.util.TableData;
  * @version 3.6.2
  */
 
-public class Chunk implements Map<String,Object>
+public class Chunk implements Map<String,Object>, Cloneable
 {
     public static final int HASH_THRESH = 8;
     public static final int DEPTH_LIMIT = 17;
@@ -257,16 +260,19 @@ public class Chunk implements Map<String,Object>
     public static final String TRUE = "TRUE";
 
     protected Snippet templateRoot = null;
-    private String templateOrigin = null;
-    private String[] firstTags = new String[HASH_THRESH];
-    private Object[] firstValues = new Object[HASH_THRESH];
-    private int tagCount = 0;
     protected Vector<Snippet> template = null;
-    private Hashtable<String,Object> tags = null;
+    private TagMap tags = null;
     protected String tagStart = TemplateSet.DEFAULT_TAG_START;
     protected String tagEnd = TemplateSet.DEFAULT_TAG_END;
 
-    private Vector<Vector<Chunk>> contextStack = null;
+    // enclosing chunks, innermost first.  only ever set on the throwaway
+    // view made by inScope() -- a shared chunk's own copy stays null.
+    private ParentScope parentScope = null;
+
+    // origin of the tag whose filters are running on this thread, see
+    // getTemplateOrigin().  one chunk can render on many threads at once,
+    // so this can't live on the instance.
+    private static final ThreadLocal<String> filterOrigin = new ThreadLocal<String>();
 
     private ContentSource macroLibrary = null;
     private ChunkFactory chunkFactory = null;
@@ -278,6 +284,12 @@ public class Chunk implements Map<String,Object>
     private boolean renderErrs = true;
     private PrintStream errLog = null;
 
+    private RenderInstrumentation instrumentation = null;
+    private Executor renderExecutor = null;
+    // forks for parallel rendering share the tag map but never write to it
+    private boolean readOnlyView = false;
+    private SnippetCache snippetCache = null;
+
     // package visibility
     void setMacroLibrary(ContentSource repository, ChunkFactory factory)
     {
@@ -305,17 +317,11 @@ public class Chunk implements Map<String,Object>
 
     public void append(Snippet toAdd)
     {
-        // don't bother with overhead of vector until necessary
+        // don't bother with overhead of a list until necessary
         if (templateRoot == null && template == null) {
             templateRoot = toAdd;
         } else {
-            if (template == null) {
-                template = new Vector<Snippet>();
-                template.addElement(templateRoot);
-                template.addElement(toAdd);
-            } else {
-                template.addElement(toAdd);
-            }
+            editableTemplate().add(toAdd);
         }
     }
 
@@ -343,16 +349,22 @@ public class Chunk implements Map<String,Object>
     public void append(Chunk toAdd)
     {
         // if we're adding a chunk we'll almost definitely add more than one.
-        // switch to vector
-        if (template == null) {
-            template = new Vector<Snippet>();
-            if (templateRoot != null) template.addElement(templateRoot);
-        }
+        // switch to list
+        Vector<Snippet> parts = editableTemplate();
         // internally, we stash in tag table and wrap in Snippet.
         String chunkKey = ";CHUNK_" + toAdd.hashCode();
         set(chunkKey,toAdd);
         String autoTag = makeTag(chunkKey);
-        template.addElement(Snippet.getSnippet(autoTag));
+        parts.add(Snippet.getSnippet(autoTag));
+    }
+
+    private Vector<Snippet> editableTemplate()
+    {
+        if (template == null) {
+            template = new Vector<Snippet>();
+            if (templateRoot != null) template.add(templateRoot);
+        }
+        return template;
     }
 
     /**
@@ -406,8 +418,7 @@ public class Chunk implements Map<String,Object>
     public void setOrDelete(String tagName, Object tagValue)
     {
         if (tagValue == null) {
-            // containsKey handy side effect -- converts to hashtable if nec.
-            if (this.containsKey(tagName)) {
+            if (tags != null) {
                 // unset!!
                 tags.remove(tagName);
             }
@@ -445,6 +456,20 @@ public class Chunk implements Map<String,Object>
         set(tagName, hardValue);
     }
 
+    /**
+     * Like setLiteral(), but the value is data through and through: it is
+     * never scanned for tags, and whatever a filter makes of it is not
+     * interpreted either.  The fast way to set big blobs of plain data,
+     * eg user-supplied text.
+     *
+     * @param tagName
+     * @param data
+     */
+    public void setData(String tagName, String data)
+    {
+        set(tagName, Snippet.makeDataSnippet(data));
+    }
+
     /**
      * Create a tag replacement rule, supplying a default value in case
      * the value passed is null.  If both the tagValue and the fallback
@@ -465,29 +490,37 @@ public class Chunk implements Map<String,Object>
         if (tagValue == null) {
             tagValue = (ifNull == null) ? "NULL" : ifNull;
         }
-        if (tags != null) {
-            tags.put(tagName,tagValue);
-        } else {
-            // sequential scan is kinda inefficient but
-            // completely acceptable for small datasets
-            for (int i=0; i<tagCount; i++) {
-                if (firstTags[i].equals(tagName)) {
-                    // supplying new value for existing tag
-                    firstValues[i] = tagValue;
-                    return;
-                }
-            }
-            if (tagCount >= HASH_THRESH) {
-                // threshhold reached, upgrade to hashtable
-                tags = new Hashtable<String,Object>(HASH_THRESH * 2);
-                copyToHashtable();
-                tags.put(tagName,tagValue);
-            } else {
-                firstTags[tagCount] = tagName;
-                firstValues[tagCount] = tagValue;
-                tagCount++;
-            }
+        if (tags == null) tags = new TagMap();
+        tags.put(tagName,tagValue);
+    }
+
+    /**
+     * Set a tag to a value that is still being computed: a Future (eg a
+     * CompletableFuture), a Callable, or on Java 8+ a Supplier.  It is
+     * fetched when the tag is rendered -- alongside other slow parts if
+     * there is a render executor, see setRenderExecutor().  A render
+     * waits at most 30 seconds on a Future, then shows an error.
+     *
+     * <P>
+     * Anything else is set as usual.
+     */
+    public void setAsync(String tagName, Object value)
+    {
+        setAsync(tagName, value, AsyncValues.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis longest a render will wait on a Future.
+     */
+    public void setAsync(String tagName, Object value, long timeoutMillis)
+    {
+        if (tagName == null) return;
+        if (!AsyncValues.canWait(value)) {
+            set(tagName, value);
+            return;
         }
+        if (tags == null) tags = new TagMap();
+        tags.put(tagName, AsyncValues.wrap(value, timeoutMillis));
     }
 
     /**
@@ -590,15 +623,8 @@ public class Chunk implements Map<String,Object>
      */
     public boolean hasValue(String tagName)
     {
-        if (tagName == null) return false;
-        if (tags != null) {
-            return tags.containsKey(tagName);
-        } else {
-            for (int i=0; i<tagCount; i++) {
-                if (firstTags[i].equals(tagName)) return true;
-            }
-            return false;
-        }
+        if (tagName == null || tags == null) return false;
+        return tags.containsKey(tagName);
     }
 
 
@@ -622,26 +648,25 @@ public class Chunk implements Map<String,Object>
      */
     public String toString()
     {
-        StringWriter out = new StringWriter();
-        try {
-            render(out);
-            out.flush();
-            return out.toString();
-        } catch (IOException e) {
-            return e.getLocalizedMessage();
-        }
+        return toString(null);
     }
 
     public String toString(Chunk context)
     {
-        StringWriter out = new StringWriter();
+        // size the buffer from what this template produced last time
+        String origin = getRenderOrigin();
+        StringBuilderWriter out = new StringBuilderWriter(OutputSizeEstimates.guess(origin));
         try {
-            render(out, context);
-            out.flush();
-            return out.toString();
+            if (context == null) {
+                render(out);
+            } else {
+                render(out, context);
+            }
         } catch (IOException e) {
             return e.getLocalizedMessage();
         }
+        OutputSizeEstimates.update(origin, out.length());
+        return out.toString();
     }
 
     public void render(PrintStream out)
@@ -652,6 +677,19 @@ public class Chunk implements Map<String,Object>
         writer.flush();
     }
 
+    /**
+     * Render straight to bytes.  Static template text is encoded once and
+     * the bytes reused on later renders, so only the tag values go through
+     * the encoder each time.  Flushes the stream when done.
+     */
+    public void render(OutputStream out, Charset charset)
+    throws IOException
+    {
+        EncodingWriter writer = new EncodingWriter(out, charset);
+        render(writer);
+        writer.finish();
+    }
+
     public void render(Writer out)
     throws IOException
     {
@@ -662,36 +700,25 @@ public class Chunk implements Map<String,Object>
     throws IOException
     {
         // sometimes orphaned chunks need to be reunited with their ancestry
-        Vector<Chunk> parentContext = context.prepareParentContext();
+        ParentScope parentContext = context.prepareParentContext();
         explodeForParentToPrinter(out, parentContext);
     }
 
-    private void pushContextStack(Vector<Chunk> parentContext)
-    {
-        if (contextStack == null) {
-            contextStack = new Vector<Vector<Chunk>>();
-        }
-        contextStack.insertElementAt(parentContext, 0);
-    }
-
-    private void popContextStack()
-    {
-        if (contextStack == null || contextStack.size() == 0) return;
-        contextStack.removeElementAt(0);
-    }
-
-    private void explodeForParentToPrinter(Writer out, Vector<Chunk> ancestors)
+    private void explodeForParentToPrinter(Writer out, ParentScope ancestors)
     throws IOException
     {
         if (template == null && templateRoot == null) return;
 
-        if (ancestors != null) {
-            // PUSH ANCESTORS ONTO STACK AND LOCK DOWN
-            synchronized(this) {
-                pushContextStack(ancestors);
-                renderForParentToPrinter(out);
-                popContextStack();
-            }
+        if (ancestors == null && instrumentation != null) {
+            // top-level render, measure the whole thing
+            CountingWriter counter = new CountingWriter(out);
+            long start = System.nanoTime();
+            renderForParentToPrinter(counter);
+            instrumentation.chunkRendered(getRenderOrigin(), System.nanoTime() - start, counter.getCount());
+        } else if (ancestors != null) {
+            // no lock -- the ancestors travel with a private view of this
+            // chunk, so one instance can render on many pages at once.
+            inScope(ancestors).renderForParentToPrinter(out);
         } else {
             renderForParentToPrinter(out);
         }
@@ -700,30 +727,85 @@ public class Chunk implements Map<String,Object>
     private void renderForParentToPrinter(Writer out)
     throws IOException
     {
-        if (template == null) {
+        // read once, another thread may merge it meanwhile
+        Vector<Snippet> parts = template;
+        if (parts == null) {
             explodeToPrinter(out, templateRoot, 1);
         } else {
             // If template was constructed incrementally, with several .append(...) calls,
             // some block-open tags might not be grouped with the matching block-closed tag.
             // Merge templates together into a single Snippet if possible.
-            if (template.size() > 1) {
-                template = mergeTemplateParts();
+            if (parts.size() > 1) {
+                parts = mergeTemplateParts(parts);
+                template = parts;
             }
-            for (int i=0; i < template.size(); i++) {
-                Snippet s = template.elementAt(i);
+            for (int i=0; i < parts.size(); i++) {
+                Snippet s = parts.get(i);
                 explodeToPrinter(out, s, 1);
             }
         }
     }
 
-    private Vector<Snippet> mergeTemplateParts()
+    /**
+     * A shallow copy of this chunk (same tags, template and settings) bound
+     * to one render's ancestors.  The copy is discarded after the render.
+     * Like forkView(), it shares this chunk's tags and only reads them.
+     */
+    private Chunk inScope(ParentScope ancestors)
+    {
+        // do the lazy work once, on the shared instance
+        Vector<Snippet> parts = template;
+        if (parts != null && parts.size() > 1) {
+            parts = mergeTemplateParts(parts);
+            template = parts;
+        }
+        ChunkLocale locale = getLocale();
+
+        Chunk scoped;
+        try {
+            scoped = (Chunk)super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+        scoped.parentScope = ancestors;
+        scoped.readOnlyView = true;
+        scoped.locale = locale;
+        if (scoped.instrumentation == null) {
+            scoped.instrumentation = ancestors.chunk.instrumentation;
+        }
+        if (scoped.renderExecutor == null) {
+            scoped.renderExecutor = ancestors.chunk.renderExecutor;
+        }
+        if (scoped.snippetCache == null) {
+            scoped.snippetCache = ancestors.chunk.snippetCache;
+        }
+        scoped.template = parts;
+        if (parts != null && parts.size() == 1) {
+            // skip the Vector when there is just one part
+            scoped.templateRoot = parts.get(0);
+            scoped.template = null;
+        }
+        return scoped;
+    }
+
+    private String getRenderOrigin()
+    {
+        Vector<Snippet> parts = template;
+        if (parts == null) return templateRoot == null ? null : templateRoot.getOrigin();
+        return parts.size() > 0 ? parts.get(0).getOrigin() : null;
+    }
+
+    private Vector<Snippet> mergeTemplateParts(Vector<Snippet> parts)
     {
         Snippet merged;
         try {
-            merged = Snippet.consolidateSnippets(template);
+            merged = Snippet.consolidateSnippets(parts);
         } catch (EndOfSnippetException e) {
-            return template;
+            return parts;
         }
+        // this can happen mid-render on a chunk shared between threads.
+        // a fresh Vector is safe to publish without a lock of our own,
+        // its reads and writes go through its own monitor.
         Vector<Snippet> newTemplate = new Vector<Snippet>();
         newTemplate.add(merged);
         return newTemplate;
@@ -744,13 +826,18 @@ public class Chunk implements Map<String,Object>
 
         } else if (obj instanceof String) {
 
-            // snippet-ify to catch/skip literal blocks
-            Snippet snippet = Snippet.getSnippet((String)obj);
-            explodeToPrinter(out, snippet, depth);
+            String text = (String)obj;
+            if (Snippet.isPlainText(text)) {
+                out.append(text);
+            } else {
+                // snippet-ify to catch/skip literal blocks
+                Snippet snippet = compile(text, null);
+                explodeToPrinter(out, snippet, depth);
+            }
 
         } else if (obj instanceof Chunk) {
 
-            Vector<Chunk> parentContext = prepareParentContext();
+            ParentScope parentContext = prepareParentContext();
             Chunk c = (Chunk) obj;
             c.explodeForParentToPrinter(out, parentContext);
 
@@ -780,30 +867,15 @@ public class Chunk implements Map<String,Object>
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private Vector<Chunk> prepareParentContext()
+    private ParentScope prepareParentContext()
     {
-        if (contextStack == null) {
-            Vector<Chunk> parentContext = new Vector<Chunk>();
-            parentContext.add(this);
-            return parentContext;
-        } else {
-            // current context is first element on stack
-            Vector<Chunk> parentContext = contextStack.firstElement();
-            parentContext = (Vector<Chunk>)parentContext.clone();
-            parentContext.insertElementAt(this,0);
-            return parentContext;
-        }
+        // O(1) push, the enclosing scope is shared, not copied
+        return new ParentScope(this, parentScope);
     }
 
-    private Vector<Chunk> getCurrentParentContext()
+    private ParentScope getCurrentParentContext()
     {
-        if (contextStack == null || contextStack.size() == 0) {
-            return null;
-        } else {
-            // current context is first element on stack
-            return contextStack.firstElement();
-        }
+        return parentScope;
     }
 
     /**
@@ -816,43 +888,28 @@ public class Chunk implements Map<String,Object>
      */
     public Object getTagValue(String tagName)
     {
-        if (tags != null) {
-            Object x = tags.get(tagName);
-            if (x instanceof String) {
-                // first request for this value.  lazy-convert to Snippet.
-                // subsequent fetches will benefit from pre-scan.
-                Snippet s = Snippet.getSnippet((String)x);
-                tags.put(tagName, s);
-                return s.isSimple() ? s.toString() : s;
-            } else if (x instanceof Snippet) {
-                Snippet s = (Snippet)x;
-                return s.isSimple() ? s.toString() : s;
-            } else {
-                return x;
-            }
+        if (tags == null) return null;
+        int slot = tags.slotOf(tagName);
+        if (slot < 0) return null;
+
+        Object x = tags.valueAt(slot);
+        if (x instanceof String) {
+            // first request for this value.  lazy-convert to Snippet.
+            // subsequent fetches will benefit from pre-scan.  renders on
+            // other threads may race to do the same, harmlessly -- the
+            // slot is volatile so nobody sees a half-built Snippet.
+            Snippet s = compile((String)x, null);
+            if (!readOnlyView) tags.setValueAt(slot, s);
+            return s.isSimple() ? s.toString() : s;
+        } else if (x instanceof Snippet) {
+            Snippet s = (Snippet)x;
+            return s.isSimple() ? s.toString() : s;
         } else {
-            for (int i=0; i<tagCount; i++) {
-                if (firstTags[i].equals(tagName)) {
-                    Object x = firstValues[i];
-                    if (x instanceof String) {
-                        // first request for this value. lazy-convert to Snippet.
-                        // subsequent fetches will benefit from pre-scan.
-                        Snippet s = Snippet.getSnippet((String)x);
-                        firstValues[i] = s;
-                        return s.isSimple() ? s.toString() : s;
-                    } else if (x instanceof Snippet) {
-                        Snippet s = (Snippet)x;
-                        return s.isSimple() ? s.toString() : s;
-                    } else {
-                        return x;
-                    }
-                }
-            }
+            return x;
         }
-        return null;
     }
 
-    private Hashtable<String,ContentSource> altSources = null;
+    private Map<String,ContentSource> altSources = null;
     private TranslationsProvider translationsProvider = null;
 
     public void setTranslationsProvider(TranslationsProvider customProvider) {
@@ -866,7 +923,7 @@ public class Chunk implements Map<String,Object>
     public void addProtocol(ContentSource src)
     {
         if (altSources == null) {
-            altSources = new Hashtable<String,ContentSource>();
+            altSources = new HashMap<String,ContentSource>();
             // delayed adding macro library for memory efficiency
             // (avoid overhead of hashtable whenever possible)
             if (macroLibrary != null) {
@@ -877,15 +934,15 @@ public class Chunk implements Map<String,Object>
         altSources.put(protocol,src);
     }
 
-    private Object altFetch(String tagName, int depth)
+    private Object altFetch(String tagName, int depth, String origin)
     {
-        return altFetch(tagName, depth, false);
+        return altFetch(tagName, depth, origin, false);
     }
 
     private static final java.util.regex.Pattern INCLUDEIF_PATTERN =
         java.util.regex.Pattern.compile("^\\.include(If|\\.\\()");
 
-    private Object altFetch(String tagName, int depth, boolean ignoreParentContext)
+    private Object altFetch(String tagName, int depth, String origin, boolean ignoreParentContext)
     {
         String tagValue = null;
 
@@ -908,7 +965,7 @@ public class Chunk implements Map<String,Object>
 
         // the .loop(...) fn
         if (tagName.startsWith(".loop")) {
-            return LoopTag.expandLoop(tagName, this, this.templateOrigin, depth);
+            return LoopTag.expandLoop(tagName, this, origin, depth);
         }
 
         // the .tagStack fn
@@ -975,7 +1032,7 @@ public class Chunk implements Map<String,Object>
                 // include's are special, handle via macroLibrary TemplateSet
                 // slight optimization, return Snippet instead of String
                 Theme theme = (Theme)fetcher;
-                String templateRef = BlockTag.qualifyTemplateRef(templateOrigin, cleanItemName);
+                String templateRef = BlockTag.qualifyTemplateRef(origin, cleanItemName);
                 Snippet s = theme.getSnippet(templateRef);
                 if (s != null) return s;
             } else {
@@ -985,13 +1042,10 @@ public class Chunk implements Map<String,Object>
 
         if (tagValue == null && !ignoreParentContext) {
             // still null? maybe an ancestor knows how to grok
-            Vector<Chunk> parentContext = getCurrentParentContext();
-            if (parentContext != null) {
-                for (Chunk ancestor : parentContext) {
-                    // lazy... should repeat if/else above to avoid re-parsing the tag
-                    Object x = ancestor.altFetch(tagName, depth, true);
-                    if (x != null) return x;
-                }
+            // lazy... should repeat if/else above to avoid re-parsing the tag
+            for (ParentScope scope = getCurrentParentContext(); scope != null; scope = scope.parent) {
+                Object x = scope.chunk.altFetch(tagName, depth, null, true);
+                if (x != null) return x;
             }
         }
 
@@ -1029,24 +1083,21 @@ public class Chunk implements Map<String,Object>
 
     protected Object resolveTagValue(SnippetTag tag, int depth, String origin)
     {
-        if (origin == null) {
-            return _resolveTagValue(tag, depth, false);
-        } else {
-            this.templateOrigin = origin;
-            Object value = _resolveTagValue(tag, depth, false);
-            this.templateOrigin = null;
-
-            return value;
-        }
+        return _resolveTagValue(tag, depth, origin, false);
     }
 
     protected Object resolveTagValue(SnippetTag tag, int depth)
     {
-        return _resolveTagValue(tag, depth, false);
+        return _resolveTagValue(tag, depth, null, false);
     }
 
-    @SuppressWarnings("rawtypes")
     protected Object _resolveTagValue(SnippetTag tag, int depth, boolean ignoreParentContext)
+    {
+        return _resolveTagValue(tag, depth, null, ignoreParentContext);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private Object _resolveTagValue(SnippetTag tag, int depth, String origin, boolean ignoreParentContext)
     {
         String[] path = tag.getPath();
         int segment = 0;
@@ -1059,29 +1110,37 @@ public class Chunk implements Map<String,Object>
         Object tagValue = null;
 
         if (segmentName.charAt(0) == '.') {
-            tagValue = altFetch(segmentName, depth);
+            tagValue = altFetch(segmentName, depth, origin);
         } else if (hasValue(segmentName)) {
             tagValue = getTagValue(segmentName);
         } else {
             if (ignoreParentContext) {
                 return tagValue;
             }
-            Vector<Chunk> parentContext = getCurrentParentContext();
-            if (parentContext != null) {
-                // now look in ancestors (iteration, not recursion, so sue me)
-                for (Chunk ancestor : parentContext) {
-                    tagValue = ancestor.getTagValue(segmentName);
-                    ////tagValue = ancestor._resolveTagValue(tag, depth, true);
-                    if (tagValue != null) break;
-                }
+            // now look in ancestors (iteration, not recursion, so sue me)
+            for (ParentScope scope = getCurrentParentContext(); scope != null; scope = scope.parent) {
+                tagValue = scope.chunk.getTagValue(segmentName);
+                ////tagValue = ancestor._resolveTagValue(tag, depth, true);
+                if (tagValue != null) break;
             }
         }
+        if (AsyncValues.isAsync(tagValue)) {
+            tagValue = awaitTagValue(segmentName, tagValue);
+        }
 
         segment++;
         // If path has more segments, drill deeper until reference is resolved
         // or path-map hits dead end
         while (path.length > segment && tagValue != null) {
-            if (tagValue instanceof Map) {
+            if (!tag.hasBackticks() && TagPath.canResolve(tagValue)) {
+                // read just the named properties off the boxed object
+                tagValue = tag.getCompiledPath().resolve((ObjectDataMap)tagValue, segment);
+                segment = path.length;
+                if (tagValue == TagPath.MISSING_LAST) {
+                    String fakeRef = path[segment-2] + "." + path[segment-1];
+                    tagValue = getTagValue(fakeRef);
+                }
+            } else if (tagValue instanceof Map) {
                 segmentName = path[segment];
                 if (tag.hasBackticks()) {
                     segmentName = resolveBackticks(segmentName, depth);
@@ -1106,13 +1165,14 @@ public class Chunk implements Map<String,Object>
         }
 
         Filter[] filters = tag.getFilters();
+        boolean isData = filters != null && tagValue instanceof Snippet && ((Snippet)tagValue).isData();
 
         if (tagValue == null) {
 
             String tagDefault = tag.getDefaultValue();
             if (filters != null && (tag.applyFiltersFirst() || tagDefault == null)) {
                 // filtering may result in null being transformed to not null
-                Object filteredNull = Filter.applyFilter(this, filters, null);
+                Object filteredNull = applyFilters(filters, null, origin);
                 if (filteredNull != null) {
                     return filteredNull;
                 }
@@ -1120,7 +1180,7 @@ public class Chunk implements Map<String,Object>
             if (tag.applyFiltersFirst()) {
                 return tagDefault;
             } else if (filters != null) {
-                return Filter.applyFilter(this, filters, tagDefault);
+                return applyFilters(filters, tagDefault, origin);
             } else {
                 return tagDefault;
             }
@@ -1130,9 +1190,12 @@ public class Chunk implements Map<String,Object>
             if (filters == null) {
                 return tagValue;
             } else {
-                Object filteredVal = Filter.applyFilter(this, filters, tagValue);
+                Object filteredVal = applyFilters(filters, tagValue, origin);
                 if (filteredVal == null && tag.applyFiltersFirst()) {
                     return tag.getDefaultValue();
+                } else if (isData && filteredVal instanceof String) {
+                    // set with setData(), keep it that way
+                    return Snippet.makeDataSnippet((String)filteredVal);
                 } else {
                     return filteredVal;
                 }
@@ -1140,6 +1203,18 @@ public class Chunk implements Map<String,Object>
         }
     }
 
+    private Object applyFilters(Filter[] filters, Object value, String origin)
+    {
+        // let the filters see where the tag came from
+        String outer = filterOrigin.get();
+        filterOrigin.set(origin);
+        try {
+            return Filter.applyFilter(this, filters, value);
+        } finally {
+            filterOrigin.set(outer);
+        }
+    }
+
     // unbox and stringify primitive wrapper objects, box any objects if not chunk-friendly
     private static Object coercePrimitivesToStringAndBoxAliens(Object o)
     {
@@ -1186,11 +1261,7 @@ public class Chunk implements Map<String,Object>
      */
     public void resetTags()
     {
-        if (tags != null) {
-            tags.clear();
-        } else {
-            tagCount = 0;
-        }
+        if (tags != null) tags.clear();
     }
 
     public void clear()
@@ -1203,47 +1274,28 @@ public class Chunk implements Map<String,Object>
      */
     public void resetTemplate()
     {
-        if (this.template == null) {
-            this.templateRoot = null;
-        } else {
-            this.template.clear();
-        }
+        this.templateRoot = null;
+        this.template = null;
     }
 
     public boolean containsKey(Object key)
     {
-        if (tags == null) {
-            tags = new Hashtable<String,Object>();
-            copyToHashtable();
-        }
-        return tags.containsKey(key);
+        return tags != null && tags.containsKey(key);
     }
 
     public boolean containsValue(Object value)
     {
-        if (tags == null) {
-            tags = new Hashtable<String,Object>();
-            copyToHashtable();
-        }
-        return tags.containsValue(value);
+        return tags != null && tags.containsValue(value);
     }
 
     public Set<java.util.Map.Entry<String, Object>> entrySet()
     {
-        if (tags == null) {
-            tags = new Hashtable<String,Object>();
-            copyToHashtable();
-        }
-        return tags.entrySet();
+        return tagMap().entrySet();
     }
 
     public boolean equals(Object o)
     {
-        if (tags == null) {
-            tags = new Hashtable<String,Object>();
-            copyToHashtable();
-        }
-        return tags.equals(o);
+        return tagMap().equals(o);
     }
 
     public Object get(Object key)
@@ -1253,29 +1305,17 @@ public class Chunk implements Map<String,Object>
 
     public int hashCode()
     {
-        if (tags == null) {
-            tags = new Hashtable<String,Object>();
-            copyToHashtable();
-        }
-        return tags.hashCode();
+        return tagMap().hashCode();
     }
 
     public boolean isEmpty()
     {
-        if (tags == null) {
-            return tagCount == 0;
-        } else {
-            return tags.isEmpty();
-        }
+        return tags == null || tags.isEmpty();
     }
 
     public java.util.Set<String> keySet()
     {
-        if (tags == null) {
-            tags = new Hashtable<String,Object>();
-            copyToHashtable();
-        }
-        return tags.keySet();
+        return tagMap().keySet();
     }
 
     public Object put(String key, Object value)
@@ -1304,17 +1344,12 @@ public class Chunk implements Map<String,Object>
 
     public int size()
     {
-        if (tags != null) return tags.size();
-        return tagCount;
+        return tags == null ? 0 : tags.size();
     }
 
     public java.util.Collection<Object> values()
     {
-        if (tags == null) {
-            tags = new Hashtable<String,Object>();
-            copyToHashtable();
-        }
-        return tags.values();
+        return tagMap().values();
     }
 
     /**
@@ -1344,30 +1379,20 @@ public class Chunk implements Map<String,Object>
 
     /**
      * Retrieve all find-and-replace rules.  Alterations to the returned
-     * Hashtable WILL AFFECT the tag replacement rules of the Chunk directly.
+     * Map WILL AFFECT the tag replacement rules of the Chunk directly.
      * Does not return a clone.
-     * @return a Hashtable containing the Chunk's find-and-replace rules.
+     * @return a Map containing the Chunk's find-and-replace rules, or null
+     * if no rules have been set.
      */
     public Map<String,Object> getTagsTable()
     {
-        if (tags != null) {
-            return tags;
-        } else {
-            if (tagCount <= 0) {
-                return null;
-            } else {
-                copyToHashtable();
-                return tags;
-            }
-        }
+        return tags;
     }
 
-    private void copyToHashtable()
+    private TagMap tagMap()
     {
-        if (tags == null) tags = new Hashtable<String,Object>(tagCount*2);
-        for (int i=0; i<tagCount; i++) {
-            tags.put(firstTags[i],firstValues[i]);
-        }
+        if (tags == null) tags = new TagMap();
+        return tags;
     }
 
     /**
@@ -1398,12 +1423,9 @@ public class Chunk implements Map<String,Object>
         this.outputTags(stack,lineFeed,indent,indentLevel);
         indentLevel++;
 
-        Vector<Chunk> parentContext = getCurrentParentContext();
-        if (parentContext != null) {
-            for (Chunk ancestor : parentContext) {
-                ancestor.outputTags(stack,lineFeed,indent,indentLevel);
-                indentLevel++;
-            }
+        for (ParentScope scope = getCurrentParentContext(); scope != null; scope = scope.parent) {
+            scope.chunk.outputTags(stack,lineFeed,indent,indentLevel);
+            indentLevel++;
         }
 
         return stack.toString();
@@ -1412,13 +1434,7 @@ public class Chunk implements Map<String,Object>
     private void outputTags(StringBuilder output, String lf, String ind, int indent)
     {
         ArrayList<String> list = new ArrayList<String>();
-        if (tags == null) {
-            for (int i=0; i<tagCount; i++) {
-                list.add(firstTags[i]);
-            }
-        } else {
-            list.addAll(tags.keySet());
-        }
+        if (tags != null) list.addAll(tags.keySet());
 
         Collections.sort(list);
         for (String tag:list) {
@@ -1579,9 +1595,130 @@ public class Chunk implements Map<String,Object>
         return sb.toString();
     }
 
+    /**
+     * @return origin of the template whose tag is being filtered, eg so
+     * |filter(#name) can find a template next to it.  Only set while
+     * filters run, null otherwise.
+     */
     public String getTemplateOrigin()
     {
-        return this.templateOrigin;
+        return filterOrigin.get();
+    }
+
+    /**
+     * Report render timings to this listener (see RenderInstrumentation).
+     * Chunks made by a Theme pick up the theme's instrumentation.
+     * @param instrumentation null to turn off.
+     */
+    public void setInstrumentation(RenderInstrumentation instrumentation)
+    {
+        this.instrumentation = instrumentation;
+    }
+
+    public RenderInstrumentation getInstrumentation()
+    {
+        return this.instrumentation;
+    }
+
+    /**
+     * Render includes, and tags set with setAsync(), on this executor
+     * -- several at once -- instead of one after another.  Their output
+     * is buffered and stitched back in template order.  Worth it for pages that pull in a dozen slow
+     * widgets; the page takes about as long as the slowest one.
+     *
+     * <P>
+     * Off by default.  Chunks made by a Theme pick up the theme's
+     * executor, and nested chunks inherit it while rendering.  Tag data
+     * is shared by the parallel renders, so do not change this chunk
+     * while it renders.
+     * @param executor null to render sequentially.
+     */
+    public void setRenderExecutor(Executor executor)
+    {
+        this.renderExecutor = executor;
+    }
+
+    public Executor getRenderExecutor()
+    {
+        return this.renderExecutor;
+    }
+
+    /**
+     * Reuse parsed template text that turns up at render time (tag
+     * values with tags in them, etc).  Chunks made by a Theme share the
+     * theme's cache, and nested chunks inherit it while rendering.
+     * @param cache null to parse every time.
+     */
+    public void setSnippetCache(SnippetCache cache)
+    {
+        this.snippetCache = cache;
+    }
+
+    public SnippetCache getSnippetCache()
+    {
+        return this.snippetCache;
+    }
+
+    /**
+     * Parse template text met while rendering, via the snippet cache
+     * if there is one.
+     */
+    Snippet compile(String text, String origin)
+    {
+        SnippetCache cache = snippetCache;
+        return cache == null ? Snippet.getSnippet(text, origin) : cache.get(text, origin);
+    }
+
+    /**
+     * @return true if this tag might block for a while when rendered,
+     * ie it is an include or its value is still being computed.
+     */
+    boolean isForkable(SnippetTag tag)
+    {
+        String[] path = tag.getPath();
+        String name = path[0];
+        if (name.startsWith(".include")) return true;
+        if (path.length > 1 || tag.hasBackticks() || name.charAt(0) == '.') return false;
+
+        Object value = tags == null ? null : tags.get(name);
+        for (ParentScope scope = parentScope; value == null && scope != null; scope = scope.parent) {
+            TagMap ancestorTags = scope.chunk.tags;
+            if (ancestorTags != null) value = ancestorTags.get(name);
+        }
+        return AsyncValues.isAsync(value);
+    }
+
+    /**
+     * A shallow copy for rendering one part on another thread.  The copy
+     * shares this chunk's tags, so it only reads them -- String values it
+     * parses are not written back.
+     */
+    Chunk forkView()
+    {
+        Chunk view;
+        try {
+            view = (Chunk)super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+        view.readOnlyView = true;
+        return view;
+    }
+
+    private Object awaitTagValue(String tagName, Object tagValue)
+    {
+        AsyncValues.Pending pending = (AsyncValues.Pending)tagValue;
+        try {
+            return pending.await();
+        } catch (TimeoutException e) {
+            return handleError("[CHUNK_ERR: gave up waiting for value of tag '" + tagName
+                + "' after " + pending.getTimeoutMillis() + "ms]");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return handleError("[CHUNK_ERR: interrupted while waiting for value of tag '" + tagName + "']");
+        } catch (Exception e) {
+            return handleError("[CHUNK_ERR: value of tag '" + tagName + "' failed: " + e + "]");
+        }
     }
 
 }
@@ -0,0 +1,86 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Pass-through Writer that keeps count of the chars written, so
+ * instrumented renders can report output size.
+ */
+class CountingWriter extends Writer implements PartBoundaryListener
+{
+    private final Writer out;
+    private long count = 0;
+
+    CountingWriter(Writer out)
+    {
+        this.out = out;
+    }
+
+    long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the writer underneath, if out is a CountingWriter, so
+     * renderers can still spot eg an EncodingWriter behind the counter.
+     */
+    static Writer unwrap(Writer out)
+    {
+        return (out instanceof CountingWriter) ? ((CountingWriter)out).out : out;
+    }
+
+    // for text that went straight to the writer underneath
+    void addCount(long chars)
+    {
+        count += chars;
+    }
+
+    public void partDone()
+    throws IOException
+    {
+        if (out instanceof PartBoundaryListener) ((PartBoundaryListener)out).partDone();
+    }
+
+    public void write(int c)
+    throws IOException
+    {
+        out.write(c);
+        count++;
+    }
+
+    public void write(char[] cbuf, int off, int len)
+    throws IOException
+    {
+        out.write(cbuf, off, len);
+        count += len;
+    }
+
+    public void write(String str, int off, int len)
+    throws IOException
+    {
+        out.write(str, off, len);
+        count += len;
+    }
+
+    public Writer append(CharSequence csq)
+    throws IOException
+    {
+        String s = String.valueOf(csq);
+        write(s, 0, s.length());
+        return this;
+    }
+
+    public void flush()
+    throws IOException
+    {
+        out.flush();
+    }
+
+    public void close()
+    throws IOException
+    {
+        out.close();
+    }
+}
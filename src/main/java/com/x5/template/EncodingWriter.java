@@ -0,0 +1,226 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer that encodes straight into an OutputStream, and also accepts
+ * template text that was encoded ahead of time.  Static template parts
+ * keep their encoded bytes (see writeLiteral) so on later renders only
+ * the dynamic values pass through the encoder.
+ *
+ * <P>
+ * Pre-encoded text is only used with stateless charsets (UTF-8,
+ * ISO-8859-1 etc) where encoding piecewise gives the same bytes as
+ * encoding the whole page.  Anything else, eg UTF-16 with its byte-order
+ * mark, is simply encoded as it goes.
+ */
+final class EncodingWriter extends Writer
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final Charset charset;
+    private final CharsetEncoder encoder;
+    private final boolean preEncode;
+    private final ByteBuffer bytes;
+    // a high surrogate waiting for its other half
+    private char[] carry = null;
+
+    /**
+     * The encoded form of one piece of static text.
+     */
+    static final class EncodedText
+    {
+        final String text;
+        final Charset charset;
+        final byte[] bytes;
+
+        EncodedText(String text, Charset charset, byte[] bytes)
+        {
+            this.text = text;
+            this.charset = charset;
+            this.bytes = bytes;
+        }
+    }
+
+    EncodingWriter(OutputStream out, Charset charset)
+    {
+        this.out = out;
+        this.charset = charset;
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.preEncode = isStateless(charset);
+        this.bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private static boolean isStateless(Charset charset)
+    {
+        if (!charset.canEncode()) return false;
+        // a BOM or shift state would show up as extra bytes
+        int a = "a".getBytes(charset).length;
+        int ab = "ab".getBytes(charset).length;
+        return ab == a * 2;
+    }
+
+    /**
+     * Write static text to out, from its encoded bytes if out is an
+     * EncodingWriter, or a CountingWriter over one.
+     * @return the encoded copy to keep for next time.
+     */
+    static EncodedText writeLiteral(Writer out, String text, EncodedText cached)
+    throws IOException
+    {
+        Writer target = CountingWriter.unwrap(out);
+        if (!(target instanceof EncodingWriter)) {
+            out.append(text);
+            return cached;
+        }
+        EncodedText e = ((EncodingWriter)target).writeLiteral(text, cached);
+        if (target != out) ((CountingWriter)out).addCount(text.length());
+        return e;
+    }
+
+    /**
+     * Write static text, reusing its encoded bytes if the cached copy
+     * matches.
+     * @return the encoded copy to keep for next time.
+     */
+    EncodedText writeLiteral(String text, EncodedText cached)
+    throws IOException
+    {
+        if (!preEncode) {
+            write(text, 0, text.length());
+            return cached;
+        }
+        if (cached == null || cached.text != text
+                || (cached.charset != charset && !cached.charset.equals(charset))) {
+            cached = new EncodedText(text, charset, text.getBytes(charset));
+        }
+        writeBytes(cached.bytes);
+        return cached;
+    }
+
+    private void writeBytes(byte[] b)
+    throws IOException
+    {
+        // only reached with stateless charsets, so a reset here is harmless
+        if (carry != null) endOfInput();
+        if (b.length > bytes.remaining()) {
+            drain();
+            if (b.length > bytes.capacity() / 2) {
+                // big block, skip the copy
+                out.write(b);
+                return;
+            }
+        }
+        bytes.put(b);
+    }
+
+    public void write(char[] cbuf, int off, int len)
+    throws IOException
+    {
+        encode(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    public void write(String str, int off, int len)
+    throws IOException
+    {
+        encode(CharBuffer.wrap(str, off, off + len));
+    }
+
+    public void write(int c)
+    throws IOException
+    {
+        encode(CharBuffer.wrap(new char[]{(char)c}));
+    }
+
+    public Writer append(CharSequence csq)
+    throws IOException
+    {
+        if (csq == null) csq = "null";
+        encode(CharBuffer.wrap(csq));
+        return this;
+    }
+
+    private void encode(CharBuffer in)
+    throws IOException
+    {
+        if (carry != null) {
+            // glue the waiting surrogate back on
+            char[] joined = new char[carry.length + in.remaining()];
+            System.arraycopy(carry, 0, joined, 0, carry.length);
+            in.get(joined, carry.length, joined.length - carry.length);
+            carry = null;
+            in = CharBuffer.wrap(joined);
+        }
+        while (true) {
+            CoderResult result = encoder.encode(in, bytes, false);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                break;
+            }
+        }
+        if (in.hasRemaining()) {
+            carry = new char[in.remaining()];
+            in.get(carry);
+        }
+    }
+
+    private void endOfInput()
+    throws IOException
+    {
+        CharBuffer in = carry == null ? CharBuffer.allocate(0) : CharBuffer.wrap(carry);
+        carry = null;
+        while (encoder.encode(in, bytes, true).isOverflow()) {
+            drain();
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            drain();
+        }
+        encoder.reset();
+    }
+
+    private void drain()
+    throws IOException
+    {
+        if (bytes.position() > 0) {
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+
+    public void flush()
+    throws IOException
+    {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * End of output: let the encoder wrap up (eg a dangling surrogate,
+     * or a shift state) and flush everything through.
+     */
+    void finish()
+    throws IOException
+    {
+        endOfInput();
+        flush();
+    }
+
+    public void close()
+    throws IOException
+    {
+        finish();
+        out.close();
+    }
+}
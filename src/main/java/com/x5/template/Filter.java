@@ -46,9 +46,17 @@ public class Filter
     {
         if (filters == null) return input;
 
+        RenderInstrumentation instr = (context == null) ? null : context.getInstrumentation();
+
         Object filtered = input;
         for (int i=0; i<filters.length; i++) {
-            filtered = filters[i].apply(context, filtered);
+            if (instr == null) {
+                filtered = filters[i].apply(context, filtered);
+            } else {
+                long start = System.nanoTime();
+                filtered = filters[i].apply(context, filtered);
+                instr.filterApplied(filters[i].filterArgs.getFilterName(), System.nanoTime() - start);
+            }
         }
 
         return filtered;
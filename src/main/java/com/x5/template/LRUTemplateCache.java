@@ -0,0 +1,269 @@
+package com.x5.template;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.x5.util.LeastRecentlyUsed;
+
+/**
+ * Default TemplateCache.  Reads never lock: a lookup is a single
+ * ConcurrentHashMap probe plus an expiry check.
+ *
+ * <P>
+ * When the entry count goes over the limit, the least recently used
+ * entries are evicted in a batch, so the (sorting) eviction cost is only
+ * paid once every few inserts.  Only one thread evicts at a time; the
+ * others carry on without waiting.
+ *
+ * <P>
+ * putAll() doesn't make lookups wait either: its new entries stand in
+ * for the ones they replace until the whole batch is in.
+ */
+public class LRUTemplateCache implements TemplateCache
+{
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    // evict down to this fraction of the limit to amortize eviction cost
+    private static final int EVICT_BATCH_DIVISOR = 16;
+
+    private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>(64);
+    private final ReentrantLock evictLock = new ReentrantLock();
+
+    private volatile long timeToLive = 0;
+    private volatile int maxEntries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry implements LeastRecentlyUsed.Stamped
+    {
+        final Snippet template;
+        final long cachedAt;
+        final boolean pinned;
+        volatile long lastAccess;
+        // set by putAll(): until the batch is committed, lookups
+        // see the previous entry instead
+        final Batch batch;
+        volatile Entry previous;
+
+        Entry(Snippet template, long now, boolean pinned, Batch batch, Entry previous)
+        {
+            this.template = template;
+            this.cachedAt = now;
+            this.pinned = pinned;
+            this.lastAccess = now;
+            this.batch = batch;
+            this.previous = previous;
+        }
+
+        public long lastUsed()
+        {
+            return lastAccess;
+        }
+    }
+
+    private static final class Batch
+    {
+        volatile boolean committed = false;
+    }
+
+    public LRUTemplateCache()
+    {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries upper bound on cached templates, zero or less for no limit.
+     */
+    public LRUTemplateCache(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    public Snippet get(String ref)
+    {
+        Entry entry = visible(entries.get(ref));
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        long now = now();
+        if (isExpired(entry, now)) {
+            if (entries.remove(ref, entry)) {
+                evictions.incrementAndGet();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        // skip redundant volatile writes when many threads hit the same entry
+        if (entry.lastAccess != now) entry.lastAccess = now;
+        hits.incrementAndGet();
+
+        return entry.template;
+    }
+
+    public boolean contains(String ref)
+    {
+        Entry entry = visible(entries.get(ref));
+        return entry != null && !isExpired(entry, now());
+    }
+
+    private boolean isExpired(Entry entry, long now)
+    {
+        long ttl = timeToLive;
+        return ttl > 0 && !entry.pinned && now - entry.cachedAt >= ttl;
+    }
+
+    /**
+     * @return the entry lookups should see: while its putAll() is still
+     * going, the one it replaces.
+     */
+    private static Entry visible(Entry entry)
+    {
+        if (entry == null || entry.batch == null) return entry;
+        // read previous first.  putAll commits before it clears previous,
+        // so if previous is already gone, committed is already true.
+        Entry previous = entry.previous;
+        return entry.batch.committed ? entry : previous;
+    }
+
+    public void put(String ref, Snippet template)
+    {
+        if (template == null) {
+            remove(ref);
+            return;
+        }
+        entries.put(ref, new Entry(template, now(), false, null, null));
+        evictIfFull();
+    }
+
+    public void putAll(Map<String,Snippet> templates, boolean pinned)
+    {
+        Batch batch = new Batch();
+        long now = now();
+        List<Entry> added = new ArrayList<Entry>(templates.size());
+        List<String> removed = null;
+        for (Map.Entry<String,Snippet> t : templates.entrySet()) {
+            String ref = t.getKey();
+            if (t.getValue() == null) {
+                if (removed == null) removed = new ArrayList<String>();
+                removed.add(ref);
+                continue;
+            }
+            Entry entry = new Entry(t.getValue(), now, pinned, batch, visible(entries.get(ref)));
+            entries.put(ref, entry);
+            added.add(entry);
+        }
+
+        // everything is in, switch lookups over all at once
+        batch.committed = true;
+        for (Entry entry : added) {
+            entry.previous = null;
+        }
+        if (removed != null) {
+            for (String ref : removed) entries.remove(ref);
+        }
+        evictIfFull();
+    }
+
+    private void evictIfFull()
+    {
+        int limit = maxEntries;
+        if (limit > 0 && entries.size() > limit) {
+            evict(limit);
+        }
+    }
+
+    private void evict(int limit)
+    {
+        // another thread is already on it
+        if (!evictLock.tryLock()) return;
+
+        try {
+            int target = limit - (limit / EVICT_BATCH_DIVISOR);
+            int excess = entries.size() - target;
+            if (excess <= 0) return;
+
+            List<LeastRecentlyUsed.Aged<String,Entry>> byAge = LeastRecentlyUsed.oldestFirst(entries);
+
+            for (int i=0; i<byAge.size() && excess > 0; i++) {
+                LeastRecentlyUsed.Aged<String,Entry> oldest = byAge.get(i);
+                if (entries.remove(oldest.key, oldest.entry)) {
+                    evictions.incrementAndGet();
+                    excess--;
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    // package-private so tests can control the clock
+    long now()
+    {
+        return System.currentTimeMillis();
+    }
+
+    public void remove(String ref)
+    {
+        entries.remove(ref);
+    }
+
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    public void setTimeToLive(long millis)
+    {
+        this.timeToLive = millis;
+    }
+
+    public long getTimeToLive()
+    {
+        return this.timeToLive;
+    }
+
+    /**
+     * @param maxEntries upper bound on cached templates, zero or less for no limit.
+     */
+    public void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        if (maxEntries > 0 && entries.size() > maxEntries) {
+            evict(maxEntries);
+        }
+    }
+
+    public int getMaxEntries()
+    {
+        return this.maxEntries;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+}
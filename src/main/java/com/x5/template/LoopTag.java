@@ -1,7 +1,6 @@
 package com.x5.template;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -25,10 +24,10 @@ public class LoopTag extends BlockTag
     private Snippet dividerSnippet = null;
     private Snippet rowSnippet = null;
 
-    private SnippetTag dataTag = null;
-
-    // for speed
-    private Chunk rowX;
+    // parsed lazily; volatile so a fully parsed tag is seen by other threads
+    private volatile SnippetTag dataTag = null;
+    // literal divider="..." text, parsed once
+    private volatile Snippet literalDivider = null;
 
     private static final String FIRST_MARKER = "first";
     private static final String LAST_MARKER = "last";
@@ -48,7 +47,7 @@ public class LoopTag extends BlockTag
     public static String expandLoop(String params, Chunk ch, String origin, int depth)
     {
         LoopTag loop = new LoopTag(params, ch, origin);
-        StringWriter out = new StringWriter();
+        StringBuilderWriter out = new StringBuilderWriter(OutputSizeEstimates.DEFAULT_SIZE);
         try {
             loop.renderBlock(out, ch, origin, depth);
         } catch (IOException e) {
@@ -238,8 +237,10 @@ public class LoopTag extends BlockTag
             return data;
         }
 
+        SnippetTag dataTag = this.dataTag;
         if (dataTag == null) {
             dataTag = parseDataTag(dataVar);
+            this.dataTag = dataTag;
 
             if (dataTag == null) {
                 // template reference to template containing inline table?
@@ -307,6 +308,13 @@ public class LoopTag extends BlockTag
                         data = TableOfMaps.boxIterator((java.util.Iterator)unwrapped);
                     } else if (unwrapped instanceof Map) {
                         data = new ObjectTable((Map)unwrapped);
+                    } else {
+                        // java 8 Stream or Spliterator?
+                        data = StreamingTable.boxStream(unwrapped, false, context);
+                    }
+                    if (data == null && isSequence(unwrapped)) {
+                        // empty -- don't fall back to looping over its bean properties
+                        return null;
                     }
                 }
                 if (data == null) {
@@ -323,6 +331,14 @@ public class LoopTag extends BlockTag
         return data;
     }
 
+    private static boolean isSequence(Object o)
+    {
+        return o instanceof java.util.Collection
+            || o instanceof java.util.Enumeration
+            || o instanceof java.util.Iterator
+            || StreamingTable.isStream(o);
+    }
+
     private boolean isBeanBag(Chunk context, SnippetTag dataTag)
     {
         String[] pathSegments = dataTag.getPath();
@@ -344,6 +360,14 @@ public class LoopTag extends BlockTag
     public void cookLoopToPrinter(Writer out, Chunk context, String origin,
             boolean isBlock, int depth, TableData data)
     throws IOException
+    {
+        cookRows(out, context, origin, isBlock, depth, data);
+    }
+
+    // returns number of rows output
+    private int cookRows(Writer out, Chunk context, String origin,
+            boolean isBlock, int depth, TableData data)
+    throws IOException
     {
         if (data == null || !data.hasNext()) {
             if (emptySnippet == null) {
@@ -358,10 +382,12 @@ public class LoopTag extends BlockTag
             } else {
                 emptySnippet.render(out, context, depth);
             }
-            return;
+            return 0;
         }
 
-        Snippet dividerSnippet = null;
+        // loop state is all local -- the same compiled loop may be
+        // rendering in several threads (or recursively) at once.
+        Snippet dividerSnippet = this.dividerSnippet;
         boolean createArrayTags = false;
         boolean counterTags = false;
         int counterOffset = 0;
@@ -374,18 +400,8 @@ public class LoopTag extends BlockTag
         String objectValueLabel = null;
 
         if (options != null) {
-            if (options.containsKey("dividerSnippet")) {
-                dividerSnippet = (Snippet)options.get("dividerSnippet");
-            } else if (options.containsKey("divider")) {
-                String dividerTemplate = (String)options.get("divider");
-                dividerTemplate = qualifyTemplateRef(origin, dividerTemplate);
-                ContentSource templates = context.getTemplateSet();
-                if (templates != null && templates.provides(dividerTemplate)) {
-                    dividerSnippet = templates.getSnippet(dividerTemplate);
-                } else {
-                    dividerSnippet = Snippet.getSnippet(dividerTemplate);
-                }
-                options.put("dividerSnippet", dividerSnippet);
+            if (dividerSnippet == null && options.containsKey("divider")) {
+                dividerSnippet = resolveDivider((String)options.get("divider"), context, origin);
             }
             if (options.containsKey("array_tags")) {
                 createArrayTags = true;
@@ -430,13 +446,10 @@ public class LoopTag extends BlockTag
             }
         }
 
+        // one row context per render, re-used for each row
         ChunkFactory factory = context.getChunkFactory();
-
-        if (this.rowX == null) {
-            this.rowX = (factory == null) ? new Chunk() : factory.makeChunk();
-            this.rowX.append(rowSnippet);
-        }
-        // make sure cached rowX chunk matches context locale
+        Chunk rowX = (factory == null) ? new Chunk() : factory.makeChunk();
+        rowX.append(rowSnippet);
         rowX.setLocale(context.getLocale());
 
         String prefix = null;
@@ -585,7 +598,25 @@ public class LoopTag extends BlockTag
         }
         // no side effects!
         data.reset();
-        rowX.resetTags();
+
+        return counter;
+    }
+
+    private Snippet resolveDivider(String dividerTemplate, Chunk context, String origin)
+    {
+        dividerTemplate = qualifyTemplateRef(origin, dividerTemplate);
+        ContentSource templates = context.getTemplateSet();
+        if (templates != null && templates.provides(dividerTemplate)) {
+            // template cache does the caching here
+            return templates.getSnippet(dividerTemplate);
+        }
+
+        Snippet literal = this.literalDivider;
+        if (literal == null) {
+            literal = Snippet.getSnippet(dividerTemplate);
+            this.literalDivider = literal;
+        }
+        return literal;
     }
 
     private String eatTagSymbol(String tag)
@@ -853,9 +884,8 @@ public class LoopTag extends BlockTag
     public void renderBlock(Writer out, Chunk context, String origin, int depth)
         throws IOException
     {
-        if (dividerSnippet != null && !options.containsKey("dividerSnippet")) {
-            options.put("dividerSnippet", dividerSnippet);
-        }
+        RenderInstrumentation instr = (context == null) ? null : context.getInstrumentation();
+        long start = (instr == null) ? 0 : System.nanoTime();
 
         TableData data = null;
 
@@ -863,7 +893,11 @@ public class LoopTag extends BlockTag
             data = fetchData((String)options.get("data"), context, origin);
         }
 
-        cookLoopToPrinter(out, context, origin, true, depth, data);
+        int rows = cookRows(out, context, origin, true, depth, data);
+
+        if (instr != null) {
+            instr.blockRendered(origin, getBlockStartMarker(), System.nanoTime() - start, rows);
+        }
     }
 
 }
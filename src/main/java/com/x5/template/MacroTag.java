@@ -495,7 +495,7 @@ public class MacroTag extends BlockTag
         // don't recurse forever...
         if (depth > 10) return o;
 
-        if (o instanceof String) o = Snippet.getSnippet((String)o, origin);
+        if (o instanceof String) o = context.compile((String)o, origin);
         if (o instanceof Snippet) {
             Snippet s = (Snippet)o;
             if (s.isSimplePointer()) {
@@ -0,0 +1,124 @@
+package com.x5.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * java.nio WatchService-based watcher (java 7+).  Only loaded when
+ * TemplateWatcher.create() finds WatchService on the classpath.
+ */
+class NioTemplateWatcher extends TemplateWatcher implements Runnable
+{
+    private final WatchService watchService;
+    // folder -> names of watched files in that folder
+    private final ConcurrentHashMap<Path,Set<String>> watched = new ConcurrentHashMap<Path,Set<String>>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    NioTemplateWatcher(Listener listener)
+    throws IOException
+    {
+        super(listener);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this, "chunk-template-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void watch(File file)
+    {
+        File absFile = file.getAbsoluteFile();
+        File parent = absFile.getParentFile();
+        if (parent == null) return;
+        Path dir = parent.toPath();
+
+        Set<String> names = watched.get(dir);
+        if (names == null) {
+            Set<String> fresh = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+            names = watched.putIfAbsent(dir, fresh);
+            if (names == null) {
+                names = fresh;
+                try {
+                    dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                } catch (IOException e) {
+                    watched.remove(dir);
+                    System.err.println("Chunk template watcher: can not watch folder " + dir);
+                    return;
+                } catch (ClosedWatchServiceException e) {
+                    return;
+                }
+            }
+        }
+        names.add(absFile.getName());
+    }
+
+    public void run()
+    {
+        long wait = IDLE_MILLIS;
+        while (running && !isOrphaned()) {
+            WatchKey key;
+            try {
+                key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+
+            if (key != null) {
+                Path dir = (Path)key.watchable();
+                Set<String> names = watched.get(dir);
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (names == null) continue;
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were dropped, assume everything in here changed
+                        for (String name : names) {
+                            changed(new File(dir.toFile(), name));
+                        }
+                        continue;
+                    }
+                    Path changed = (Path)event.context();
+                    if (names.contains(changed.toString())) {
+                        changed(dir.resolve(changed).toFile());
+                    }
+                }
+
+                if (!key.reset()) {
+                    // folder is gone
+                    watched.remove(dir);
+                }
+            }
+
+            long next = firePending();
+            wait = (next < 0) ? IDLE_MILLIS : next;
+        }
+        // TemplateSet was dropped without close()
+        if (running) stop();
+    }
+
+    void stop()
+    {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+        }
+        thread.interrupt();
+        awaitExit(thread);
+    }
+}
@@ -0,0 +1,96 @@
+package com.x5.template;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.x5.util.BoundedCache;
+
+/**
+ * How much output each template produced last time it was rendered to a
+ * String, so the next toString() can size its buffer right the first
+ * time.
+ *
+ * <P>
+ * The estimate jumps up to a bigger result straight away (a buffer that
+ * has to grow costs a copy) and drifts down slowly after smaller ones.
+ * Updates race harmlessly -- it is only a guess.
+ */
+final class OutputSizeEstimates
+{
+    // used when a template has no history yet
+    static final int DEFAULT_SIZE = 256;
+    // don't reserve more than this up front, even for a huge page
+    private static final int MAX_PRESIZE = 1 << 20;
+    private static final int MAX_ORIGINS = 5000;
+
+    private static final BoundedCache<String,Estimate> estimates
+        = new BoundedCache<String,Estimate>(MAX_ORIGINS);
+
+    private static final class Estimate
+    {
+        volatile int size;
+
+        Estimate(int size)
+        {
+            this.size = size;
+        }
+    }
+
+    private OutputSizeEstimates()
+    {
+    }
+
+    /**
+     * @return buffer capacity for a render of this template.
+     */
+    static int guess(String origin)
+    {
+        if (origin == null) return DEFAULT_SIZE;
+        Estimate est = estimates.get(origin);
+        if (est == null) return DEFAULT_SIZE;
+        int size = est.size;
+        // a little headroom for output that varies from render to render
+        size += size >> 4;
+        return size > MAX_PRESIZE ? MAX_PRESIZE : size;
+    }
+
+    static void update(String origin, int actual)
+    {
+        if (origin == null) return;
+        Estimate est = estimates.get(origin);
+        if (est == null) {
+            estimates.put(origin, new Estimate(actual));
+            return;
+        }
+        int size = est.size;
+        if (actual >= size) {
+            est.size = actual;
+        } else {
+            est.size = size - ((size - actual) >> 3);
+        }
+    }
+
+    /**
+     * @return current estimate in chars, or -1 if the template has not
+     * been rendered to a String yet.
+     */
+    static int get(String origin)
+    {
+        Estimate est = origin == null ? null : estimates.get(origin);
+        return est == null ? -1 : est.size;
+    }
+
+    static Map<String,Integer> snapshot()
+    {
+        Map<String,Integer> copy = new HashMap<String,Integer>();
+        for (Map.Entry<String,Estimate> entry : estimates.snapshot().entrySet()) {
+            copy.put(entry.getKey(), Integer.valueOf(entry.getValue().size));
+        }
+        return copy;
+    }
+
+    static void clear()
+    {
+        estimates.clear();
+    }
+}
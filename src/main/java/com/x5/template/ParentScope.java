@@ -0,0 +1,19 @@
+package com.x5.template;
+
+/**
+ * The chunks enclosing a nested render, innermost first, as an immutable
+ * linked list.  Entering a nested chunk or loop row pushes one link onto
+ * the shared tail -- nothing is copied, and a scope can be handed to any
+ * number of renders at once.
+ */
+final class ParentScope
+{
+    final Chunk chunk;
+    final ParentScope parent;
+
+    ParentScope(Chunk chunk, ParentScope parent)
+    {
+        this.chunk = chunk;
+        this.parent = parent;
+    }
+}
@@ -0,0 +1,14 @@
+package com.x5.template;
+
+import java.io.IOException;
+
+/**
+ * Implemented by Writers that want to know where template parts end, eg
+ * to hand output on in pieces (see RenderStream).  Snippets call
+ * partDone() on their output writer after each part.
+ */
+interface PartBoundaryListener
+{
+    public void partDone()
+    throws IOException;
+}
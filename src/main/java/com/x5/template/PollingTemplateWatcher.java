@@ -0,0 +1,66 @@
+package com.x5.template;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fallback watcher for platforms without java.nio.file -- checks the
+ * modification time of each watched file every so often.
+ */
+class PollingTemplateWatcher extends TemplateWatcher implements Runnable
+{
+    private final ConcurrentHashMap<File,Long> lastModified = new ConcurrentHashMap<File,Long>();
+    private final long pollMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    PollingTemplateWatcher(Listener listener, long pollMillis)
+    {
+        super(listener);
+        this.pollMillis = pollMillis;
+        this.thread = new Thread(this, "chunk-template-poller");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void watch(File file)
+    {
+        File absFile = file.getAbsoluteFile();
+        lastModified.put(absFile, absFile.lastModified());
+    }
+
+    public void run()
+    {
+        long wait = pollMillis;
+        while (running && !isOrphaned()) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            for (Map.Entry<File,Long> entry : lastModified.entrySet()) {
+                File file = entry.getKey();
+                // zero when file has been deleted
+                long mtime = file.lastModified();
+                if (mtime != entry.getValue().longValue()) {
+                    lastModified.put(file, mtime);
+                    changed(file);
+                }
+            }
+
+            long next = firePending();
+            wait = (next < 0) ? pollMillis : Math.min(next, pollMillis);
+        }
+        // TemplateSet was dropped without close()
+        if (running) stop();
+    }
+
+    void stop()
+    {
+        running = false;
+        thread.interrupt();
+        awaitExit(thread);
+    }
+}
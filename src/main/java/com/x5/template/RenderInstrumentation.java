@@ -0,0 +1,52 @@
+package com.x5.template;
+
+/**
+ * Hooks for measuring where render time goes.  Install an implementation
+ * with Theme.setInstrumentation() (or Chunk.setInstrumentation() for
+ * stand-alone chunks).  By default nothing is installed and the render
+ * path skips the timing calls entirely.
+ *
+ * <P>
+ * Times are in nanoseconds and inclusive -- a template's time also counts
+ * the includes, loops and tags rendered inside it.  Character counts are
+ * -1 when the output Writer can't be measured.
+ *
+ * <P>
+ * Calls come from whichever threads are rendering, so implementations
+ * must be thread-safe and should be quick.  See RenderMetrics for a
+ * ready-made in-memory aggregator.
+ */
+public interface RenderInstrumentation
+{
+    /**
+     * A top-level Chunk.render() (or toString()) call finished.
+     */
+    public void chunkRendered(String origin, long nanos, long chars);
+
+    /**
+     * A template (snippet) finished rendering, eg the body of an include.
+     */
+    public void templateRendered(String origin, long nanos, long chars);
+
+    /**
+     * A {$tag} was resolved and its value rendered.
+     */
+    public void tagRendered(String origin, String tag, long nanos);
+
+    /**
+     * A block tag (loop, if, exec, loc) finished rendering.
+     * @param rows number of rows output, loops only (-1 for other blocks).
+     */
+    public void blockRendered(String origin, String blockType, long nanos, int rows);
+
+    /**
+     * One filter in a filter chain was applied.
+     */
+    public void filterApplied(String filterName, long nanos);
+
+    /**
+     * A template was requested from one layer of a theme.
+     * @param cacheHit false if the template had to be loaded (or was not found).
+     */
+    public void templateLookup(String templateName, boolean cacheHit);
+}
@@ -0,0 +1,315 @@
+package com.x5.template;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory RenderInstrumentation.  Keeps running totals per template,
+ * tag, block and filter, and can list the most expensive ones:
+ * <PRE>
+ *   RenderMetrics metrics = new RenderMetrics();
+ *   theme.setInstrumentation(metrics);
+ *   ...
+ *   metrics.dump(System.err, 20);
+ * </PRE>
+ */
+public class RenderMetrics implements RenderInstrumentation
+{
+    public static final String CHUNK = "chunk";
+    public static final String TEMPLATE = "template";
+    public static final String TAG = "tag";
+    public static final String BLOCK = "block";
+    public static final String FILTER = "filter";
+
+    private final ConcurrentHashMap<String,Stat> stats = new ConcurrentHashMap<String,Stat>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    public static class Stat
+    {
+        private final String kind;
+        private final String origin;
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong chars = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+
+        Stat(String kind, String origin, String name)
+        {
+            this.kind = kind;
+            this.origin = origin;
+            this.name = name;
+        }
+
+        void add(long nanos, long chars, int rows)
+        {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            if (chars > 0) this.chars.addAndGet(chars);
+            if (rows > 0) this.rows.addAndGet(rows);
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        /**
+         * @return one of CHUNK, TEMPLATE, TAG, BLOCK or FILTER.
+         */
+        public String getKind()
+        {
+            return kind;
+        }
+
+        /**
+         * @return template the measured piece belongs to, null for filters.
+         */
+        public String getOrigin()
+        {
+            return origin;
+        }
+
+        /**
+         * @return tag, block type or filter name, null for templates.
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        public long getTotalNanos()
+        {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos()
+        {
+            return maxNanos.get();
+        }
+
+        public long getAverageNanos()
+        {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / n;
+        }
+
+        public long getChars()
+        {
+            return chars.get();
+        }
+
+        /**
+         * @return total loop rows output, loops only.
+         */
+        public long getRows()
+        {
+            return rows.get();
+        }
+
+        public String toString()
+        {
+            StringBuilder line = new StringBuilder();
+            line.append(kind);
+            line.append(' ');
+            if (origin != null) line.append(origin);
+            if (origin != null && name != null) line.append(' ');
+            if (name != null) line.append(name);
+            line.append(": ");
+            line.append(count.get());
+            line.append(" calls, ");
+            line.append(totalNanos.get() / 1000);
+            line.append("us total, ");
+            line.append(getAverageNanos() / 1000);
+            line.append("us avg, ");
+            line.append(maxNanos.get() / 1000);
+            line.append("us max");
+            if (chars.get() > 0) {
+                line.append(", ");
+                line.append(chars.get());
+                line.append(" chars");
+            }
+            if (rows.get() > 0) {
+                line.append(", ");
+                line.append(rows.get());
+                line.append(" rows");
+            }
+            return line.toString();
+        }
+    }
+
+    public void chunkRendered(String origin, long nanos, long chars)
+    {
+        stat(CHUNK, origin, null).add(nanos, chars, 0);
+    }
+
+    public void templateRendered(String origin, long nanos, long chars)
+    {
+        stat(TEMPLATE, origin, null).add(nanos, chars, 0);
+    }
+
+    public void tagRendered(String origin, String tag, long nanos)
+    {
+        stat(TAG, origin, tag).add(nanos, -1, 0);
+    }
+
+    public void blockRendered(String origin, String blockType, long nanos, int rows)
+    {
+        stat(BLOCK, origin, blockType).add(nanos, -1, rows);
+    }
+
+    public void filterApplied(String filterName, long nanos)
+    {
+        stat(FILTER, null, filterName).add(nanos, -1, 0);
+    }
+
+    public void templateLookup(String templateName, boolean cacheHit)
+    {
+        if (cacheHit) {
+            cacheHits.incrementAndGet();
+        } else {
+            cacheMisses.incrementAndGet();
+        }
+    }
+
+    private Stat stat(String kind, String origin, String name)
+    {
+        StringBuilder key = new StringBuilder(kind);
+        key.append('|');
+        if (origin != null) key.append(origin);
+        key.append('|');
+        if (name != null) key.append(name);
+        String k = key.toString();
+
+        Stat stat = stats.get(k);
+        if (stat == null) {
+            Stat fresh = new Stat(kind, origin, name);
+            stat = stats.putIfAbsent(k, fresh);
+            if (stat == null) stat = fresh;
+        }
+        return stat;
+    }
+
+    /**
+     * @return all stats collected so far, in no particular order.
+     */
+    public List<Stat> getStats()
+    {
+        return new ArrayList<Stat>(stats.values());
+    }
+
+    /**
+     * @param kind CHUNK, TEMPLATE, TAG, BLOCK, FILTER or null for all kinds.
+     * @param max how many to return.
+     * @return the stats with the most total time, most expensive first.
+     */
+    public List<Stat> getHotList(String kind, int max)
+    {
+        List<Stat> hot = new ArrayList<Stat>();
+        for (Stat stat : stats.values()) {
+            if (kind == null || kind.equals(stat.getKind())) hot.add(stat);
+        }
+        Collections.sort(hot, new Comparator<Stat>() {
+            public int compare(Stat a, Stat b)
+            {
+                long x = a.getTotalNanos();
+                long y = b.getTotalNanos();
+                return x > y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return hot.size() > max ? new ArrayList<Stat>(hot.subList(0, max)) : hot;
+    }
+
+    public long getCacheHits()
+    {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses()
+    {
+        return cacheMisses.get();
+    }
+
+    /**
+     * @return fraction of template lookups served from cache, 0 if none yet.
+     */
+    public double getCacheHitRatio()
+    {
+        long hits = cacheHits.get();
+        long total = hits + cacheMisses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    /**
+     * How many chars each template is expected to produce, learned from
+     * earlier toString() renders and used to pre-size the output buffer.
+     * These are kept for all templates, not just ones rendered with this
+     * instrumentation installed.
+     * @return estimates in chars, by template origin.
+     */
+    public Map<String,Integer> getOutputSizeEstimates()
+    {
+        return OutputSizeEstimates.snapshot();
+    }
+
+    /**
+     * @return expected toString() output in chars, or -1 if the template
+     * has no history yet.
+     */
+    public int getOutputSizeEstimate(String origin)
+    {
+        return OutputSizeEstimates.get(origin);
+    }
+
+    public void reset()
+    {
+        stats.clear();
+        cacheHits.set(0);
+        cacheMisses.set(0);
+    }
+
+    /**
+     * Print the most expensive templates, blocks, tags and filters.
+     */
+    public void dump(PrintStream out, int max)
+    {
+        String[] kinds = new String[]{TEMPLATE, BLOCK, TAG, FILTER};
+        for (String kind : kinds) {
+            List<Stat> hot = getHotList(kind, max);
+            if (hot.size() == 0) continue;
+            out.println("-- top " + kind + "s by total time --");
+            for (Stat stat : hot) {
+                out.println(stat);
+            }
+        }
+        out.println("-- template cache: " + cacheHits.get() + " hits, "
+            + cacheMisses.get() + " misses --");
+        List<Map.Entry<String,Integer>> sizes
+            = new ArrayList<Map.Entry<String,Integer>>(getOutputSizeEstimates().entrySet());
+        if (sizes.size() == 0) return;
+        Collections.sort(sizes, new Comparator<Map.Entry<String,Integer>>() {
+            public int compare(Map.Entry<String,Integer> a, Map.Entry<String,Integer> b)
+            {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        out.println("-- largest output size estimates --");
+        for (int i=0; i<sizes.size() && i<max; i++) {
+            Map.Entry<String,Integer> size = sizes.get(i);
+            out.println(size.getKey() + ": " + size.getValue() + " chars");
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streams a Chunk's output to a subscriber in bounded pieces, at the pace
+ * the subscriber asks for them -- the page is never buffered whole.
+ *
+ * <PRE>
+ *   RenderStream stream = new RenderStream(chunk, subscriber, 8192);
+ *   stream.start(executor);  // or stream.run() on a thread of your own
+ * </PRE>
+ *
+ * <P>
+ * The protocol follows reactive streams: the subscriber gets onSubscribe(),
+ * calls request(n) for n more pieces, and gets onNext() at most that many
+ * times, then onComplete() or onError().  Wrapping a RenderStream as a
+ * java.util.concurrent.Flow.Publisher takes a few lines.
+ *
+ * <P>
+ * When the subscriber stops asking, rendering pauses at the next template
+ * part boundary (or sooner, if one part alone overflows the buffer) and
+ * resumes on the next request().  The rendering thread waits on a
+ * java.util.concurrent lock, not a monitor, so on a virtual thread the
+ * wait does not tie up a carrier thread.  It does still block whichever
+ * thread is rendering: run() it on a platform thread and that thread
+ * waits for the subscriber.  Interrupting it (eg shutdownNow() on the
+ * executor) ends the stream, and the subscriber gets onError().
+ */
+public final class RenderStream implements Runnable
+{
+    public interface Subscriber
+    {
+        public void onSubscribe(RenderStream stream);
+
+        /**
+         * @param chunk at most chunkSize chars of output, never empty.
+         */
+        public void onNext(String chunk);
+
+        public void onError(Throwable t);
+
+        public void onComplete();
+    }
+
+    private final Chunk chunk;
+    private final Subscriber subscriber;
+    private final int chunkSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition demandChanged = lock.newCondition();
+    private long demand = 0;
+    private boolean cancelled = false;
+    private boolean started = false;
+    // a bad request() or an interrupt, reported from the render thread
+    private Throwable error = null;
+
+    public RenderStream(Chunk chunk, Subscriber subscriber, int chunkSize)
+    {
+        if (chunkSize < 2) throw new IllegalArgumentException("chunkSize must be at least 2");
+        this.chunk = chunk;
+        this.subscriber = subscriber;
+        this.chunkSize = chunkSize;
+    }
+
+    public RenderStream(Chunk chunk, Subscriber subscriber)
+    {
+        this(chunk, subscriber, 8192);
+    }
+
+    /**
+     * Ask for n more pieces of output.  Safe to call from any thread.
+     * If n is not positive the stream fails: the subscriber gets onError()
+     * from the render thread, not from the caller.
+     */
+    public void request(long n)
+    {
+        lock.lock();
+        try {
+            if (n <= 0) {
+                if (error == null) error = new IllegalArgumentException("request must be positive: " + n);
+                demandChanged.signalAll();
+                return;
+            }
+            demand += n;
+            // reactive streams: treat overflow as unbounded
+            if (demand < 0) demand = Long.MAX_VALUE;
+            demandChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop rendering.  The subscriber gets no further calls.
+     */
+    public void cancel()
+    {
+        lock.lock();
+        try {
+            cancelled = true;
+            demandChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Render on the given executor, eg one that starts a virtual thread
+     * per task.
+     */
+    public void start(Executor executor)
+    {
+        executor.execute(this);
+    }
+
+    /**
+     * Render on the calling thread, waiting whenever the subscriber is not
+     * ready for more.  Returns once output is complete, failed or
+     * cancelled.
+     */
+    public void run()
+    {
+        lock.lock();
+        try {
+            if (started) throw new IllegalStateException("RenderStream can only be run once");
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+
+        subscriber.onSubscribe(this);
+
+        Output out = new Output();
+        try {
+            chunk.render(out);
+            out.finish();
+        } catch (Cancelled e) {
+            return;
+        } catch (Throwable t) {
+            if (!isCancelled()) subscriber.onError(t);
+            return;
+        }
+        Throwable failed = takeError();
+        if (failed != null) {
+            subscriber.onError(failed);
+        } else if (!isCancelled()) {
+            subscriber.onComplete();
+        }
+    }
+
+    /**
+     * @return the error from a bad request(), if any.  The stream counts
+     * as cancelled from then on.
+     */
+    private Throwable takeError()
+    {
+        lock.lock();
+        try {
+            if (cancelled || error == null) return null;
+            cancelled = true;
+            return error;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isCancelled()
+    {
+        lock.lock();
+        try {
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until the subscriber wants another piece.  An interrupt ends
+     * the stream.
+     */
+    private void awaitDemand()
+    throws IOException
+    {
+        lock.lock();
+        try {
+            while (demand == 0 && !cancelled && error == null) {
+                try {
+                    demandChanged.await();
+                } catch (InterruptedException e) {
+                    // eg the executor is shutting down, give the thread back
+                    Thread.currentThread().interrupt();
+                    error = e;
+                }
+            }
+            if (cancelled) throw new Cancelled();
+            if (error == null) {
+                if (demand != Long.MAX_VALUE) demand--;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // not under the lock, the subscriber may call back in
+        Throwable failed = takeError();
+        if (failed != null) subscriber.onError(failed);
+        throw new Cancelled();
+    }
+
+    // unwinds the render when the subscriber cancels
+    private static class Cancelled extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The Writer the chunk renders into.  Snippets call partDone() between
+     * parts, which is where full pieces are handed to the subscriber.
+     */
+    final class Output extends Writer implements PartBoundaryListener
+    {
+        private final StringBuilder buf = new StringBuilder();
+        // one part that outputs a lot is cut up rather than held whole
+        private final int hardLimit = chunkSize * 4;
+
+        public void write(char[] cbuf, int off, int len)
+        throws IOException
+        {
+            buf.append(cbuf, off, len);
+            if (buf.length() >= hardLimit) emit(chunkSize);
+        }
+
+        public void write(String str, int off, int len)
+        throws IOException
+        {
+            buf.append(str, off, off + len);
+            if (buf.length() >= hardLimit) emit(chunkSize);
+        }
+
+        public Writer append(CharSequence csq)
+        throws IOException
+        {
+            buf.append(csq);
+            if (buf.length() >= hardLimit) emit(chunkSize);
+            return this;
+        }
+
+        public void partDone()
+        throws IOException
+        {
+            if (buf.length() >= chunkSize) emit(chunkSize);
+        }
+
+        void finish()
+        throws IOException
+        {
+            emit(1);
+        }
+
+        /**
+         * Hand over full pieces while at least min chars are waiting.
+         */
+        private void emit(int min)
+        throws IOException
+        {
+            int start = 0;
+            int len = buf.length();
+            while (len - start >= min && len > start) {
+                int end = Math.min(start + chunkSize, len);
+                // don't split a surrogate pair across pieces
+                if (end < len && Character.isHighSurrogate(buf.charAt(end - 1))) end--;
+                awaitDemand();
+                subscriber.onNext(buf.substring(start, end));
+                start = end;
+            }
+            buf.delete(0, start);
+        }
+
+        public void flush()
+        {
+            // pieces go out as they fill up, or at the end
+        }
+
+        public void close()
+        {
+        }
+    }
+}
@@ -2,11 +2,11 @@ package com.x5.template;
 
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,88 +15,46 @@ public class Snippet
     private List<SnippetPart> parts = null;
     private String simpleText = null;
     private String origin = null;
-    private long lastAccess = 0;
-
-    private static boolean useCache = isCacheEnabled();
-    private static Map<String,Snippet> snippetCache = useCache ? new ConcurrentHashMap<String,Snippet>(512) : null;
-    private static long lastGC = 0;
-    private static long gcCounter = 0;
-    private static final int gcInterval = 500;
-    private static final long CAN_GC_AFTER = 1000 * 60;
+    private boolean groupBlocks = true;
+    // set with Chunk.setData(), stays literal through filters
+    private boolean isData = false;
+    // simpleText, encoded for byte output on first use
+    private volatile EncodingWriter.EncodedText encoded = null;
 
     private Snippet(String template)
     {
-        parseParts(template);
+        parseParts(template, true);
     }
 
     private Snippet(String template, String origin)
     {
         this.origin = origin;
-        parseParts(template);
-    }
-
-    public static Snippet getSnippet(String template)
-    {
-        if (Snippet.useCache) {
-            return getSnippetFromCache(template, null);
-        } else {
-            return new Snippet(template);
-        }
+        parseParts(template, true);
     }
 
-    public static Snippet getSnippet(String template, String origin)
+    private Snippet(String template, String origin, boolean skipAhead)
     {
-        if (Snippet.useCache) {
-            return getSnippetFromCache(template, origin);
-        } else {
-            return new Snippet(template, origin);
-        }
-    }
-
-    /* premature optimization? */
-    private static Snippet getSnippetFromCache(String template, String origin)
-    {
-        long timestamp = System.currentTimeMillis();
-
-        if (++gcCounter % gcInterval == 0) {
-            pruneCache(timestamp);
-        }
-
-        Snippet s = snippetCache.get(template);
-        if (s != null) {
-            s.lastAccess = timestamp;
-            return s;
-        } else {
-            s = new Snippet(template, origin);
-            s.lastAccess = timestamp;
-            snippetCache.put(template, s);
-            return s;
-        }
+        this.origin = origin;
+        parseParts(template, skipAhead);
     }
 
-    private static boolean isCacheEnabled()
+    public static Snippet getSnippet(String template)
     {
-        String useCacheProperty = System.getProperty("chunk.snippetcache");
-        if (useCacheProperty == null) {
-            return false;
-        } else {
-            return true;
+        if (template != null && isPlainText(template)) {
+            return makeSimpleSnippet(template, null);
         }
+        return new Snippet(template);
     }
 
-    private static void pruneCache(long timestamp)
+    /**
+     * Parse a template.  To reuse the result, see SnippetCache.
+     */
+    public static Snippet getSnippet(String template, String origin)
     {
-        long threshhold = timestamp - CAN_GC_AFTER;
-        if (lastGC > threshhold) return;
-
-        Iterator<java.util.Map.Entry<String,Snippet>> i = snippetCache.entrySet().iterator();
-        while (i.hasNext()) {
-            java.util.Map.Entry<String,Snippet> entry = i.next();
-            if (entry.getValue().lastAccess < threshhold) {
-                snippetCache.remove(entry.getKey());
-            }
+        if (template != null && isPlainText(template)) {
+            return makeSimpleSnippet(template, origin);
         }
-        lastGC = timestamp;
+        return new Snippet(template, origin);
     }
 
     public Snippet(List<SnippetPart> bodyParts)
@@ -138,6 +96,81 @@ public class Snippet
 
     public static final String MAGIC_CHARS = "~$%^./!*=+_";
 
+    private static final boolean[] IS_MAGIC = new boolean[128];
+    static {
+        for (int i=0; i<MAGIC_CHARS.length(); i++) {
+            IS_MAGIC[MAGIC_CHARS.charAt(i)] = true;
+        }
+    }
+
+    /**
+     * Parse one char at a time, without jumping ahead to the next
+     * delimiter.  Slow -- this is the reference the parser is checked
+     * against.
+     */
+    static Snippet parseCharByChar(String template, String origin)
+    {
+        return new Snippet(template, origin, false);
+    }
+
+    // the chars that can change parser state inside a tag
+    private static final boolean[] IS_TAG_DELIM = new boolean[128];
+    static {
+        IS_TAG_DELIM[']'] = true;
+        IS_TAG_DELIM['}'] = true;
+        IS_TAG_DELIM['/'] = true;
+        IS_TAG_DELIM['\\'] = true;
+    }
+
+    /**
+     * @return position of the next char at or after i that could change
+     * parser state inside a tag, or len if there are none.
+     */
+    private static int nextTagDelim(String template, int i, int len)
+    {
+        while (i < len) {
+            char c = template.charAt(i);
+            if (c < 128 && IS_TAG_DELIM[c]) return i;
+            i++;
+        }
+        return len;
+    }
+
+    /**
+     * Quick check for text with nothing in it the parser would pick up
+     * -- no {$, {%, {. etc and no _[ -- which can go straight to the
+     * output as is.  Most tag values (names, prices, ids) pass.
+     */
+    public static boolean isPlainText(String text)
+    {
+        int last = text.length() - 1;
+        for (int i=0; i<last; i++) {
+            char c = text.charAt(i);
+            if (c != '{' && c != '_') continue;
+            char c2 = text.charAt(i+1);
+            if (c == '{') {
+                if (c2 < 128 && IS_MAGIC[c2]) return false;
+            } else if (c2 == '[') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if this snippet outputs its text as is, never
+     * interpreting any tags in it.
+     */
+    boolean isLiteral()
+    {
+        return parts != null && parts.size() == 1 && parts.get(0).isLiteral();
+    }
+
+    boolean isData()
+    {
+        return isData;
+    }
+
     /**
      * One pass over the string.  Identify all dynamic tags and slice into
      * parts - literals will pass directly into output, dynamic SnippetTag parts
@@ -145,9 +178,14 @@ public class Snippet
      *
      * Second step is to nest block tags properly.
      *
+     * Long runs of markup between tags are skipped over with indexOf()
+     * rather than stepped through a char at a time -- on HotSpot that is
+     * an intrinsic which compares many chars per instruction.
+     *
      * @param template
+     * @param skipAhead false to examine every char (see parseCharByChar)
      */
-    private void parseParts(String template)
+    private void parseParts(String template, boolean skipAhead)
     {
         // pre-compile template -- slice and dice ALL tags as separate parts.
         if (template == null) return;
@@ -176,12 +214,34 @@ public class Snippet
 
         int len = template.length();
 
+        // next candidate tag starts, only searched for again once passed
+        int nextCurly = -1;
+        int nextToken = -1;
+
         for (int i=0; i<len; i++) {
             //c = chars[i];
             c = template.charAt(i);
 
             if (tagStart < 0) {
 
+                if (skipAhead) {
+                    // nothing but a { or _[ can start a tag, jump to the next one
+                    if (nextCurly < i) {
+                        nextCurly = template.indexOf('{', i);
+                        if (nextCurly < 0) nextCurly = len;
+                    }
+                    if (nextToken < i) {
+                        nextToken = template.indexOf("_[", i);
+                        if (nextToken < 0) nextToken = len;
+                    }
+                    int next = nextCurly < nextToken ? nextCurly : nextToken;
+                    if (next > i) {
+                        if (next+1 >= len) break;
+                        i = next;
+                        c = template.charAt(i);
+                    }
+                }
+
                 // edge case - can't start a tag on final char of sequence
                 if (i+1 >= len) break;
 
@@ -189,7 +249,7 @@ public class Snippet
                 c2 = template.charAt(i+1);
                 // collecting static until tag comes along
                 if (c == '{') {
-                    if (MAGIC_CHARS.indexOf(c2) > -1) {
+                    if (c2 < 128 && IS_MAGIC[c2]) {
                         // avoid being tricked by javascript that only smells like a tag.
                         if (c2 == '$' && isJavascriptHeadFake(i,template)) {
                             // not a chunk tag, keep scanning, nothing to see here.
@@ -207,7 +267,7 @@ public class Snippet
                                     i++;
                                     e0 = template.charAt(i);
                                 }
-                                if (MAGIC_CHARS.indexOf(e0) > -1) {
+                                if (e0 < 128 && IS_MAGIC[e0]) {
                                     magicChar = e0;
                                     exprStart = i+1;
                                 } else {
@@ -234,6 +294,12 @@ public class Snippet
 
                 // tagStart is positive value -- scan for tag-end
 
+                if (skipAhead && trailingBackslashes == 0 && !(c < 128 && IS_TAG_DELIM[c])) {
+                    // eg a long comment -- nothing to do until the next delimiter
+                    i = nextTagDelim(template, i+1, len) - 1;
+                    continue;
+                }
+
                 if (insideTrToken && c == ']') {
                     if (trailingBackslashes % 2 == 0) {
                         // FOUND TOKEN END
@@ -352,7 +418,7 @@ public class Snippet
                 finalLiteral.setLiteral(true);
                 parts.add(finalLiteral);
             }
-            groupBlocks(parts);
+            if (groupBlocks) groupBlocks(parts);
         }
 
     }
@@ -836,11 +902,130 @@ public class Snippet
     throws java.io.IOException
     {
         if (simpleText != null) {
-            out.append(simpleText);
+            EncodingWriter.EncodedText e = EncodingWriter.writeLiteral(out, simpleText, encoded);
+            if (e != encoded) encoded = e;
         } else if (parts != null) {
+            RenderInstrumentation instr = (rules == null || origin == null) ? null : rules.getInstrumentation();
+            if (instr == null) {
+                renderParts(out, rules, depth);
+            } else {
+                long startChars = (out instanceof CountingWriter) ? ((CountingWriter)out).getCount() : -1;
+                long start = System.nanoTime();
+                renderParts(out, rules, depth);
+                long nanos = System.nanoTime() - start;
+                long chars = (startChars < 0) ? -1 : ((CountingWriter)out).getCount() - startChars;
+                instr.templateRendered(origin, nanos, chars);
+            }
+        }
+    }
+
+    private void renderParts(Writer out, Chunk rules, int depth)
+    throws java.io.IOException
+    {
+        Executor executor = rules == null ? null : rules.getRenderExecutor();
+        if (executor != null && parts.size() > 1) {
+            renderPartsConcurrently(out, rules, depth, executor);
+            return;
+        }
+        if (out instanceof PartBoundaryListener) {
+            // eg streaming: give the subscriber a chance to push back
+            PartBoundaryListener boundaries = (PartBoundaryListener)out;
             for (SnippetPart part : parts) {
                 part.render(out, rules, origin, depth+1);
+                boundaries.partDone();
+            }
+            return;
+        }
+        for (SnippetPart part : parts) {
+            part.render(out, rules, origin, depth+1);
+        }
+    }
+
+    /**
+     * Start the slow parts (includes, async tag values) on the executor,
+     * render the rest here meanwhile, then write everything out in order.
+     */
+    private void renderPartsConcurrently(Writer out, Chunk rules, int depth, Executor executor)
+    throws java.io.IOException
+    {
+        int n = parts.size();
+        Fork[] forks = null;
+        for (int i=0; i<n; i++) {
+            SnippetPart part = parts.get(i);
+            if (!(part instanceof SnippetTag) || !rules.isForkable((SnippetTag)part)) continue;
+            if (forks == null) forks = new Fork[n];
+            Fork fork = new Fork(part, rules.forkView(), origin, depth+1);
+            forks[i] = fork;
+            try {
+                executor.execute(fork);
+            } catch (RejectedExecutionException e) {
+                // executor is full or shut down, fork.join() will run it here
+            }
+        }
+
+        PartBoundaryListener boundaries = (out instanceof PartBoundaryListener) ? (PartBoundaryListener)out : null;
+        for (int i=0; i<n; i++) {
+            Fork fork = forks == null ? null : forks[i];
+            if (fork == null) {
+                parts.get(i).render(out, rules, origin, depth+1);
+            } else {
+                fork.join(out);
+            }
+            if (boundaries != null) boundaries.partDone();
+        }
+    }
+
+    /**
+     * One part rendered into its own buffer, possibly on another thread.
+     */
+    private static final class Fork implements Runnable
+    {
+        private final SnippetPart part;
+        private final Chunk rules;
+        private final String origin;
+        private final int depth;
+        private final StringBuilderWriter buf = new StringBuilderWriter(OutputSizeEstimates.DEFAULT_SIZE);
+        // whoever claims the fork renders it: a pool thread, or the
+        // renderer itself if it gets there first.  so a render never
+        // waits on work that is stuck in a full executor's queue.
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Throwable failure = null;
+
+        Fork(SnippetPart part, Chunk rules, String origin, int depth)
+        {
+            this.part = part;
+            this.rules = rules;
+            this.origin = origin;
+            this.depth = depth;
+        }
+
+        public void run()
+        {
+            if (!claimed.compareAndSet(false, true)) return;
+            try {
+                part.render(buf, rules, origin, depth);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        void join(Writer out)
+        throws java.io.IOException
+        {
+            run();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new java.io.InterruptedIOException("interrupted while waiting for " + part);
             }
+            if (failure instanceof java.io.IOException) throw (java.io.IOException)failure;
+            if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+            if (failure instanceof Error) throw (Error)failure;
+            out.append(buf.toString());
         }
     }
 
@@ -859,6 +1044,37 @@ public class Snippet
         }
     }
 
+    // used when loading precompiled templates
+    static Snippet makeSimpleSnippet(String text, String origin)
+    {
+        Snippet simple = new Snippet((String)null);
+        simple.simpleText = (text == null) ? "" : text;
+        simple.origin = origin;
+        return simple;
+    }
+
+    /**
+     * Precompiling stores the flat token stream, before block tags are
+     * grouped -- block renderers (eg loop) rework their body parts in place,
+     * so the grouped tree can't simply be rebuilt from its final state.
+     */
+    static Snippet scanWithoutGrouping(String template, String origin)
+    {
+        Snippet flat = new Snippet((String)null);
+        flat.origin = origin;
+        flat.groupBlocks = false;
+        flat.parseParts(template, true);
+        return flat;
+    }
+
+    static Snippet groupScannedParts(List<SnippetPart> flatParts, String origin)
+    {
+        Snippet snippet = new Snippet(flatParts);
+        snippet.origin = origin;
+        if (snippet.parts != null) snippet.groupBlocks(snippet.parts);
+        return snippet;
+    }
+
     public static Snippet makeLiteralSnippet(String literal)
     {
         SnippetPart x = new SnippetPart(literal);
@@ -870,6 +1086,13 @@ public class Snippet
         return new Snippet(listOfOne);
     }
 
+    static Snippet makeDataSnippet(String data)
+    {
+        Snippet snippet = makeLiteralSnippet(data);
+        snippet.isData = true;
+        return snippet;
+    }
+
     /**
      * Let's say your whole snippet is just {$x}
      * In certain contexts, it's nice to resolve to the value of
@@ -906,7 +1129,7 @@ public class Snippet
         return null;
     }
 
-    static Snippet consolidateSnippets(Vector<Snippet> template)
+    static Snippet consolidateSnippets(List<Snippet> template)
     throws EndOfSnippetException
     {
         if (template == null) return null;
@@ -43,7 +43,16 @@ public class SnippetBlockTag extends SnippetTag
         if (depthCheckFails(depth,out)) return;
 
         if (renderer == null) return;
-        renderer.renderBlock(out, context, origin, depth);
+
+        RenderInstrumentation instr = context.getInstrumentation();
+        if (instr == null || renderer instanceof LoopTag) {
+            // loops report their own timings, with row counts
+            renderer.renderBlock(out, context, origin, depth);
+        } else {
+            long start = System.nanoTime();
+            renderer.renderBlock(out, context, origin, depth);
+            instr.blockRendered(origin, renderer.getBlockStartMarker(), System.nanoTime() - start, -1);
+        }
     }
 
     public String toString()
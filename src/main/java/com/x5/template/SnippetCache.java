@@ -0,0 +1,245 @@
+package com.x5.template;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.x5.util.LeastRecentlyUsed;
+
+/**
+ * Parsed form of template text that turns up at render time, eg tag
+ * values that contain tags of their own, macro bodies and translated
+ * strings.  Keyed by the text plus the template origin it was parsed
+ * under, so the same text from two templates is kept apart.
+ *
+ * <P>
+ * Each Theme has its own (see Theme.setSnippetCache), nothing is shared
+ * between themes.  Lookups never lock.  The cache is bounded by weight,
+ * roughly the chars of text held.  Going over the limit schedules an
+ * eviction of the least recently used entries on the evictor, so the
+ * render that tipped it over does not pay for it.  If eviction falls
+ * far behind, new entries are simply not cached until it catches up.
+ */
+public class SnippetCache
+{
+    public static final long DEFAULT_MAX_WEIGHT = 1L << 21;
+
+    // rough per-entry overhead in chars, for the key, entry and parts
+    private static final int ENTRY_WEIGHT = 64;
+
+    private final ConcurrentHashMap<Key,Entry> entries = new ConcurrentHashMap<Key,Entry>(64);
+    // an entry's weight is added before it goes in and taken off after
+    // it comes out, so racing clear() or evict() can't push this below
+    // what is actually held.
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicBoolean evictionPending = new AtomicBoolean();
+    private final long maxWeight;
+    private final Executor evictor;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Key
+    {
+        final String text;
+        final String origin;
+        final int hash;
+
+        Key(String text, String origin)
+        {
+            this.text = text;
+            this.origin = origin;
+            // String caches its own hash, so this is cheap after the first time
+            this.hash = text.hashCode() * 31 + (origin == null ? 0 : origin.hashCode());
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            if (hash != k.hash) return false;
+            if (origin == null ? k.origin != null : !origin.equals(k.origin)) return false;
+            return text.equals(k.text);
+        }
+    }
+
+    private static final class Entry implements LeastRecentlyUsed.Stamped
+    {
+        final Snippet snippet;
+        final int weight;
+        volatile long lastAccess;
+
+        Entry(Snippet snippet, int weight, long now)
+        {
+            this.snippet = snippet;
+            this.weight = weight;
+            this.lastAccess = now;
+        }
+
+        public long lastUsed()
+        {
+            return lastAccess;
+        }
+    }
+
+    public SnippetCache()
+    {
+        this(DEFAULT_MAX_WEIGHT, null);
+    }
+
+    /**
+     * @param maxWeight about how many chars of template text to hold.
+     * @param evictor runs evictions.  If null, each eviction gets a
+     * short-lived daemon thread.
+     */
+    public SnippetCache(long maxWeight, Executor evictor)
+    {
+        this.maxWeight = maxWeight;
+        this.evictor = evictor;
+    }
+
+    /**
+     * @return the parsed text, from cache if it has been seen before.
+     */
+    public Snippet get(String text, String origin)
+    {
+        if (text == null || Snippet.isPlainText(text)) {
+            // nothing worth keeping
+            return Snippet.getSnippet(text, origin);
+        }
+
+        Key key = new Key(text, origin);
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.lastAccess != now) entry.lastAccess = now;
+            hits.incrementAndGet();
+            return entry.snippet;
+        }
+        misses.incrementAndGet();
+
+        Snippet snippet = Snippet.getSnippet(text, origin);
+        int w = text.length() + ENTRY_WEIGHT;
+        long total = weight.get();
+        if (total + w > maxWeight * 2) {
+            // eviction is behind, don't make it worse
+            scheduleEviction();
+            return snippet;
+        }
+
+        total = weight.addAndGet(w);
+        Entry prior = entries.putIfAbsent(key, new Entry(snippet, w, now));
+        if (prior != null) {
+            weight.addAndGet(-w);
+            return prior.snippet;
+        }
+        if (total > maxWeight) scheduleEviction();
+        return snippet;
+    }
+
+    private void scheduleEviction()
+    {
+        if (!evictionPending.compareAndSet(false, true)) return;
+
+        Runnable job = new Runnable() {
+            public void run()
+            {
+                try {
+                    evict();
+                } finally {
+                    evictionPending.set(false);
+                }
+            }
+        };
+        try {
+            if (evictor == null) {
+                Thread t = new Thread(job, "chunk-snippet-evictor");
+                t.setDaemon(true);
+                t.start();
+            } else {
+                evictor.execute(job);
+            }
+        } catch (RejectedExecutionException e) {
+            evictionPending.set(false);
+        }
+    }
+
+    /**
+     * Drop least recently used entries until the cache is down to three
+     * quarters of its limit, so evictions don't happen on every insert.
+     */
+    void evict()
+    {
+        long target = maxWeight - (maxWeight >> 2);
+        if (weight.get() <= target) return;
+
+        List<LeastRecentlyUsed.Aged<Key,Entry>> byAge = LeastRecentlyUsed.oldestFirst(entries);
+        for (LeastRecentlyUsed.Aged<Key,Entry> oldest : byAge) {
+            if (weight.get() <= target) break;
+            if (entries.remove(oldest.key, oldest.entry)) {
+                weight.addAndGet(-oldest.entry.weight);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear()
+    {
+        for (Key key : entries.keySet()) {
+            Entry entry = entries.remove(key);
+            if (entry != null) weight.addAndGet(-entry.weight);
+        }
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return about how many chars of template text are held.
+     */
+    public long getWeight()
+    {
+        return weight.get();
+    }
+
+    public long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return fraction of lookups served from cache, 0 if none yet.
+     */
+    public double getHitRatio()
+    {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double)h / total;
+    }
+}
@@ -6,6 +6,8 @@ public class SnippetPart
 {
     protected String snippetText;
     private boolean isLiteral = false;
+    // literal text, encoded for byte output on first use
+    private volatile EncodingWriter.EncodedText encoded = null;
 
     public SnippetPart(String text)
     {
@@ -52,7 +54,8 @@ public class SnippetPart
     throws java.io.IOException
     {
         if (isLiteral) {
-            out.append(snippetText);
+            EncodingWriter.EncodedText e = EncodingWriter.writeLiteral(out, snippetText, encoded);
+            if (e != encoded) encoded = e;
         } else {
             // ... ? shouldn't ever get here, pure SnippetPart's are now
             // static/literal content only.  subclasses of SnippetPart
@@ -11,8 +11,10 @@ public class SnippetTag extends SnippetPart
 {
     protected String tag;
 
-    private String[] path;
+    // set last by init(), volatile so other threads never see a half-parsed tag
+    private volatile String[] path;
     private boolean hasBackticks;
+    private volatile TagPath compiledPath;
     private Filter[] filters;
     private String ifNull;
     private boolean applyFiltersIfNull = false;
@@ -38,6 +40,19 @@ public class SnippetTag extends SnippetPart
     {
         if (depthCheckFails(depth,out)) return;
 
+        RenderInstrumentation instr = rules.getInstrumentation();
+        if (instr == null) {
+            renderTag(out, rules, origin, depth);
+        } else {
+            long start = System.nanoTime();
+            renderTag(out, rules, origin, depth);
+            instr.tagRendered(origin, tag, System.nanoTime() - start);
+        }
+    }
+
+    private void renderTag(Writer out, Chunk rules, String origin, int depth)
+    throws IOException
+    {
         Object tagValue = null;
         if (path == null) init();
 
@@ -50,8 +65,14 @@ public class SnippetTag extends SnippetPart
             // needs additional processing
             ((Snippet)tagValue).render(out, rules, depth);
         } else if (tagValue instanceof String) {
-            Snippet compiled = Snippet.getSnippet((String)tagValue, origin);
-            compiled.render(out,rules,depth+1);
+            String text = (String)tagValue;
+            if (Snippet.isPlainText(text)) {
+                // nothing to expand, skip the parser
+                out.append(text);
+            } else {
+                Snippet compiled = rules.compile(text, origin);
+                compiled.render(out,rules,depth+1);
+            }
         } else {
             rules.explodeToPrinter(out, tagValue, depth+1);
         }
@@ -278,6 +299,16 @@ public class SnippetTag extends SnippetPart
         return path;
     }
 
+    TagPath getCompiledPath()
+    {
+        TagPath compiled = compiledPath;
+        if (compiled == null) {
+            compiled = new TagPath(getPath());
+            compiledPath = compiled;
+        }
+        return compiled;
+    }
+
     public boolean hasBackticks()
     {
         return this.hasBackticks;
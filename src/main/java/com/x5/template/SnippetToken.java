@@ -38,10 +38,20 @@ public class SnippetToken extends SnippetPart
             translated = locale.translate(token, args, context);
         }
 
-        Snippet reprocess = Snippet.getSnippet(translated);
+        Snippet reprocess = context.compile(translated, null);
         reprocess.render(out, context, depth);
     }
 
+    String[] getArgs()
+    {
+        return args;
+    }
+
+    void setArgs(String[] args)
+    {
+        this.args = args;
+    }
+
     public static SnippetToken parseTokenWithArgs(String wholeTag)
     {
         int bodyA = 3;
@@ -0,0 +1,216 @@
+package com.x5.template;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.x5.util.ObjectDataMap;
+import com.x5.util.TableData;
+
+/**
+ * StreamingTable walks an Iterator (or Enumeration, or java 8 Stream or
+ * Spliterator) one element at a time, wrapping each element as it is
+ * requested instead of copying the whole source up front.
+ *
+ * <P>
+ * The only look-ahead is the source's own hasNext(), which is all the loop
+ * needs to decide onEmpty and first_last, so memory use does not grow with
+ * the number of rows.
+ *
+ * <P>
+ * A plain Iterator can only be walked once -- reset() only rewinds when the
+ * table was made from an Iterable (eg a Collection).
+ */
+public class StreamingTable implements TableData
+{
+    private final Iterable<?> source;
+    private final boolean isBeans;
+    private Iterator<?> i;
+
+    public StreamingTable(Iterator<?> i)
+    {
+        this(i, false);
+    }
+
+    public StreamingTable(Iterator<?> i, boolean isBeans)
+    {
+        this.source = null;
+        this.i = i;
+        this.isBeans = isBeans;
+    }
+
+    public StreamingTable(Iterable<?> source, boolean isBeans)
+    {
+        this.source = source;
+        this.i = source.iterator();
+        this.isBeans = isBeans;
+    }
+
+    public String[] getColumnLabels()
+    {
+        return null;
+    }
+
+    public void setColumnLabels(String[] labels)
+    {
+    }
+
+    public String[] getRow()
+    {
+        return null;
+    }
+
+    public boolean hasNext()
+    {
+        return i != null && i.hasNext();
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String,Object> nextRecord()
+    {
+        if (!hasNext()) return null;
+
+        Object o = i.next();
+        // ObjectDataMap is a raw Map, its keys are always Strings
+        Map<String,Object> record = isBeans ? ObjectDataMap.wrapBean(o) : new ObjectDataMap(o);
+        return record;
+    }
+
+    public void reset()
+    {
+        if (source != null) {
+            i = source.iterator();
+        }
+    }
+
+    static TableData boxIterable(Iterable<?> source, boolean isBeans)
+    {
+        if (source == null) return null;
+        StreamingTable table = new StreamingTable(source, isBeans);
+        return table.hasNext() ? table : null;
+    }
+
+    static TableData boxIterator(Iterator<?> i, boolean isBeans)
+    {
+        if (i == null || !i.hasNext()) return null;
+        return new StreamingTable(i, isBeans);
+    }
+
+    static TableData boxEnumeration(Enumeration<?> e)
+    {
+        if (e == null || !e.hasMoreElements()) return null;
+        return new StreamingTable(new EnumerationIterator(e));
+    }
+
+    /**
+     * java 8 Stream and Spliterator sources, found by reflection so the
+     * library still runs on older JREs (and android).
+     *
+     * @param context where to log a stream that can't be read, may be null.
+     * @return a TableData over the stream, or null if obj is neither
+     *   a Stream nor a Spliterator, or is empty.
+     */
+    static TableData boxStream(Object obj, boolean isBeans, Chunk context)
+    {
+        if (obj == null) return null;
+
+        Iterator<?> i;
+        try {
+            i = StreamSupport.toIterator(obj);
+        } catch (InvocationTargetException e) {
+            // stream already consumed or closed, etc.
+            logStreamError(context, e.getCause());
+            return null;
+        } catch (IllegalAccessException e) {
+            logStreamError(context, e);
+            return null;
+        }
+        return i == null ? null : boxIterator(i, isBeans);
+    }
+
+    private static void logStreamError(Chunk context, Throwable e)
+    {
+        if (context != null) context.logError("[Loop error: could not read stream: " + e + "]");
+    }
+
+    static boolean isStream(Object obj)
+    {
+        return StreamSupport.isStream(obj);
+    }
+
+    private static class EnumerationIterator implements Iterator<Object>
+    {
+        private final Enumeration<?> e;
+
+        EnumerationIterator(Enumeration<?> e)
+        {
+            this.e = e;
+        }
+
+        public boolean hasNext()
+        {
+            return e.hasMoreElements();
+        }
+
+        public Object next()
+        {
+            return e.nextElement();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class StreamSupport
+    {
+        private static final Class<?> BASE_STREAM;
+        private static final Class<?> SPLITERATOR;
+        private static final Method STREAM_ITERATOR;
+        private static final Method SPLITERATOR_ITERATOR;
+
+        static {
+            Class<?> baseStream = null;
+            Class<?> spliterator = null;
+            Method streamIterator = null;
+            Method spliteratorIterator = null;
+            try {
+                baseStream = Class.forName("java.util.stream.BaseStream");
+                spliterator = Class.forName("java.util.Spliterator");
+                streamIterator = baseStream.getMethod("iterator");
+                spliteratorIterator = Class.forName("java.util.Spliterators").getMethod("iterator", spliterator);
+            } catch (Exception e) {
+                // pre-java 8
+                baseStream = null;
+                spliterator = null;
+            }
+            BASE_STREAM = baseStream;
+            SPLITERATOR = spliterator;
+            STREAM_ITERATOR = streamIterator;
+            SPLITERATOR_ITERATOR = spliteratorIterator;
+        }
+
+        static boolean isStream(Object obj)
+        {
+            return (BASE_STREAM != null && BASE_STREAM.isInstance(obj))
+                || (SPLITERATOR != null && SPLITERATOR.isInstance(obj));
+        }
+
+        /**
+         * @return null if obj is neither a Stream nor a Spliterator.
+         */
+        static Iterator<?> toIterator(Object obj)
+        throws InvocationTargetException, IllegalAccessException
+        {
+            if (BASE_STREAM != null && BASE_STREAM.isInstance(obj)) {
+                return (Iterator<?>)STREAM_ITERATOR.invoke(obj);
+            } else if (SPLITERATOR != null && SPLITERATOR.isInstance(obj)) {
+                return (Iterator<?>)SPLITERATOR_ITERATOR.invoke(null, obj);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.x5.template;
+
+import java.io.Writer;
+
+/**
+ * Writer over a plain StringBuilder.  Unlike StringWriter there is no
+ * lock on every write, and the buffer can be sized up front so a big
+ * page is not copied over and over as it grows.
+ */
+final class StringBuilderWriter extends Writer
+{
+    private final StringBuilder buf;
+
+    StringBuilderWriter(int capacity)
+    {
+        this.buf = new StringBuilder(capacity);
+    }
+
+    int length()
+    {
+        return buf.length();
+    }
+
+    public void write(int c)
+    {
+        buf.append((char)c);
+    }
+
+    public void write(char[] cbuf, int off, int len)
+    {
+        buf.append(cbuf, off, len);
+    }
+
+    public void write(String str)
+    {
+        buf.append(str);
+    }
+
+    public void write(String str, int off, int len)
+    {
+        buf.append(str, off, off + len);
+    }
+
+    public Writer append(CharSequence csq)
+    {
+        buf.append(csq);
+        return this;
+    }
+
+    public Writer append(char c)
+    {
+        buf.append(c);
+        return this;
+    }
+
+    public void flush()
+    {
+    }
+
+    public void close()
+    {
+    }
+
+    public String toString()
+    {
+        return buf.toString();
+    }
+}
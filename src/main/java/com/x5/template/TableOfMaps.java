@@ -1,13 +1,12 @@
 package com.x5.template;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import com.x5.util.ObjectDataMap;
 import com.x5.util.TableData;
 
 public class TableOfMaps implements TableData
@@ -59,6 +58,10 @@ public class TableOfMaps implements TableData
         cursor = -1;
     }
 
+    // the box* helpers used to copy the whole source into a list of
+    // wrappers before the first row rendered -- elements are now wrapped
+    // one at a time as the loop asks for them.
+
     @SuppressWarnings("rawtypes")
     static TableData boxObjectArray(Object[] dataStore, boolean isBeans)
     {
@@ -66,14 +69,7 @@ public class TableOfMaps implements TableData
             return null;
         }
 
-        List<Map> boxedObjects = new ArrayList<Map>();
-        for (int i=0; i<dataStore.length; i++) {
-            Object o = dataStore[i];
-            ObjectDataMap boxed = isBeans ? ObjectDataMap.wrapBean(o) : new ObjectDataMap(o);
-            boxedObjects.add(boxed);
-        }
-
-        return new TableOfMaps(boxedObjects);
+        return StreamingTable.boxIterable(Arrays.asList(dataStore), isBeans);
     }
 
     @SuppressWarnings("rawtypes")
@@ -83,25 +79,16 @@ public class TableOfMaps implements TableData
             return null;
         }
 
-        return boxIterator(dataStore.iterator(), false);
+        return StreamingTable.boxIterable(dataStore, false);
     }
 
     @SuppressWarnings("rawtypes")
     static TableData boxEnumeration(Enumeration dataStore)
     {
-        if (dataStore == null || !dataStore.hasMoreElements()) {
-            return null;
-        }
-
-        // convert to list of POJOs
-        List<Map> boxedObjects = new ArrayList<Map>();
-        while (dataStore.hasMoreElements()) {
-            boxedObjects.add(new ObjectDataMap(dataStore.nextElement()));
-        }
-
-        return new TableOfMaps(boxedObjects);
+        return StreamingTable.boxEnumeration(dataStore);
     }
 
+    @SuppressWarnings("rawtypes")
     static TableData boxCollection(Collection collection)
     {
         return boxCollection(collection, false);
@@ -114,27 +101,18 @@ public class TableOfMaps implements TableData
             return null;
         }
 
-        return boxIterator(collection.iterator(), isBeans);
+        return StreamingTable.boxIterable(collection, isBeans);
     }
 
+    @SuppressWarnings("rawtypes")
     static TableData boxIterator(Iterator i)
     {
         return boxIterator(i, false);
     }
 
+    @SuppressWarnings("rawtypes")
     static TableData boxIterator(Iterator i, boolean isBeans)
     {
-        if (i == null || !i.hasNext()) {
-            return null;
-        }
-
-        List<Map> boxedObjects = new ArrayList<Map>();
-        while (i.hasNext()) {
-            Object o = i.next();
-            ObjectDataMap boxed = isBeans ? ObjectDataMap.wrapBean(o) : new ObjectDataMap(o);
-            boxedObjects.add(boxed);
-        }
-
-        return new TableOfMaps(boxedObjects);
+        return StreamingTable.boxIterator(i, isBeans);
     }
 }
@@ -0,0 +1,303 @@
+package com.x5.template;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Chunk's tag store.  An unsynchronized open-addressing hash map for
+ * String keys -- keys and values live side by side in two flat arrays,
+ * so a lookup is one hashCode (cached by String) and a short linear probe,
+ * with no Entry objects and no monitor.
+ *
+ * <P>
+ * Like the Hashtable it replaces, null keys and null values are refused.
+ * Not thread-safe: fill it before rendering, or render from one thread.
+ * The one write made while rendering -- a String value swapped for its
+ * parsed Snippet, see setValueAt() -- is safe to race: value slots are
+ * volatile, so other renders see either the String or a complete Snippet.
+ */
+final class TagMap extends AbstractMap<String,Object>
+{
+    // marks a removed slot so probe chains stay intact
+    private static final String DELETED = new String("");
+
+    private String[] keys;
+    private AtomicReferenceArray<Object> values;
+    private int size = 0;
+    private int used = 0; // live + deleted slots
+
+    private Set<Map.Entry<String,Object>> entrySet = null;
+
+    TagMap()
+    {
+        this(Chunk.HASH_THRESH);
+    }
+
+    TagMap(int expected)
+    {
+        int capacity = 8;
+        // keep load under 3/4
+        while (capacity * 3 < expected * 4) capacity <<= 1;
+        keys = new String[capacity];
+        values = new AtomicReferenceArray<Object>(capacity);
+    }
+
+    private static int hash(String key)
+    {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot holding key, or -1 if absent.
+     */
+    int slotOf(Object key)
+    {
+        if (!(key instanceof String)) return -1;
+        String[] keys = this.keys;
+        int mask = keys.length - 1;
+        int i = hash((String)key) & mask;
+        String k;
+        while ((k = keys[i]) != null) {
+            if (k == key || (k != DELETED && k.equals(key))) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    Object valueAt(int slot)
+    {
+        return values.get(slot);
+    }
+
+    void setValueAt(int slot, Object value)
+    {
+        values.set(slot, value);
+    }
+
+    public Object get(Object key)
+    {
+        int slot = slotOf(key);
+        return slot < 0 ? null : values.get(slot);
+    }
+
+    public boolean containsKey(Object key)
+    {
+        return slotOf(key) >= 0;
+    }
+
+    public Object put(String key, Object value)
+    {
+        if (key == null || value == null) throw new NullPointerException();
+
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        int free = -1;
+        String k;
+        while ((k = keys[i]) != null) {
+            if (k == DELETED) {
+                if (free < 0) free = i;
+            } else if (k == key || k.equals(key)) {
+                return values.getAndSet(i, value);
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (free < 0) {
+            if ((used + 1) * 4 > keys.length * 3) {
+                rehash(size + 1);
+                return put(key, value);
+            }
+            free = i;
+            used++;
+        }
+        keys[free] = key;
+        values.set(free, value);
+        size++;
+        return null;
+    }
+
+    private void rehash(int expected)
+    {
+        String[] oldKeys = keys;
+        AtomicReferenceArray<Object> oldValues = values;
+
+        int capacity = oldKeys.length;
+        // only grow if live entries need it, otherwise just sweep out deletions
+        while (capacity * 3 < expected * 4 * 2) capacity <<= 1;
+        keys = new String[capacity];
+        values = new AtomicReferenceArray<Object>(capacity);
+        used = 0;
+        size = 0;
+
+        int mask = capacity - 1;
+        for (int j=0; j<oldKeys.length; j++) {
+            String k = oldKeys[j];
+            if (k == null || k == DELETED) continue;
+            int i = hash(k) & mask;
+            while (keys[i] != null) i = (i + 1) & mask;
+            keys[i] = k;
+            values.set(i, oldValues.get(j));
+            size++;
+            used++;
+        }
+    }
+
+    public Object remove(Object key)
+    {
+        int slot = slotOf(key);
+        if (slot < 0) return null;
+        Object old = values.get(slot);
+        removeAt(slot);
+        return old;
+    }
+
+    private void removeAt(int slot)
+    {
+        keys[slot] = DELETED;
+        values.set(slot, null);
+        size--;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        for (int i=0; i<keys.length; i++) {
+            keys[i] = null;
+            values.set(i, null);
+        }
+        size = 0;
+        used = 0;
+    }
+
+    public Set<Map.Entry<String,Object>> entrySet()
+    {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String,Object>>() {
+                public Iterator<Map.Entry<String,Object>> iterator()
+                {
+                    return new EntryIterator();
+                }
+
+                public int size()
+                {
+                    return size;
+                }
+
+                public void clear()
+                {
+                    TagMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String,Object>>
+    {
+        private final String[] keys = TagMap.this.keys;
+        private final AtomicReferenceArray<Object> values = TagMap.this.values;
+        private int next = -1;
+        private int last = -1;
+
+        EntryIterator()
+        {
+            advance();
+        }
+
+        private void advance()
+        {
+            next++;
+            while (next < keys.length && (keys[next] == null || keys[next] == DELETED)) {
+                next++;
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return next < keys.length;
+        }
+
+        public Map.Entry<String,Object> next()
+        {
+            if (next >= keys.length) throw new NoSuchElementException();
+            last = next;
+            advance();
+            return new Entry(keys[last], values.get(last));
+        }
+
+        public void remove()
+        {
+            if (last < 0) throw new IllegalStateException();
+            if (keys != TagMap.this.keys) {
+                // table was rebuilt under us, fall back to a lookup
+                TagMap.this.remove(keys[last]);
+            } else if (keys[last] != null && keys[last] != DELETED) {
+                removeAt(last);
+            }
+            last = -1;
+        }
+    }
+
+    private class Entry implements Map.Entry<String,Object>
+    {
+        private final String key;
+        private Object value;
+
+        Entry(String key, Object value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        public Object getValue()
+        {
+            return value;
+        }
+
+        public Object setValue(Object value)
+        {
+            Object old = this.value;
+            put(key, value);
+            this.value = value;
+            return old;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+            return key.equals(e.getKey())
+                && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        public int hashCode()
+        {
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+    }
+}
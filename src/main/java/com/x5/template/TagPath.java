@@ -0,0 +1,144 @@
+package com.x5.template;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+
+import com.x5.util.ClassInfo;
+import com.x5.util.DataCapsule;
+import com.x5.util.ObjectDataMap;
+import com.x5.util.PropertyAccessor;
+
+/**
+ * The dotted part of a tag like {$order.customer.address.city}, bound to
+ * per-class property accessors on first use.
+ *
+ * <P>
+ * Walking the path through a boxed POJO or bean reads just the properties
+ * named in the tag, straight off the object -- the object is never
+ * mapified and the intermediate objects are never boxed.  Each segment
+ * remembers the last receiver class it saw along with its accessor
+ * (a monomorphic inline cache), so the usual case is one class compare
+ * and one reflective read per segment.
+ */
+final class TagPath
+{
+    /**
+     * The path dead-ended on its last segment, which is when Chunk tries
+     * its $x.first style fallback.
+     */
+    static final Object MISSING_LAST = new Object();
+
+    private final String[] path;
+    private final Link[] links;
+
+    // immutable, so a racing thread sees all or nothing of a new link
+    private static final class Link
+    {
+        final Class<?> type;
+        final boolean asBean;
+        // asBean, or the class has no public fields
+        final boolean beanMode;
+        final PropertyAccessor accessor;
+
+        Link(Class<?> type, boolean asBean, boolean beanMode, PropertyAccessor accessor)
+        {
+            this.type = type;
+            this.asBean = asBean;
+            this.beanMode = beanMode;
+            this.accessor = accessor;
+        }
+    }
+
+    TagPath(String[] path)
+    {
+        this.path = path;
+        this.links = new Link[path.length];
+    }
+
+    /**
+     * @return true if the rest of the path can be resolved here, starting
+     * from this value.
+     */
+    static boolean canResolve(Object value)
+    {
+        return value instanceof ObjectDataMap && ((ObjectDataMap)value).canReadDirectly();
+    }
+
+    /**
+     * Resolve path[segment..] starting from a boxed object.
+     * @return the value, null if the path dead-ends early, or MISSING_LAST.
+     */
+    @SuppressWarnings("rawtypes")
+    Object resolve(ObjectDataMap start, int segment)
+    {
+        Object target = start.unwrap();
+        boolean asBean = start.isBean();
+
+        while (segment < path.length) {
+            boolean isLast = segment == path.length - 1;
+            Class<?> type = target.getClass();
+
+            Link link = links[segment];
+            if (link == null || link.type != type || link.asBean != asBean) {
+                ClassInfo info = ClassInfo.get(type);
+                boolean beanMode = asBean || !info.isPojo();
+                link = new Link(type, asBean, beanMode, info.getProperty(path[segment], beanMode));
+                links[segment] = link;
+            }
+            if (link.accessor == null) {
+                return isLast ? MISSING_LAST : null;
+            }
+
+            Object raw;
+            try {
+                raw = link.accessor.read(target);
+            } catch (IllegalAccessException e) {
+                raw = null;
+            } catch (InvocationTargetException e) {
+                raw = null;
+            }
+            if (raw == null) {
+                return isLast ? MISSING_LAST : null;
+            }
+
+            // children of a bean are read as beans
+            boolean childAsBean = link.beanMode;
+            Class<?> valueClass = link.accessor.getValueClass();
+
+            if (isLast) {
+                Object value = ObjectDataMap.boxValue(valueClass, raw, childAsBean);
+                return value == null ? MISSING_LAST : value;
+            }
+
+            segment++;
+            if (!ObjectDataMap.isBoxedValue(valueClass, raw)) {
+                // strings, lists, primitives have no properties
+                return null;
+            }
+            if (raw instanceof DataCapsule) {
+                // capsules export their own labels, hand off to the Map
+                Object value = ObjectDataMap.boxValue(valueClass, raw, childAsBean);
+                return resolveMap((Map)value, segment);
+            }
+            target = raw;
+            asBean = childAsBean;
+        }
+
+        return start;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private Object resolveMap(Map map, int segment)
+    {
+        Object value = map;
+        while (segment < path.length) {
+            if (!(value instanceof Map)) return null;
+            value = ((Map)value).get(path[segment]);
+            segment++;
+            if (value == null) {
+                return segment == path.length ? MISSING_LAST : null;
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,294 @@
+package com.x5.template;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary format for precompiled templates.  Stores the parsed Snippet
+ * tree of every template in a theme folder, so TemplateSet can skip
+ * TemplateDoc splitting and Snippet parsing at startup.
+ *
+ * <P>
+ * What gets stored is the scanned token stream of each template (literals,
+ * tags, comments, tokens).  Nesting block tags and building their renderers
+ * (loop, if, exec...) is redone when the bundle is loaded, which is a quick
+ * pass compared to scanning the source.  Tag paths and filter chains are
+ * parsed lazily on first render, as usual.
+ *
+ * <P>
+ * Each source file's hash is stored along with its templates.  If the
+ * source has changed since the bundle was made, the bundle copy is ignored
+ * and the source is parsed as usual.
+ *
+ * <P>
+ * To build a bundle as part of a maven build, run this class from the
+ * exec-maven-plugin (java goal) in the process-classes phase, eg:
+ * <PRE>
+ *   java com.x5.template.TemplateBundle src/main/resources/themes target/classes/themes/templates.cbundle chtml
+ * </PRE>
+ * then call Theme.loadBundles() (or TemplateSet.loadBundle()) at startup.
+ */
+public class TemplateBundle
+{
+    public static final String DEFAULT_BUNDLE_NAME = "templates.cbundle";
+
+    private static final int MAGIC = 0x43484E4B; // CHNK
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte SIMPLE_SNIPPET = 0;
+    private static final byte SNIPPET_WITH_PARTS = 1;
+
+    private static final byte PART_STATIC = 0;
+    private static final byte PART_COMMENT = 1;
+    private static final byte PART_TOKEN = 2;
+    private static final byte PART_TAG = 3;
+
+    static class SourceFile
+    {
+        String stub;
+        String extension;
+        byte[] hash;
+        List<Template> templates = new ArrayList<Template>();
+    }
+
+    static class Template
+    {
+        String name;
+        String cleanTemplate;
+        // ungrouped parts (see Snippet.scanWithoutGrouping) when writing,
+        // fully grouped once read back.  null for templates that defer to a
+        // lower layer via {.super}
+        Snippet compiled;
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: java " + TemplateBundle.class.getName() + " <template folder> <bundle file> [extension] [encoding]");
+            System.exit(1);
+        }
+        String extension = args.length > 2 ? args[2] : ThemeConfig.STANDARD_DEFAULT_EXT;
+
+        TemplateSet templates = new TemplateSet(args[0], extension, 0);
+        if (args.length > 3) templates.setEncoding(args[3]);
+
+        File bundleFile = new File(args[1]);
+        File folder = bundleFile.getAbsoluteFile().getParentFile();
+        if (folder != null) folder.mkdirs();
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(bundleFile));
+        int count;
+        try {
+            count = templates.writeBundle(out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Precompiled " + count + " templates into " + bundleFile.getPath());
+    }
+
+    static void write(OutputStream rawOut, List<SourceFile> files)
+    throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(rawOut);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(files.size());
+        for (SourceFile file : files) {
+            writeString(out, file.stub);
+            writeString(out, file.extension);
+            out.writeInt(file.hash.length);
+            out.write(file.hash);
+            out.writeInt(file.templates.size());
+            for (Template template : file.templates) {
+                writeString(out, template.name);
+                writeString(out, template.cleanTemplate);
+                out.writeBoolean(template.compiled != null);
+                if (template.compiled != null) writeSnippet(out, template.compiled);
+            }
+        }
+        out.flush();
+    }
+
+    static List<SourceFile> read(InputStream rawIn)
+    throws IOException
+    {
+        DataInputStream in = new DataInputStream(rawIn);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a chunk template bundle");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported template bundle version " + version);
+        }
+
+        int fileCount = in.readInt();
+        List<SourceFile> files = new ArrayList<SourceFile>(fileCount);
+        for (int i=0; i<fileCount; i++) {
+            SourceFile file = new SourceFile();
+            file.stub = readString(in);
+            file.extension = readString(in);
+            file.hash = new byte[in.readInt()];
+            in.readFully(file.hash);
+            int templateCount = in.readInt();
+            for (int j=0; j<templateCount; j++) {
+                Template template = new Template();
+                template.name = readString(in);
+                template.cleanTemplate = readString(in);
+                if (in.readBoolean()) template.compiled = readSnippet(in);
+                file.templates.add(template);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    static byte[] hash(byte[] source)
+    {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(source);
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has SHA-1 but just in case
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(source);
+            long x = crc.getValue();
+            return new byte[]{(byte)(x >>> 24), (byte)(x >>> 16), (byte)(x >>> 8), (byte)x};
+        }
+    }
+
+    static byte[] readFully(InputStream in)
+    throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            bytes.write(buf, 0, len);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeSnippet(DataOutputStream out, Snippet snippet)
+    throws IOException
+    {
+        List<SnippetPart> parts = snippet.getParts();
+        if (parts == null) {
+            out.writeByte(SIMPLE_SNIPPET);
+            writeString(out, snippet.getOrigin());
+            writeString(out, snippet.toSimpleString());
+        } else {
+            out.writeByte(SNIPPET_WITH_PARTS);
+            writeString(out, snippet.getOrigin());
+            out.writeInt(parts.size());
+            for (SnippetPart part : parts) {
+                writePart(out, part);
+            }
+        }
+    }
+
+    private static Snippet readSnippet(DataInputStream in)
+    throws IOException
+    {
+        byte kind = in.readByte();
+        String origin = readString(in);
+        if (kind == SIMPLE_SNIPPET) {
+            return Snippet.makeSimpleSnippet(readString(in), origin);
+        }
+
+        int partCount = in.readInt();
+        List<SnippetPart> parts = new ArrayList<SnippetPart>(partCount);
+        for (int i=0; i<partCount; i++) {
+            parts.add(readPart(in));
+        }
+        return Snippet.groupScannedParts(parts, origin);
+    }
+
+    private static void writePart(DataOutputStream out, SnippetPart part)
+    throws IOException
+    {
+        if (part instanceof SnippetTag) {
+            SnippetTag tag = (SnippetTag)part;
+            out.writeByte(PART_TAG);
+            writeString(out, tag.getText());
+            writeString(out, tag.getTag());
+        } else if (part instanceof SnippetToken) {
+            SnippetToken token = (SnippetToken)part;
+            out.writeByte(PART_TOKEN);
+            writeString(out, token.getText());
+            writeString(out, token.token);
+            String[] args = token.getArgs();
+            out.writeInt(args == null ? -1 : args.length);
+            if (args != null) {
+                for (String arg : args) writeString(out, arg);
+            }
+        } else if (part instanceof SnippetComment) {
+            out.writeByte(PART_COMMENT);
+            writeString(out, part.getText());
+        } else {
+            out.writeByte(PART_STATIC);
+            writeString(out, part.getText());
+            out.writeBoolean(part.isLiteral());
+        }
+    }
+
+    private static SnippetPart readPart(DataInputStream in)
+    throws IOException
+    {
+        byte type = in.readByte();
+        switch (type) {
+        case PART_TAG:
+            return new SnippetTag(readString(in), readString(in));
+        case PART_TOKEN:
+            SnippetToken token = new SnippetToken(readString(in), readString(in));
+            int argCount = in.readInt();
+            if (argCount >= 0) {
+                String[] args = new String[argCount];
+                for (int i=0; i<argCount; i++) args[i] = readString(in);
+                token.setArgs(args);
+            }
+            return token;
+        case PART_COMMENT:
+            return new SnippetComment(readString(in));
+        case PART_STATIC:
+            SnippetPart part = new SnippetPart(readString(in));
+            part.setLiteral(in.readBoolean());
+            return part;
+        default:
+            throw new IOException("Corrupt template bundle, unknown part type " + type);
+        }
+    }
+
+    // writeUTF is limited to 64k, templates can be bigger
+    private static void writeString(DataOutputStream out, String s)
+    throws IOException
+    {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in)
+    throws IOException
+    {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
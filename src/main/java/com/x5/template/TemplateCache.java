@@ -0,0 +1,55 @@
+package com.x5.template;
+
+import java.util.Map;
+
+/**
+ * TemplateCache holds the parsed templates of a TemplateSet, keyed by
+ * extension-qualified template reference (eg "chtml.my_file.sub_template").
+ *
+ * <P>
+ * get() is called on every include lookup, from every rendering thread,
+ * so implementations must be thread-safe and should not block readers.
+ *
+ * <P>
+ * Use TemplateSet.setCache(...) to plug in a custom implementation.
+ * The default is LRUTemplateCache.
+ */
+public interface TemplateCache
+{
+    /**
+     * @return cached template, or null if missing or expired.
+     */
+    public Snippet get(String ref);
+
+    /**
+     * @return true if ref is cached and not expired.  Unlike get(), this
+     * is not counted as a hit or miss, and does not count as a use of the
+     * entry.
+     */
+    public boolean contains(String ref);
+    public void put(String ref, Snippet template);
+
+    /**
+     * Stores several templates as one change: lookups see either all of
+     * them or none of them (the entries they replace, if any).  TemplateSet
+     * uses this to swap in the templates of a reloaded file.
+     * @param pinned true if the entries should not expire with the
+     * time-to-live.  They stay until replaced or removed, or evicted to
+     * make room.  TemplateSet pins templates loaded ahead of time (warmUp,
+     * loadBundle), and reloads them itself when their file changes.
+     */
+    public void putAll(Map<String,Snippet> templates, boolean pinned);
+    public void remove(String ref);
+    public void clear();
+
+    /**
+     * Entries are expired this many milliseconds after being cached.
+     * Zero or less means never expire.
+     */
+    public void setTimeToLive(long millis);
+
+    public int size();
+    public long getHitCount();
+    public long getMissCount();
+    public long getEvictionCount();
+}
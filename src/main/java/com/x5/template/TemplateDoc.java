@@ -1,12 +1,15 @@
 package com.x5.template;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.regex.Matcher;
@@ -25,7 +28,6 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
     private static final String SUB_START = "{#";
     private static final String SUB_NAME_END = "}";
     private static final String SUB_END = "{#}";
-    private static final String SKIP_BLANK_LINE = "";
 
     public static final String MACRO_START = "{*";
     public static final String MACRO_NAME_END = "}";
@@ -33,8 +35,14 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
     public static final String MACRO_LET = "{=";
     public static final String MACRO_LET_END = "}";
 
+    // files bigger than this are mapped instead of read onto the heap
+    private static final long MAP_THRESHOLD = 1L << 20;
+
+    private static final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>();
+
     private String stub;
     private InputStream in;
+    private String text;
     private String encoding = getDefaultEncoding();
 
     private Doclet queued = null;
@@ -42,11 +50,8 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
     public TemplateDoc(String name, String rawTemplate)
     {
         this.stub = truncateNameToStub(name);
-        try {
-            in = new ByteArrayInputStream(rawTemplate.getBytes(encoding));
-        } catch (UnsupportedEncodingException e) {
-            in = new ByteArrayInputStream(rawTemplate.getBytes());
-        }
+        // already decoded, no need to round-trip through bytes
+        this.text = rawTemplate;
     }
 
     public TemplateDoc(String name, InputStream in)
@@ -59,21 +64,81 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
     throws IOException
     {
         this.encoding = encoding;
-        this.brTemp = new BufferedReader(new InputStreamReader(in,encoding));
+        if (text == null) {
+            text = decode(ByteBuffer.wrap(TemplateBundle.readFully(in)), encoding);
+        }
+        this.brTemp = new TextLines(text);
+        // most files are a single template -- then there is nothing to
+        // split out and the line by line pass can be skipped.
+        this.flat = text.indexOf(SUB_START) < 0 && text.indexOf(COMMENT_START) < 0;
         return (Iterable<Doclet>)this;
     }
 
+    /**
+     * Reads a whole template file in one go.
+     */
+    static String readFile(File file, String encoding)
+    throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ByteBuffer bytes;
+            if (size > MAP_THRESHOLD) {
+                // NB a mapped file can't be overwritten on windows until the
+                // mapping is collected, so only do this for huge files.
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int)size);
+                while (bytes.hasRemaining() && channel.read(bytes) > -1) {
+                    // file might be shrinking under us, stop at EOF
+                }
+                bytes.flip();
+            }
+            return decode(bytes, encoding);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Decodes with a per-thread decoder, which is reused as long as the
+     * encoding stays the same.  Bad input is replaced, not rejected,
+     * same as InputStreamReader does.
+     */
+    static String decode(ByteBuffer bytes, String encoding)
+    throws IOException
+    {
+        Charset charset;
+        try {
+            charset = Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+        CharsetDecoder decoder = decoders.get();
+        if (decoder == null || !decoder.charset().equals(charset)) {
+            decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.set(decoder);
+        }
+        return decoder.decode(bytes).toString();
+    }
+
     public class Doclet
     {
         private String name;
         private String rawTemplate;
         private String origin;
+        private long hash;
 
         public Doclet(String name, String rawTemplate, String origin)
         {
             this.name = name;
             this.rawTemplate = rawTemplate;
             this.origin = origin;
+            this.hash = hash(rawTemplate);
         }
 
         public String getName()
@@ -95,6 +160,29 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
         {
             return Snippet.getSnippet(rawTemplate, origin);
         }
+
+        /**
+         * @return hash of the template text, to tell whether it changed
+         * since the file was last read.
+         */
+        public long getHash()
+        {
+            return hash;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a -- String.hashCode() collides too easily to be
+     * trusted on its own.
+     */
+    static long hash(String text)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i=0; i<text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
     }
 
     static String truncateNameToStub(String name)
@@ -115,7 +203,7 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
         if (hashPos > -1) stub = stub.substring(0, hashPos);
 
         if (slashPos > -1) {
-            char fs = System.getProperty("file.separator").charAt(0);
+            char fs = File.separatorChar;
             folder.replace('\\',fs);
             folder.replace('/',fs);
             return folder + stub;
@@ -128,14 +216,71 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
     // boy, this subtemplate code sure is ugly
     // ...but being able to define multiple templates per file sure is handy
     //
-    private BufferedReader brTemp;
+    private TextLines brTemp;
     private StringBuilder rootTemplate = new StringBuilder();
     private String line = null;
+    private boolean flat;
+
+    /**
+     * Hands out the lines of the decoded document, like
+     * BufferedReader.readLine() but without copying through a Reader.
+     */
+    private static final class TextLines
+    {
+        private final String text;
+        private final int len;
+        private int pos = 0;
+        private int nextCR = -1;
+
+        TextLines(String text)
+        {
+            this.text = text;
+            this.len = text.length();
+        }
+
+        boolean ready()
+        {
+            return pos < len;
+        }
+
+        String readLine()
+        {
+            if (pos >= len) return null;
+            int lf = text.indexOf('\n', pos);
+            if (lf < 0) lf = len;
+            // bare \r line endings are rare, don't look for them every line
+            if (nextCR < pos) {
+                nextCR = text.indexOf('\r', pos);
+                if (nextCR < 0) nextCR = len;
+            }
+            int end = lf < nextCR ? lf : nextCR;
+            String line = text.substring(pos, end);
+            pos = end + 1;
+            if (end == nextCR && pos < len && text.charAt(pos) == '\n') pos++;
+            return line;
+        }
+    }
+
+    // same result as the line by line pass on a doc with no subtemplates or comments
+    private static String normalizeLineEnds(String text)
+    {
+        if (text.indexOf('\r') > -1) {
+            text = text.replace("\r\n", "\n").replace('\r', '\n');
+        }
+        if (text.length() > 0 && text.charAt(text.length()-1) != '\n') {
+            text = text + "\n";
+        }
+        return text;
+    }
 
     protected Doclet nextTemplate()
         throws IOException
     {
         if (rootTemplate == null) return null;
+        if (flat) {
+            rootTemplate = null;
+            return new Doclet(stub, normalizeLineEnds(text), stub);
+        }
         if (bufferStack.size() > 0) {
             Doclet subtpl = nextSubtemplate(popNameFromStack(),"");
             if (subtpl != null) {
@@ -205,7 +350,7 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
         return new Doclet(stub, root, stub);
     }
 
-    private String getCommentLines(int comBegin, String firstLine, BufferedReader brTemp, StringBuilder sbTemp)
+    private String getCommentLines(int comBegin, String firstLine, TextLines brTemp, StringBuilder sbTemp)
         throws IOException
     {
         int comEnd = firstLine.indexOf(COMMENT_END,comBegin+2);
@@ -239,7 +384,7 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
         }
     }
 
-    private String getLiteralLines(int litBegin, String firstLine, BufferedReader brTemp, StringBuilder sbTemp)
+    private String getLiteralLines(int litBegin, String firstLine, TextLines brTemp, StringBuilder sbTemp)
         throws IOException
     {
         Matcher m = LITERAL_CLOSE.matcher(firstLine);
@@ -272,7 +417,7 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
     }
 
     // locate end of comment, and strip it but save it!
-    private String skipComment(int comPos, String firstLine, BufferedReader brTemp, StringBuilder commentBuf)
+    private String skipComment(int comPos, String firstLine, TextLines brTemp, StringBuilder commentBuf)
         throws IOException
     {
         String beforeComment = firstLine.substring(0,comPos);
@@ -310,7 +455,7 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
     }
 
     // locate end of comment and remove it from input
-    private String stripComment(int comPos, String firstLine, BufferedReader brTemp)
+    private String stripComment(int comPos, String firstLine, TextLines brTemp)
         throws IOException
     {
         String beforeComment = firstLine.substring(0,comPos);
@@ -433,7 +578,6 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
                     }
                     String line = popLineFromStack();
                     if (line == null) break;
-                    if (line == SKIP_BLANK_LINE) continue;
 
                     sbTemp.append(line);
                     if (brTemp.ready()) sbTemp.append("\n");
@@ -546,10 +690,7 @@ public class TemplateDoc implements Iterator<TemplateDoc.Doclet>, Iterable<Templ
                     // RECURSE...
                     bufferStack.add(sbTemp);
                     nameStack.add(name);
-                    Doclet nested = nextSubtemplate(name + "#" + subName, restOfLine);
-                    // if after removing subtemplate, line is blank, don't output a blank line
-                    if (line.length() < 1) lineStack.add(SKIP_BLANK_LINE);
-                    return nested;
+                    return nextSubtemplate(name + "#" + subName, restOfLine);
                 }
             }
         }
@@ -1,18 +1,39 @@
 package com.x5.template;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
-import java.util.Hashtable;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.x5.template.filters.ChunkFilter;
 import com.x5.template.filters.RegexFilter;
@@ -104,9 +125,25 @@ public class TemplateSet implements ContentSource, ChunkFactory
     // file for its subtemplates in a short span of code.
     private static final long MIN_CACHE = 5 * 1000;
 
-    private Hashtable<String,Snippet> cache = new Hashtable<String,Snippet>();
-    private Hashtable<String,Long> cacheFetch = new Hashtable<String,Long>();
+    // how often to check template file timestamps when WatchService is not available
+    public static final long WATCH_POLL_MILLIS = 1000;
+
+    private TemplateCache cache = new LRUTemplateCache();
     private int dirtyInterval = 0; // minutes
+    private volatile TemplateWatcher watcher = null;
+    // the watcher only holds this weakly, so keep it alive from here
+    private TemplateWatcher.Listener watchListener = null;
+    private final ReentrantLock watchLock = new ReentrantLock();
+    // files being loaded right now, so other threads wait instead of
+    // parsing the same file again.  no monitors anywhere on this path:
+    // a virtual thread blocked on file i/o here keeps its carrier free.
+    private final ConcurrentHashMap<String,ReentrantLock> loading = new ConcurrentHashMap<String,ReentrantLock>();
+    private volatile RenderInstrumentation instrumentation = null;
+    // template files loaded from templatePath, so file changes can be traced back to cache refs
+    private ConcurrentHashMap<String,ImportedFile> importedFiles = new ConcurrentHashMap<String,ImportedFile>();
+    // pinned files don't expire, so without a watcher their timestamps get checked now and then
+    private volatile boolean hasPinnedFiles = false;
+    private final AtomicLong lastPinCheck = new AtomicLong(System.currentTimeMillis());
     private String defaultExtension = null;
     private String tagStart = DEFAULT_TAG_START;
     private String tagEnd = DEFAULT_TAG_END;
@@ -121,7 +158,10 @@ public class TemplateSet implements ContentSource, ChunkFactory
     private boolean hardFail = false;
     private String expectedEncoding = TemplateDoc.getDefaultEncoding();
 
-    public TemplateSet() {}
+    public TemplateSet()
+    {
+        cache.setTimeToLive(cacheTimeToLive());
+    }
 
     /**
      * Makes a template "factory" which reads in template files from the
@@ -143,6 +183,7 @@ public class TemplateSet implements ContentSource, ChunkFactory
         this.templatePath = Path.ensureTrailingFileSeparator(templatePath);
         this.dirtyInterval = refreshMins;
         this.defaultExtension = extension;
+        cache.setTimeToLive(cacheTimeToLive());
     }
 
     /**
@@ -211,61 +252,154 @@ public class TemplateSet implements ContentSource, ChunkFactory
         return _get(name, extension, this.prettyFail);
     }
 
-    private void importTemplates(InputStream in, String stub, String extension)
+    private List<String> importTemplates(InputStream in, String stub, String extension, boolean pin)
+    throws IOException
+    {
+        return importTemplates(new TemplateDoc(stub, in), extension, null, null, pin);
+    }
+
+    /**
+     * @param oldHashes doclet hashes from the last time this file was
+     * read.  Subtemplates whose hash is unchanged keep the parsed copy
+     * already in the cache.
+     * @param hashes if not null, gets the hash of every doclet read.
+     * @param pin cache without expiry, see TemplateCache.putAll()
+     */
+    private List<String> importTemplates(TemplateDoc doc, String extension,
+                                         Map<String,Long> oldHashes, Map<String,Long> hashes, boolean pin)
     throws IOException
     {
-        TemplateDoc doc = new TemplateDoc(stub, in);
+        List<String> refs = new ArrayList<String>();
+        Map<String,Snippet> parsed = new HashMap<String,Snippet>();
         for (TemplateDoc.Doclet doclet : doc.parseTemplates(expectedEncoding)) {
-            cacheTemplate(doclet, extension);
+            cacheTemplate(doclet, extension, refs, oldHashes, hashes, parsed);
+        }
+        // the whole file goes in at once, lookups never see half a reload
+        cache.putAll(parsed, pin);
+        return refs;
+    }
+
+    private static class ImportedFile
+    {
+        final File file;
+        final String stub;
+        final String extension;
+        volatile List<String> refs;
+        // template ref -> doclet hash, for incremental re-import
+        volatile Map<String,Long> hashes;
+        // loaded ahead of time, cached without expiry
+        final boolean pinned;
+        // file timestamp when last read, to spot changes to pinned files
+        volatile long lastModified;
+
+        ImportedFile(File file, String stub, String extension, List<String> refs,
+                     Map<String,Long> hashes, boolean pinned, long lastModified)
+        {
+            this.file = file;
+            this.stub = stub;
+            this.extension = extension;
+            this.refs = refs;
+            this.hashes = hashes;
+            this.pinned = pinned;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private List<String> importTemplateFile(File templateFile, String stub, String extension, boolean pin)
+    throws IOException
+    {
+        // stamp before reading, so a change made mid-read is not missed
+        long lastModified = templateFile.lastModified();
+        TemplateDoc doc = new TemplateDoc(stub, TemplateDoc.readFile(templateFile, expectedEncoding));
+        Map<String,Long> hashes = new HashMap<String,Long>();
+        List<String> refs = importTemplates(doc, extension, null, hashes, pin);
+
+        File absFile = templateFile.getAbsoluteFile();
+        importedFiles.put(extension + "|" + absFile.getPath(),
+            new ImportedFile(absFile, stub, extension, refs, hashes, pin, lastModified));
+        if (pin) hasPinnedFiles = true;
+
+        TemplateWatcher w = watcher;
+        if (w != null) w.watch(absFile);
+
+        return refs;
+    }
+
+    private List<String> importTemplateResource(URL resource, String stub, String extension, boolean pin)
+    throws IOException
+    {
+        InputStream in = resource.openStream();
+        try {
+            return importTemplates(in, stub, extension, pin);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void reimportTemplateFile(File file)
+    {
+        for (ImportedFile imported : importedFiles.values()) {
+            if (!imported.file.equals(file)) continue;
+
+            List<String> oldRefs = imported.refs;
+            List<String> newRefs = null;
+            Map<String,Long> hashes = new HashMap<String,Long>();
+            if (file.exists()) {
+                // re-import first so lookups never see a gap,
+                // then drop subtemplates that no longer exist.
+                // only subtemplates that changed get parsed again.
+                try {
+                    long lastModified = file.lastModified();
+                    TemplateDoc doc = new TemplateDoc(imported.stub, TemplateDoc.readFile(file, expectedEncoding));
+                    newRefs = importTemplates(doc, imported.extension, imported.hashes, hashes, imported.pinned);
+                    imported.lastModified = lastModified;
+                } catch (IOException e) {
+                    // evict; next lookup will report the error
+                }
+            }
+
+            if (newRefs == null) {
+                importedFiles.remove(imported.extension + "|" + file.getPath());
+                for (String ref : oldRefs) cache.remove(ref);
+            } else {
+                imported.refs = newRefs;
+                imported.hashes = hashes;
+                for (String ref : oldRefs) {
+                    if (!newRefs.contains(ref)) cache.remove(ref);
+                }
+            }
         }
     }
 
     private Snippet _get(String name, String extension, boolean prettyFail)
     {
+        if (hasPinnedFiles && watcher == null) checkPinnedFiles();
+
         Snippet template = getFromCache(name, extension);
         String filename = null;
 
+        RenderInstrumentation instr = instrumentation;
+        if (instr != null) instr.templateLookup(extension + "." + name, template != null);
+
         // if not in cache, parse file and place all pieces in cache
         if (template == null) {
             String stub = TemplateDoc.truncateNameToStub(name);
+            filename = getTemplateFilename(name,extension);
+
+            String loadKey = extension + "." + stub;
+            ReentrantLock loadLock = new ReentrantLock();
+            loadLock.lock();
+            ReentrantLock inProgress = loading.putIfAbsent(loadKey, loadLock);
+            if (inProgress != null) {
+                // someone else is loading this file, wait for them
+                loadLock = null;
+                inProgress.lock();
+                inProgress.unlock();
+                template = getFromCache(name, extension);
+            }
 
-            filename = getTemplatePath(name,extension);
-            char fs = System.getProperty("file.separator").charAt(0);
-            filename = filename.replace('\\',fs);
-            filename = filename.replace('/',fs);
             try {
-                File templateFile = new File(filename);
-                if (templateFile.exists()) {
-                    FileInputStream in = new FileInputStream(templateFile);
-                    importTemplates(in, stub, extension);
-                    in.close();
-                    template = getFromCache(name, extension);
-                } else {
-                    // file does not exist, check around in classpath/jars
-                    String resourcePath = getResourcePath(name,extension);
-                    InputStream inJar = null;
-
-                    if (classInJar == null) {
-                        // theme resource is probably in same
-                        // vicinity as calling class.
-                        classInJar = grokCallerClass();
-                    }
-
-                    // ideally, somebody called Theme.setJarContext(this.getClass())
-                    // and we have a pointer to the jar where the templates live.
-                    if (classInJar != null) {
-                        inJar = classInJar.getResourceAsStream(resourcePath);
-                    }
-
-                    // last ditch effort, check in surrounding jars in classpath...
-                    if (inJar == null) inJar = fishForTemplate(resourcePath);
-
-                    if (inJar != null) {
-                        importTemplates(inJar, stub, extension);
-                        template = getFromCache(name, extension);
-                        inJar.close();
-                    }
-                }
+                if (template == null) template = loadTemplate(name, extension, stub, filename);
             } catch (java.io.IOException e) {
                 StringBuilder errmsg = new StringBuilder("error fetching ");
                 errmsg.append(extension);
@@ -287,6 +421,11 @@ public class TemplateSet implements ContentSource, ChunkFactory
                 trace.append(" -->");
 
                 template = Snippet.getSnippet("[" + errmsg.toString() + "]" + trace.toString());
+            } finally {
+                if (loadLock != null) {
+                    loading.remove(loadKey, loadLock);
+                    loadLock.unlock();
+                }
             }
         }
 
@@ -314,6 +453,56 @@ public class TemplateSet implements ContentSource, ChunkFactory
         return template;
     }
 
+    private Snippet loadTemplate(String name, String extension, String stub, String filename)
+    throws IOException
+    {
+        File templateFile = new File(filename);
+        if (templateFile.exists()) {
+            importTemplateFile(templateFile, stub, extension, false);
+            return getFromCache(name, extension);
+        }
+        // file does not exist, check around in classpath/jars
+        InputStream inJar = openTemplateResource(getResourcePath(name,extension));
+        if (inJar == null) return null;
+        try {
+            importTemplates(inJar, stub, extension, false);
+        } finally {
+            inJar.close();
+        }
+        return getFromCache(name, extension);
+    }
+
+    private String getTemplateFilename(String name, String extension)
+    {
+        String filename = getTemplatePath(name,extension);
+        char fs = File.separatorChar;
+        filename = filename.replace('\\',fs);
+        filename = filename.replace('/',fs);
+        return filename;
+    }
+
+    private InputStream openTemplateResource(String resourcePath)
+    {
+        InputStream inJar = null;
+
+        if (classInJar == null) {
+            // theme resource is probably in same
+            // vicinity as calling class.
+            classInJar = grokCallerClass();
+        }
+
+        // ideally, somebody called Theme.setJarContext(this.getClass())
+        // and we have a pointer to the jar where the templates live.
+        if (classInJar != null) {
+            inJar = classInJar.getResourceAsStream(resourcePath);
+        }
+
+        // last ditch effort, check in surrounding jars in classpath...
+        if (inJar == null) inJar = fishForTemplate(resourcePath);
+
+        return inJar;
+    }
+
     // default (package) visibility intentional
     static Class<?> grokCallerClass()
     {
@@ -417,6 +606,7 @@ public class TemplateSet implements ContentSource, ChunkFactory
         Chunk c = new Chunk();
         c.setMacroLibrary(this,this);
         shareContentSources(c);
+        c.setInstrumentation(instrumentation);
         return c;
     }
 
@@ -437,6 +627,7 @@ public class TemplateSet implements ContentSource, ChunkFactory
         c.setMacroLibrary(this,this);
         c.append( getSnippet(templateName) );
         shareContentSources(c);
+        c.setInstrumentation(instrumentation);
         return c;
     }
 
@@ -458,23 +649,63 @@ public class TemplateSet implements ContentSource, ChunkFactory
         c.setMacroLibrary(this,this);
         c.append( getSnippet(templateName, extension) );
         shareContentSources(c);
+        c.setInstrumentation(instrumentation);
         return c;
     }
 
-    private void cacheTemplate(TemplateDoc.Doclet doclet, String extension)
+    private void cacheTemplate(TemplateDoc.Doclet doclet, String extension, List<String> refs,
+                               Map<String,Long> oldHashes, Map<String,Long> hashes, Map<String,Snippet> parsed)
     {
         String name = doclet.getName().replace('#','.');
         String ref = extension + "." + name;
-        String cleanRef = "_CLEAN_:" + ref;
+        Long hash = Long.valueOf(doclet.getHash());
+        if (hashes != null) hashes.put(ref, hash);
+
+        if (oldHashes != null && hash.equals(oldHashes.get(ref))) {
+            // unchanged since last read -- keep what's cached, if it's still there
+            String cleanRef = "_CLEAN_:" + ref;
+            if (cache.contains(cleanRef) && cache.contains(ref)) {
+                refs.add(cleanRef);
+                refs.add(ref);
+                return;
+            }
+        }
+
         String template = doclet.getTemplate();
-        cache.put(cleanRef, Snippet.makeLiteralSnippet(template));
-        cacheFetch.put(cleanRef, System.currentTimeMillis());
+        Snippet compiled = compileTemplate(name, template, doclet.getOrigin());
+        cacheTemplate(name, extension, template, compiled, refs, parsed);
+    }
 
+    /**
+     * Adds the clean and compiled template to parsed, for the caller to
+     * cache in one go.
+     */
+    private void cacheTemplate(String name, String extension, String template, Snippet compiled,
+                               List<String> refs, Map<String,Snippet> parsed)
+    {
+        String ref = extension + "." + name;
+        String cleanRef = "_CLEAN_:" + ref;
+        parsed.put(cleanRef, Snippet.makeLiteralSnippet(template));
+        refs.add(cleanRef);
+
+        if (compiled == null) return;
+        parsed.put(ref, compiled);
+        refs.add(ref);
+    }
+
+    // returns null when template defers to a lower layer via {.super}
+    private static Snippet compileTemplate(String name, String template, String origin)
+    {
+        String fastTpl = prepareTemplate(name, template);
+        if (fastTpl == null) return null;
+        return Snippet.getSnippet(fastTpl, origin);
+    }
+
+    private static String prepareTemplate(String name, String template)
+    {
         StringBuilder tpl = TemplateDoc.expandShorthand(name,new StringBuilder(template));
-        if (tpl == null) return;
-        String fastTpl = removeBlockTagIndents(tpl.toString());
-        cache.put(ref, Snippet.getSnippet(fastTpl, doclet.getOrigin()));
-        cacheFetch.put(ref, System.currentTimeMillis());
+        if (tpl == null) return null;
+        return removeBlockTagIndents(tpl.toString());
     }
 
     public static String removeBlockTagIndents(String template)
@@ -488,19 +719,42 @@ public class TemplateSet implements ContentSource, ChunkFactory
     protected Snippet getFromCache(String name, String extension)
     {
         String ref = extension + "." + name.replace('#','.');
-        Snippet template = null;
+        return cache.get(ref);
+    }
 
-        long cacheHowLong = dirtyInterval * oneMinuteInMillis;
-        if (cacheHowLong < MIN_CACHE) cacheHowLong = MIN_CACHE;
+    /**
+     * Reload pinned files that changed on disk.  Does nothing unless
+     * MIN_CACHE has passed since the last check -- same freshness as
+     * unpinned templates get from their expiry.  One thread checks, the
+     * rest carry on.
+     */
+    private void checkPinnedFiles()
+    {
+        long now = System.currentTimeMillis();
+        long last = lastPinCheck.get();
+        if (now - last < MIN_CACHE || !lastPinCheck.compareAndSet(last, now)) return;
 
-        if (cache.containsKey(ref)) {
-            long lastFetch = cacheFetch.get(ref); // millis
-            long expireTime = lastFetch + cacheHowLong;
-            if (System.currentTimeMillis() < expireTime) {
-                template = cache.get(ref);
+        for (ImportedFile imported : importedFiles.values()) {
+            if (imported.pinned && imported.file.lastModified() != imported.lastModified) {
+                reimportTemplateFile(imported.file);
             }
         }
-        return template;
+    }
+
+    // templates loaded ahead of time don't expire, unless a cache time was set
+    private boolean pinPreloaded()
+    {
+        return dirtyInterval <= 0;
+    }
+
+    private long cacheTimeToLive()
+    {
+        // file changes evict templates, no need to expire them
+        if (watcher != null) return 0;
+
+        long cacheHowLong = dirtyInterval * oneMinuteInMillis;
+        if (cacheHowLong < MIN_CACHE) cacheHowLong = MIN_CACHE;
+        return cacheHowLong;
     }
 
     /**
@@ -510,7 +764,7 @@ public class TemplateSet implements ContentSource, ChunkFactory
     public void clearCache()
     {
         cache.clear();
-        cacheFetch.clear();
+        importedFiles.clear();
     }
 
     /**
@@ -520,6 +774,503 @@ public class TemplateSet implements ContentSource, ChunkFactory
     public void setDirtyInterval(int minutes)
     {
         dirtyInterval = minutes;
+        cache.setTimeToLive(cacheTimeToLive());
+    }
+
+    /**
+     * Parses every template (default extension only) in the template
+     * folder and the classpath theme folder and writes the result in
+     * precompiled form.  See TemplateBundle.
+     * @return number of templates written.
+     */
+    public int writeBundle(OutputStream out)
+    throws IOException
+    {
+        String extension = defaultExtension;
+        Map<String,Object> sources = new LinkedHashMap<String,Object>();
+        findTemplateFiles(sources, extension);
+        findTemplateResources(sources, extension);
+
+        List<TemplateBundle.SourceFile> files = new ArrayList<TemplateBundle.SourceFile>();
+        int count = 0;
+
+        for (Map.Entry<String,Object> source : sources.entrySet()) {
+            Object location = source.getValue();
+            InputStream in = (location instanceof File)
+                ? new FileInputStream((File)location) : ((URL)location).openStream();
+            byte[] raw;
+            try {
+                raw = TemplateBundle.readFully(in);
+            } finally {
+                in.close();
+            }
+
+            TemplateBundle.SourceFile file = new TemplateBundle.SourceFile();
+            file.stub = source.getKey();
+            file.extension = extension;
+            file.hash = TemplateBundle.hash(raw);
+
+            TemplateDoc doc = new TemplateDoc(file.stub, TemplateDoc.decode(ByteBuffer.wrap(raw), expectedEncoding));
+            for (TemplateDoc.Doclet doclet : doc.parseTemplates(expectedEncoding)) {
+                TemplateBundle.Template template = new TemplateBundle.Template();
+                template.name = doclet.getName().replace('#','.');
+                template.cleanTemplate = doclet.getTemplate();
+                String fastTpl = prepareTemplate(template.name, template.cleanTemplate);
+                if (fastTpl != null) {
+                    template.compiled = Snippet.scanWithoutGrouping(fastTpl, doclet.getOrigin());
+                }
+                file.templates.add(template);
+                count++;
+            }
+            files.add(file);
+        }
+
+        TemplateBundle.write(out, files);
+        return count;
+    }
+
+    /**
+     * Looks for a precompiled bundle named TemplateBundle.DEFAULT_BUNDLE_NAME
+     * in the template folder, or else in the classpath theme folder, and
+     * loads it.
+     * @return number of templates loaded from the bundle.
+     */
+    public int loadBundle()
+    {
+        try {
+            if (templatePath != null && templatePath.length() > 0) {
+                File bundleFile = new File(templatePath + TemplateBundle.DEFAULT_BUNDLE_NAME);
+                if (bundleFile.exists()) return loadBundle(bundleFile);
+            }
+
+            String folder = (layerName == null) ? classpathThemesFolder : classpathThemesFolder + layerName;
+            InputStream in = openTemplateResource(folder + TemplateBundle.DEFAULT_BUNDLE_NAME);
+            if (in == null) return 0;
+            try {
+                return loadBundle(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Chunk: could not load template bundle: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Loads a precompiled bundle file, memory-mapped.
+     * @return number of templates loaded from the bundle.
+     */
+    public int loadBundle(File bundleFile)
+    throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(bundleFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return loadBundle(new ByteBufferInputStream(mapped));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Loads precompiled templates into the cache, skipping any whose
+     * source file has changed since the bundle was written.  Those will
+     * be parsed from source as usual when requested.  If the source is
+     * not found at all, the bundle copy is used as-is.
+     * <P>
+     * Like warmed-up templates, bundled templates stay cached until their
+     * source file changes, unless a dirty interval was set.
+     * @return number of templates loaded from the bundle.
+     */
+    public int loadBundle(InputStream in)
+    throws IOException
+    {
+        int count = 0;
+        boolean pin = pinPreloaded();
+        for (TemplateBundle.SourceFile file : TemplateBundle.read(new BufferedInputStream(in))) {
+            File sourceFile = new File(getTemplateFilename(file.stub, file.extension));
+            long lastModified = sourceFile.lastModified();
+            InputStream source = sourceFile.exists()
+                ? new FileInputStream(sourceFile) : openTemplateResource(getResourcePath(file.stub, file.extension));
+            if (source == null) {
+                sourceFile = null;
+            } else {
+                byte[] hash;
+                try {
+                    hash = TemplateBundle.hash(TemplateBundle.readFully(source));
+                } finally {
+                    source.close();
+                }
+                // stale, fall back to parsing from source
+                if (!java.util.Arrays.equals(hash, file.hash)) continue;
+                if (!sourceFile.exists()) sourceFile = null;
+            }
+
+            List<String> refs = new ArrayList<String>();
+            Map<String,Long> hashes = new HashMap<String,Long>();
+            Map<String,Snippet> parsed = new HashMap<String,Snippet>();
+            for (TemplateBundle.Template template : file.templates) {
+                cacheTemplate(template.name, file.extension, template.cleanTemplate, template.compiled, refs, parsed);
+                hashes.put(file.extension + "." + template.name, Long.valueOf(TemplateDoc.hash(template.cleanTemplate)));
+                count++;
+            }
+            cache.putAll(parsed, pin);
+
+            if (sourceFile != null) {
+                File absFile = sourceFile.getAbsoluteFile();
+                importedFiles.put(file.extension + "|" + absFile.getPath(),
+                    new ImportedFile(absFile, file.stub, file.extension, refs, hashes, pin, lastModified));
+                if (pin) hasPinnedFiles = true;
+                TemplateWatcher w = watcher;
+                if (w != null) w.watch(absFile);
+            }
+        }
+        return count;
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf)
+        {
+            this.buf = buf;
+        }
+
+        public int read()
+        {
+            return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+        }
+
+        public int read(byte[] bytes, int off, int len)
+        {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(bytes, off, len);
+            return len;
+        }
+
+        public int available()
+        {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * Finds every template file (default extension only) in the template
+     * folder and in the classpath theme folder, and parses them all up front
+     * so the first requests don't have to.  Files are parsed in parallel on
+     * a temporary thread pool.
+     * <P>
+     * Warmed-up templates do not expire after the usual five seconds.
+     * They stay cached until their file changes: the watcher reloads them
+     * if setWatchForChanges(true), otherwise file timestamps are checked
+     * every few seconds.  If a dirty interval was set explicitly, they
+     * expire per that interval like any other template.
+     */
+    public WarmUpReport warmUp()
+    {
+        return warmUp(null);
+    }
+
+    /**
+     * Like warmUp() but parses on the given executor.  Blocks until done.
+     * @param executor runs the parse jobs; a temporary thread pool is used if null.
+     */
+    public WarmUpReport warmUp(Executor executor)
+    {
+        long start = System.currentTimeMillis();
+        final String extension = defaultExtension;
+        final boolean pin = pinPreloaded();
+
+        // stub -> File or URL.  filesystem first, same precedence as _get()
+        Map<String,Object> sources = new LinkedHashMap<String,Object>();
+        findTemplateFiles(sources, extension);
+        findTemplateResources(sources, extension);
+
+        ExecutorService ownPool = null;
+        if (executor == null) {
+            int threads = Math.max(1, Math.min(sources.size(), Runtime.getRuntime().availableProcessors()));
+            ownPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "chunk-warmup");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor = ownPool;
+        }
+
+        final AtomicInteger templateCount = new AtomicInteger();
+        final AtomicInteger errorCount = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(sources.size());
+
+        try {
+            for (Map.Entry<String,Object> source : sources.entrySet()) {
+                final String stub = source.getKey();
+                final Object location = source.getValue();
+                Runnable job = new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            List<String> refs;
+                            if (location instanceof File) {
+                                refs = importTemplateFile((File)location, stub, extension, pin);
+                            } else {
+                                refs = importTemplateResource((URL)location, stub, extension, pin);
+                            }
+                            int count = 0;
+                            for (String ref : refs) {
+                                // one literal copy per doclet
+                                if (ref.startsWith("_CLEAN_:")) count++;
+                            }
+                            templateCount.addAndGet(count);
+                        } catch (IOException e) {
+                            errorCount.incrementAndGet();
+                        } catch (RuntimeException e) {
+                            errorCount.incrementAndGet();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                };
+                try {
+                    executor.execute(job);
+                } catch (RejectedExecutionException e) {
+                    job.run();
+                }
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (ownPool != null) ownPool.shutdown();
+        }
+
+        String layer = (layerName == null) ? null : layerName.replaceAll("[\\\\/]+$", "");
+        long elapsed = System.currentTimeMillis() - start;
+
+        return new WarmUpReport(layer, sources.size(), templateCount.get(), errorCount.get(), elapsed);
+    }
+
+    private void findTemplateFiles(Map<String,Object> sources, String extension)
+    {
+        // default templatePath is the working directory -- don't crawl that.
+        if (templatePath == null || templatePath.length() == 0) return;
+
+        File folder = new File(templatePath);
+        if (folder.isDirectory()) {
+            findTemplateFiles(sources, folder, "", "." + extension);
+        }
+    }
+
+    private void findTemplateFiles(Map<String,Object> sources, File folder, String prefix, String suffix)
+    {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                findTemplateFiles(sources, file, prefix + name + "/", suffix);
+            } else if (name.endsWith(suffix)) {
+                String stub = prefix + name.substring(0, name.length() - suffix.length());
+                if (!sources.containsKey(stub)) sources.put(stub, file);
+            }
+        }
+    }
+
+    private void findTemplateResources(Map<String,Object> sources, String extension)
+    {
+        String folder = classpathThemesFolder;
+        if (layerName != null) folder += layerName;
+        folder = Path.ensureTrailingPathSeparator(folder.replace('\\','/')).replaceFirst("^/+", "");
+        String suffix = "." + extension;
+
+        ClassLoader loader = (classInJar == null) ? null : classInJar.getClassLoader();
+        if (loader == null) loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) loader = TemplateSet.class.getClassLoader();
+
+        Set<String> jarsSeen = new HashSet<String>();
+        try {
+            Enumeration<URL> folders = loader.getResources(folder);
+            while (folders.hasMoreElements()) {
+                URL url = folders.nextElement();
+                if (url.getProtocol().equals("file")) {
+                    File dir = new File(URLDecoder.decode(url.getPath(), "UTF-8"));
+                    findTemplateResources(sources, dir, "", suffix);
+                } else if (url.getProtocol().equals("jar")) {
+                    String jarURL = url.toString();
+                    jarsSeen.add(jarURL.substring(0, jarURL.indexOf("!/") + 2));
+                    findTemplateResources(sources, url, folder, suffix);
+                }
+            }
+        } catch (IOException e) {
+        }
+
+        // jars built without folder entries don't show up above, so
+        // check the jars in the classpath too, same as fishForTemplate.
+        String cp = System.getProperty("java.class.path");
+        if (cp == null) return;
+
+        for (String jar : cp.split(System.getProperty("path.separator"))) {
+            if (!jar.endsWith(".jar")) continue;
+            String jarRoot = new File(jar).getAbsoluteFile().toURI().toString();
+            jarRoot = "jar:" + jarRoot + "!/";
+            if (jarsSeen.contains(jarRoot)) continue;
+            try {
+                findTemplateResources(sources, new URL(jarRoot + folder), folder, suffix);
+            } catch (java.net.MalformedURLException e) {
+            }
+        }
+    }
+
+    private void findTemplateResources(Map<String,Object> sources, File dir, String prefix, String suffix)
+    {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                findTemplateResources(sources, file, prefix + name + "/", suffix);
+            } else if (name.endsWith(suffix)) {
+                String stub = prefix + name.substring(0, name.length() - suffix.length());
+                if (sources.containsKey(stub)) continue;
+                try {
+                    sources.put(stub, file.toURI().toURL());
+                } catch (java.net.MalformedURLException e) {
+                }
+            }
+        }
+    }
+
+    private void findTemplateResources(Map<String,Object> sources, URL jarFolder, String folder, String suffix)
+    {
+        String jarRoot = jarFolder.toString();
+        jarRoot = jarRoot.substring(0, jarRoot.indexOf("!/") + 2);
+
+        for (String entryName : JarResource.listFolder(jarFolder)) {
+            if (!entryName.endsWith(suffix)) continue;
+            String stub = entryName.substring(folder.length(), entryName.length() - suffix.length());
+            if (sources.containsKey(stub)) continue;
+            try {
+                sources.put(stub, new URL(jarRoot + entryName));
+            } catch (java.net.MalformedURLException e) {
+            }
+        }
+    }
+
+    /**
+     * Instead of expiring templates on a timer, watch the template files
+     * for changes and reload only the files that changed.  Uses the
+     * java.nio WatchService when available, otherwise polls file timestamps.
+     * Templates found on the classpath never expire in this mode.
+     * A file is reloaded once it has gone unchanged for a moment, so
+     * one that is still being written is not read half-finished.
+     * Call close() when done with the TemplateSet.
+     */
+    public void setWatchForChanges(boolean watch)
+    {
+        // stopping a watcher waits (a bounded time) for a reload in progress
+        watchLock.lock();
+        try {
+            toggleWatcher(watch);
+        } finally {
+            watchLock.unlock();
+        }
+    }
+
+    private void toggleWatcher(boolean watch)
+    {
+        if (watch == (watcher != null)) return;
+
+        if (watch) {
+            watchListener = new TemplateWatcher.Listener() {
+                public void templateFileChanged(File file)
+                {
+                    reimportTemplateFile(file);
+                }
+            };
+            TemplateWatcher w = TemplateWatcher.create(watchListener, WATCH_POLL_MILLIS);
+            this.watcher = w;
+            // pick up anything loaded before watching was switched on
+            for (ImportedFile imported : importedFiles.values()) {
+                w.watch(imported.file);
+            }
+        } else {
+            watcher.stop();
+            watcher = null;
+            watchListener = null;
+        }
+        cache.setTimeToLive(cacheTimeToLive());
+    }
+
+    public boolean isWatchingForChanges()
+    {
+        return watcher != null;
+    }
+
+    /**
+     * Stops the watcher thread, if setWatchForChanges(true) started one.
+     * A reload already under way is given a few seconds to finish before
+     * this returns.  Templates can still be used afterwards, they just
+     * expire on the dirty interval again.  A TemplateSet that is dropped without
+     * close() has its watcher stop by itself, eventually.
+     */
+    public void close()
+    {
+        setWatchForChanges(false);
+    }
+
+    /**
+     * Caps the number of parsed templates kept in memory.  Least recently
+     * used templates are evicted first.  Only applies to the default cache.
+     * @param maxEntries zero or less for no limit.
+     */
+    public void setMaxCacheEntries(int maxEntries)
+    {
+        if (cache instanceof LRUTemplateCache) {
+            ((LRUTemplateCache)cache).setMaxEntries(maxEntries);
+        }
+    }
+
+    /**
+     * Report template cache lookups, and render timings of chunks made
+     * by this TemplateSet, to this listener.
+     * @param instrumentation null to turn off.
+     */
+    public void setInstrumentation(RenderInstrumentation instrumentation)
+    {
+        this.instrumentation = instrumentation;
+    }
+
+    public RenderInstrumentation getInstrumentation()
+    {
+        return instrumentation;
+    }
+
+    /**
+     * Replaces the default template cache.  Time-to-live will be set
+     * to match this TemplateSet's dirty interval.
+     */
+    public void setCache(TemplateCache cache)
+    {
+        if (cache == null) return;
+        cache.setTimeToLive(cacheTimeToLive());
+        this.cache = cache;
+    }
+
+    /**
+     * @return the template cache, eg for checking hit/miss/eviction counts.
+     */
+    public TemplateCache getCache()
+    {
+        return cache;
     }
 
     /**
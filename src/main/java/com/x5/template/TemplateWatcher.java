@@ -0,0 +1,138 @@
+package com.x5.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Watches template files on disk and reports changes, so a TemplateSet
+ * can reload just the affected templates instead of expiring everything
+ * on a timer.
+ *
+ * <P>
+ * Editors often write a file in several steps, so a change is only
+ * reported once the file has gone quiet for SETTLE_MILLIS.  The listener
+ * is held weakly: if its TemplateSet is dropped without being closed,
+ * the watcher thread notices and stops.
+ */
+abstract class TemplateWatcher
+{
+    interface Listener
+    {
+        public void templateFileChanged(File file);
+    }
+
+    // wait this long after the last change to a file before reporting it
+    static final long SETTLE_MILLIS = 100;
+    // how often an idle watcher checks that its listener is still around
+    static final long IDLE_MILLIS = 1000;
+    // how long stop() waits for a reload in progress to finish
+    static final long STOP_WAIT_MILLIS = 5000;
+
+    private final WeakReference<Listener> listener;
+    // file -> when it will have settled.  watcher thread only.
+    private final Map<File,Long> pending = new HashMap<File,Long>();
+
+    TemplateWatcher(Listener listener)
+    {
+        this.listener = new WeakReference<Listener>(listener);
+    }
+
+    abstract void watch(File file);
+
+    /**
+     * Stop watching.  Waits up to STOP_WAIT_MILLIS for a reload in
+     * progress to finish, unless called from the watcher thread itself.
+     */
+    abstract void stop();
+
+    /**
+     * @return true once the listener has been garbage collected.
+     */
+    protected boolean isOrphaned()
+    {
+        return listener.get() == null;
+    }
+
+    // package-private so tests can control the clock
+    long now()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Note a change, to be reported once the file settles.  Another change
+     * in the meantime restarts the wait.
+     */
+    protected void changed(File file)
+    {
+        pending.put(file, Long.valueOf(now() + SETTLE_MILLIS));
+    }
+
+    /**
+     * Report the changed files that have settled.
+     * @return millis until the next pending file settles, or -1 if
+     * nothing is pending.
+     */
+    protected long firePending()
+    {
+        if (pending.isEmpty()) return -1;
+
+        long now = now();
+        long next = -1;
+        Iterator<Map.Entry<File,Long>> i = pending.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<File,Long> entry = i.next();
+            long wait = entry.getValue().longValue() - now;
+            if (wait <= 0) {
+                i.remove();
+                fireChanged(entry.getKey());
+            } else if (next < 0 || wait < next) {
+                next = wait;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Wait for a stopped watcher thread to finish what it was doing.
+     */
+    protected static void awaitExit(Thread thread)
+    {
+        if (thread == Thread.currentThread()) return;
+        try {
+            thread.join(STOP_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void fireChanged(File file)
+    {
+        Listener l = listener.get();
+        if (l == null) return;
+        try {
+            l.templateFileChanged(file);
+        } catch (RuntimeException e) {
+            // don't let one bad template kill the watcher thread
+            e.printStackTrace(System.err);
+        }
+    }
+
+    static TemplateWatcher create(Listener listener, long pollMillis)
+    {
+        // java.nio.file is missing before java 7 and on older android.
+        // Test for existence before use...
+        try {
+            Class<?> watchClass = Class.forName("java.nio.file.WatchService");
+            return new NioTemplateWatcher(listener);
+        } catch (ClassNotFoundException e) {
+        } catch (IOException e) {
+        } catch (UnsupportedOperationException e) {
+        }
+        return new PollingTemplateWatcher(listener, pollMillis);
+    }
+}
@@ -4,7 +4,9 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import com.x5.template.filters.ChunkFilter;
 import com.x5.template.providers.TranslationsProvider;
@@ -21,6 +23,11 @@ public class Theme implements ContentSource, ChunkFactory
     private String themeLayerNames;
     private String fileExtension;
     private int cacheMins = 0;
+    private int cacheMaxEntries = LRUTemplateCache.DEFAULT_MAX_ENTRIES;
+    private boolean watchForChanges = false;
+    private volatile RenderInstrumentation instrumentation = null;
+    private volatile Executor renderExecutor = null;
+    private volatile SnippetCache snippetCache = new SnippetCache();
 
     private String localeCode = null;
     private boolean hardFailMissingTemplate = false;
@@ -36,6 +43,14 @@ public class Theme implements ContentSource, ChunkFactory
     {
         this(config.getThemeFolder(), config.getLayerNames(), config.getDefaultExtension());
         this.setDirtyInterval(config.getCacheMinutes());
+        this.setMaxCacheEntries(config.getCacheMaxEntries());
+        long snippetCacheSize = config.getSnippetCacheSize();
+        if (snippetCacheSize >= 0) {
+            this.setSnippetCache(snippetCacheSize == 0 ? null : new SnippetCache(snippetCacheSize, null));
+        }
+        if (config.watchForChanges()) {
+            this.setWatchForChanges(true);
+        }
         this.localeCode = config.getLocaleCode();
         if (config.hideErrors()) {
             this.setErrorHandling(false, config.getErrorLog());
@@ -144,6 +159,9 @@ public class Theme implements ContentSource, ChunkFactory
         String[] layerNames = parseLayerNames(themeLayerNames);
         if (layerNames == null) {
             TemplateSet simple = new TemplateSet(classpathThemesFolder, themesFolder, fileExtension, cacheMins);
+            simple.setMaxCacheEntries(cacheMaxEntries);
+            simple.setInstrumentation(instrumentation);
+            if (watchForChanges) simple.setWatchForChanges(true);
             if (!renderErrs) simple.signalFailureWithNull();
             if (hardFailMissingTemplate) simple.setHardFail(true);
             simple.setTranslationsProvider(translationsProvider);
@@ -152,6 +170,9 @@ public class Theme implements ContentSource, ChunkFactory
             for (int i=0; i<layerNames.length; i++) {
                 TemplateSet x = new TemplateSet(classpathThemesFolder, themesFolder + layerNames[i], fileExtension, cacheMins);
                 x.setLayerName(layerNames[i]);
+                x.setMaxCacheEntries(cacheMaxEntries);
+                x.setInstrumentation(instrumentation);
+                if (watchForChanges) x.setWatchForChanges(true);
                 x.setTranslationsProvider(translationsProvider);
                 // do not return pretty HTML-formatted error strings
                 // when template can not be located -- with multiple
@@ -203,6 +224,149 @@ public class Theme implements ContentSource, ChunkFactory
         }
     }
 
+    /**
+     * Caps the number of parsed templates each layer keeps in memory.
+     * @param maxEntries zero or less for no limit.
+     */
+    public void setMaxCacheEntries(int maxEntries)
+    {
+        if (this.themeLayers.size() == 0) {
+            // lazy init has not happened yet
+            this.cacheMaxEntries = maxEntries;
+        } else {
+            ArrayList<TemplateSet> templateSets = getTemplateSets();
+            if (templateSets != null) {
+                for (TemplateSet layer : templateSets) {
+                    layer.setMaxCacheEntries(maxEntries);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reload templates as soon as their files change on disk, instead
+     * of expiring them every few minutes.  See TemplateSet.setWatchForChanges()
+     */
+    public void setWatchForChanges(boolean watch)
+    {
+        if (this.themeLayers.size() == 0) {
+            // lazy init has not happened yet
+            this.watchForChanges = watch;
+        } else {
+            ArrayList<TemplateSet> templateSets = getTemplateSets();
+            if (templateSets != null) {
+                for (TemplateSet layer : templateSets) {
+                    layer.setWatchForChanges(watch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops any watcher threads started by setWatchForChanges(true).
+     */
+    public void close()
+    {
+        setWatchForChanges(false);
+    }
+
+    /**
+     * Report render timings, loop row counts and template cache lookups
+     * to this listener, eg a RenderMetrics.  Applies to chunks made
+     * from now on.
+     * @param instrumentation null to turn off (the default).
+     */
+    public void setInstrumentation(RenderInstrumentation instrumentation)
+    {
+        this.instrumentation = instrumentation;
+        if (this.themeLayers.size() > 0) {
+            ArrayList<TemplateSet> templateSets = getTemplateSets();
+            if (templateSets != null) {
+                for (TemplateSet layer : templateSets) {
+                    layer.setInstrumentation(instrumentation);
+                }
+            }
+        }
+    }
+
+    public RenderInstrumentation getInstrumentation()
+    {
+        return instrumentation;
+    }
+
+    /**
+     * Render includes and async tag values in parallel on this executor
+     * (see Chunk.setRenderExecutor).  Applies to chunks made from now on.
+     * @param executor null to render sequentially (the default).
+     */
+    public void setRenderExecutor(Executor executor)
+    {
+        this.renderExecutor = executor;
+    }
+
+    public Executor getRenderExecutor()
+    {
+        return renderExecutor;
+    }
+
+    /**
+     * Each theme keeps its own cache of template text parsed at render
+     * time (see SnippetCache).  Applies to chunks made from now on.
+     * @param cache null to parse every time.
+     */
+    public void setSnippetCache(SnippetCache cache)
+    {
+        this.snippetCache = cache;
+    }
+
+    public SnippetCache getSnippetCache()
+    {
+        return snippetCache;
+    }
+
+    /**
+     * Loads precompiled templates for each layer, where a bundle is
+     * present (see TemplateBundle).  Out-of-date entries are skipped and
+     * will be parsed from source as usual.
+     * @return number of templates loaded from bundles.
+     */
+    public int loadBundles()
+    {
+        int count = 0;
+        ArrayList<TemplateSet> templateSets = getTemplateSets();
+        if (templateSets != null) {
+            for (TemplateSet layer : templateSets) {
+                count += layer.loadBundle();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parses every template in every layer up front, so the first
+     * requests after startup don't pay for it.  See TemplateSet.warmUp()
+     * @return one report per layer (template counts, time spent).
+     */
+    public List<WarmUpReport> preload()
+    {
+        return preload(null);
+    }
+
+    /**
+     * @param executor runs the parse jobs; a temporary thread pool is used if null.
+     */
+    public List<WarmUpReport> preload(Executor executor)
+    {
+        List<WarmUpReport> reports = new ArrayList<WarmUpReport>();
+        ArrayList<TemplateSet> templateSets = getTemplateSets();
+        if (templateSets != null) {
+            for (TemplateSet layer : templateSets) {
+                reports.add(layer.warmUp(executor));
+            }
+        }
+        return reports;
+    }
+
     public Snippet getSnippet(String templateName, String ext)
     {
         ArrayList<ContentSource> layers = getThemeLayers();
@@ -333,6 +497,9 @@ public class Theme implements ContentSource, ChunkFactory
         shareContentSources(c);
         c.setLocale(localeCode);
         c.setErrorHandling(renderErrs, errLog);
+        c.setInstrumentation(instrumentation);
+        c.setRenderExecutor(renderExecutor);
+        c.setSnippetCache(snippetCache);
         return c;
     }
 
@@ -356,6 +523,9 @@ public class Theme implements ContentSource, ChunkFactory
         shareContentSources(c);
         c.setLocale(localeCode);
         c.setErrorHandling(renderErrs, errLog);
+        c.setInstrumentation(instrumentation);
+        c.setRenderExecutor(renderExecutor);
+        c.setSnippetCache(snippetCache);
         return c;
     }
 
@@ -380,6 +550,9 @@ public class Theme implements ContentSource, ChunkFactory
         shareContentSources(c);
         c.setLocale(localeCode);
         c.setErrorHandling(renderErrs, errLog);
+        c.setInstrumentation(instrumentation);
+        c.setRenderExecutor(renderExecutor);
+        c.setSnippetCache(snippetCache);
         return c;
     }
 
@@ -17,6 +17,9 @@ public class ThemeConfig
     public static final String LAYER_NAMES = "layers";
     public static final String DEFAULT_EXT = "default_extension";
     public static final String CACHE_MINUTES = "cache_minutes";
+    public static final String CACHE_MAX_ENTRIES = "cache_max_entries";
+    public static final String SNIPPET_CACHE_SIZE = "snippet_cache_size";
+    public static final String WATCH_FILES = "watch_files";
     public static final String THROW_ERRORS = "throw_errors";
     public static final String HIDE_ERRORS = "hide_errors";
     public static final String ERROR_LOG = "error_log";
@@ -32,10 +35,13 @@ public class ThemeConfig
     private String layerNames = null;
     private String defaultExtension = STANDARD_DEFAULT_EXT;
     private int cacheMinutes = 0;
+    private int cacheMaxEntries = LRUTemplateCache.DEFAULT_MAX_ENTRIES;
+    private long snippetCacheSize = -1;
     private String locale = null;
     private String encoding = null;
     private boolean throwErrors = false;
     private boolean hideErrors = false;
+    private boolean watchFiles = false;
     private PrintStream errorLog = null;
     private ChunkFilter[] filters = null;
 
@@ -72,10 +78,28 @@ public class ThemeConfig
             } catch (NumberFormatException e) {
                 System.err.println("Chunk Theme config error: cache_minutes must be a number.");
             }
+        } else if (configKey.equals(CACHE_MAX_ENTRIES)) {
+            if (value == null) return;
+            try {
+                this.cacheMaxEntries = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                System.err.println("Chunk Theme config error: cache_max_entries must be a number.");
+            }
+        } else if (configKey.equals(SNIPPET_CACHE_SIZE)) {
+            if (value == null) return;
+            try {
+                this.snippetCacheSize = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                System.err.println("Chunk Theme config error: snippet_cache_size must be a number.");
+            }
         } else if (configKey.equals(THROW_ERRORS)) {
             if (value != null && !value.equalsIgnoreCase("FALSE")) {
                 this.throwErrors = true;
             }
+        } else if (configKey.equals(WATCH_FILES)) {
+            if (value != null && !value.equalsIgnoreCase("FALSE")) {
+                this.watchFiles = true;
+            }
         } else if (configKey.equals(HIDE_ERRORS)) {
             if (value != null && !value.equalsIgnoreCase("FALSE")) {
                 this.hideErrors = true;
@@ -199,6 +223,20 @@ public class ThemeConfig
         return this.cacheMinutes;
     }
 
+    public int getCacheMaxEntries()
+    {
+        return this.cacheMaxEntries;
+    }
+
+    /**
+     * @return max chars of parsed template text to cache per theme, 0 for
+     * no cache, or -1 for the default.
+     */
+    public long getSnippetCacheSize()
+    {
+        return this.snippetCacheSize;
+    }
+
     public String getLocaleCode()
     {
         return this.locale;
@@ -214,6 +252,11 @@ public class ThemeConfig
         return this.throwErrors;
     }
 
+    public boolean watchForChanges()
+    {
+        return this.watchFiles;
+    }
+
     public boolean hideErrors()
     {
         return this.hideErrors;
@@ -0,0 +1,75 @@
+package com.x5.template;
+
+/**
+ * Summary of a TemplateSet.warmUp() pass, one per theme layer.
+ */
+public class WarmUpReport
+{
+    private final String layerName;
+    private final int fileCount;
+    private final int templateCount;
+    private final int errorCount;
+    private final long elapsedMillis;
+
+    WarmUpReport(String layerName, int fileCount, int templateCount, int errorCount, long elapsedMillis)
+    {
+        this.layerName = layerName;
+        this.fileCount = fileCount;
+        this.templateCount = templateCount;
+        this.errorCount = errorCount;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return layer name, or null for a single-layer theme.
+     */
+    public String getLayerName()
+    {
+        return layerName;
+    }
+
+    public int getFileCount()
+    {
+        return fileCount;
+    }
+
+    /**
+     * @return number of templates (including subtemplates) parsed and cached.
+     */
+    public int getTemplateCount()
+    {
+        return templateCount;
+    }
+
+    /**
+     * @return number of template files that could not be read.
+     */
+    public int getErrorCount()
+    {
+        return errorCount;
+    }
+
+    public long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+
+    public String toString()
+    {
+        StringBuilder report = new StringBuilder();
+        report.append(layerName == null ? "templates" : "layer " + layerName);
+        report.append(": ");
+        report.append(templateCount);
+        report.append(" templates from ");
+        report.append(fileCount);
+        report.append(" files in ");
+        report.append(elapsedMillis);
+        report.append("ms");
+        if (errorCount > 0) {
+            report.append(" (");
+            report.append(errorCount);
+            report.append(" errors)");
+        }
+        return report.toString();
+    }
+}
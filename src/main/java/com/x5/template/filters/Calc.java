@@ -1,11 +1,16 @@
 package com.x5.template.filters;
 
+import org.cheffo.jeplite.ASTVarNode;
 import org.cheffo.jeplite.JEP;
 import org.cheffo.jeplite.ParseException;
+import org.cheffo.jeplite.util.DoubleStack;
 import java.text.NumberFormat;
 import java.text.DecimalFormat;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.x5.util.BoundedCache;
 
 /***
  * Calc supports an experimental tag filter and template function that allows
@@ -17,37 +22,81 @@ import java.util.ArrayList;
  * {$width|calc(*2)}
  * {^calc("sqrt($x^2 + $y^2)",$width,$height)} {!-- hypotenuse --}
  * {^calc("sin(pi/4)")|sprintf(%.02f)} {!-- sqrt(2)/2 I think? --}
+ *
+ * Each distinct expression is parsed once.  The parse tree is kept in a
+ * bounded cache along with its variable nodes, so evaluating it again just
+ * binds the new numbers and walks the tree.  jeplite trees hold their
+ * variable values, so each thread borrows its own copy from a small pool.
  */
 
 public class Calc
 {
+    static final int MAX_CACHED = 500;
+
+    // .calc("...") tag text -> parsed call
+    private static final BoundedCache<String,CalcCall> calls
+        = new BoundedCache<String,CalcCall>(MAX_CACHED);
+    // jeplite expression -> parse trees ready to evaluate
+    private static final BoundedCache<String,Expression> expressions
+        = new BoundedCache<String,Expression>(MAX_CACHED);
+    // DecimalFormat is not thread-safe, so keep a few of each on hand
+    private static final BoundedCache<String,ConcurrentLinkedQueue<NumberFormat>> formats
+        = new BoundedCache<String,ConcurrentLinkedQueue<NumberFormat>>(MAX_CACHED);
+
     public static String evalCalc(String calc, Map<String,Object> vars)
+    {
+        CalcCall call = calls.get(calc);
+        if (call == null) {
+            call = parseCall(calc);
+            if (call == null) return null;
+            calls.put(calc, call);
+        }
+
+        String[] varValues = null;
+        if (call.varNames != null && call.argNames != null) {
+            varValues = grokVarValues(call.argNames, vars);
+        }
+
+        try {
+            return evalExpression(call.jepExpr, call.fmt, call.varNames, varValues);
+        } catch (NumberFormatException e) {
+            StringBuilder input = new StringBuilder();
+            if (varValues != null) {
+                for (int i=0; i<varValues.length; i++) {
+                    if (i>0) input.append(",");
+                    input.append(varValues[i]);
+                }
+            }
+            return "[error evaluating expression - '"+call.expr+"' - input ("+input+") must be numeric]";
+        }
+    }
+
+    private static CalcCall parseCall(String calc)
     {
         int quote1 = calc.indexOf("\"");
         if (quote1 < 0) return null;
         int quote2 = calc.indexOf("\"",quote1+1);
         if (quote2 < 0) return null;
 
-        String expr = calc.substring(quote1+1,quote2);
+        CalcCall call = new CalcCall();
+        call.expr = calc.substring(quote1+1,quote2);
 
         int argStart = quote2+1;
 
         // optional -- format string
-        String fmt = null;
         int quote3 = calc.indexOf("\"",quote2+1);
         if (quote3 > 0) {
             int quote4 = calc.indexOf("\"",quote3+1);
             if (quote4 > 0) {
-                fmt = calc.substring(quote3+1,quote4);
+                call.fmt = calc.substring(quote3+1,quote4);
                 argStart = quote4+1;
             }
         }
 
-        String[] varNames = parseVarNames(expr);
-        String[] varValues = null;
-        String jepExpr = expr;
-        if (varNames != null) {
-            jepExpr = jepExpr.replaceAll("\\$","V");
+        call.varNames = parseVarNames(call.expr);
+        call.jepExpr = call.expr;
+        if (call.varNames != null) {
+            call.jepExpr = call.expr.replace('$','V');
 
             int comma = calc.indexOf(",",argStart);
             if (comma > 0) {
@@ -59,32 +108,15 @@ public class Calc
 
             String tagNames = calc.substring(argStart, closeParen);
             String[] tagNameList = tagNames.split(",");
-            if (tagNameList != null) {
-                varValues = grokVarValues(tagNameList, vars);
+            for (int i=0; i<tagNameList.length; i++) {
+                String key = tagNameList[i].trim();
+                if (key.startsWith("~") || key.startsWith("$")) key = key.substring(1);
+                tagNameList[i] = key;
             }
+            call.argNames = tagNameList;
         }
 
-        /*
-        System.err.println(expr);
-        System.err.println(fmt);
-        if (varNames != null) {
-            for (int i=0; i<varNames.length; i++) {
-                System.err.println(varNames[i]+" = "+varValues[i]);
-            }
-        }*/
-
-        try {
-            return evalExpression(jepExpr, fmt, varNames, varValues);
-        } catch (NumberFormatException e) {
-            StringBuilder input = new StringBuilder();
-            if (varValues != null) {
-                for (int i=0; i<varValues.length; i++) {
-                    if (i>0) input.append(",");
-                    input.append(varValues[i]);
-                }
-            }
-            return "[error evaluating expression - '"+expr+"' - input ("+input+") must be numeric]";
-        }
+        return call;
     }
 
     static String[] grokVarValues(String[] varList, Map<String,Object> vars)
@@ -147,6 +179,44 @@ public class Calc
     }
 
     public static String evalExpression(String expr, String fmt, String[] varNames, String[] varValues)
+    {
+        if (varNames != null && (varValues == null || varNames.length > varValues.length)) {
+            // unbound variables, can't use a cached tree
+            return evalUncached(expr, fmt, varNames, varValues);
+        }
+
+        Expression compiled = expressions.get(expr);
+        if (compiled == null) {
+            compiled = new Expression(expr, varNames);
+            expressions.put(expr, compiled);
+        } else if (!compiled.hasVarNames(varNames)) {
+            // same expression text, different variable list?  shouldn't happen
+            return evalUncached(expr, fmt, varNames, varValues);
+        }
+
+        // parse the numbers before borrowing a tree, bad input throws
+        double[] values = null;
+        if (varNames != null) {
+            values = new double[varNames.length];
+            for (int i=0; i<varNames.length; i++) {
+                String val = varValues[i];
+                if (val != null) values[i] = Double.parseDouble(val);
+            }
+        }
+
+        // evaluate the expression and format the result
+        try {
+            return formatResult(compiled.evaluate(values), fmt);
+        } catch (ParseException e) {
+            e.printStackTrace(System.err);
+            return e.getMessage();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            return e.getMessage();
+        }
+    }
+
+    private static String evalUncached(String expr, String fmt, String[] varNames, String[] varValues)
     {
         JEP jep = new JEP();
         jep.addStandardConstants();
@@ -169,23 +239,7 @@ public class Calc
         try {
 
             jep.parseExpression(expr);
-            double result = jep.getValue();
-
-            if (fmt == null) return Double.toString(result);
-
-            // format, bails w/no format if problematic
-            try {
-                if (fmt.startsWith("%")) {
-                    return String.format(fmt, result);
-                } else {
-                    NumberFormat formatter = new DecimalFormat(fmt);
-                    return formatter.format(result);
-                }
-            } catch (NumberFormatException e) {
-                return Double.toString(result);
-            } catch (java.util.IllegalFormatException e) {
-                return Double.toString(result);
-            }
+            return formatResult(jep.getValue(), fmt);
 
         } catch (ParseException e) {
             e.printStackTrace(System.err);
@@ -195,4 +249,113 @@ public class Calc
             return e.getMessage();
         }
     }
+
+    private static String formatResult(double result, String fmt)
+    {
+        if (fmt == null) return Double.toString(result);
+
+        // format, bails w/no format if problematic
+        try {
+            if (fmt.startsWith("%")) {
+                return String.format(fmt, result);
+            } else {
+                ConcurrentLinkedQueue<NumberFormat> idle = formats.get(fmt);
+                if (idle == null) {
+                    idle = new ConcurrentLinkedQueue<NumberFormat>();
+                    ConcurrentLinkedQueue<NumberFormat> existing = formats.putIfAbsent(fmt, idle);
+                    if (existing != null) idle = existing;
+                }
+                NumberFormat formatter = idle.poll();
+                if (formatter == null) formatter = new DecimalFormat(fmt);
+                String formatted = formatter.format(result);
+                idle.offer(formatter);
+                return formatted;
+            }
+        } catch (NumberFormatException e) {
+            return Double.toString(result);
+        } catch (java.util.IllegalFormatException e) {
+            return Double.toString(result);
+        }
+    }
+
+    private static class CalcCall
+    {
+        String expr;
+        String fmt;
+        String jepExpr;
+        String[] varNames;
+        String[] argNames;
+    }
+
+    private static class Expression
+    {
+        private final String expr;
+        private final String[] varNames;
+        private final ConcurrentLinkedQueue<Tree> idle = new ConcurrentLinkedQueue<Tree>();
+
+        Expression(String expr, String[] varNames)
+        {
+            this.expr = expr;
+            this.varNames = varNames;
+        }
+
+        boolean hasVarNames(String[] names)
+        {
+            return java.util.Arrays.equals(varNames, names);
+        }
+
+        double evaluate(double[] values)
+        throws ParseException
+        {
+            Tree tree = idle.poll();
+            if (tree == null) tree = new Tree(expr, varNames);
+            try {
+                return tree.evaluate(values);
+            } finally {
+                idle.offer(tree);
+            }
+        }
+    }
+
+    // one parsed copy of an expression -- not thread-safe, the variable
+    // values live in the tree itself.
+    private static class Tree
+    {
+        private final JEP jep;
+        private final ASTVarNode[] vars;
+        private final DoubleStack stack = new DoubleStack();
+
+        Tree(String expr, String[] varNames)
+        {
+            jep = new JEP();
+            jep.addStandardConstants();
+            jep.addStandardFunctions();
+
+            if (varNames == null) {
+                vars = null;
+            } else {
+                vars = new ASTVarNode[varNames.length];
+                for (int i=0; i<varNames.length; i++) {
+                    String var = varNames[i];
+                    if (var == null) continue;
+                    jep.addVariable(var, 0.0d);
+                    vars[i] = jep.getVarNode(var);
+                }
+            }
+
+            jep.parseExpression(expr);
+        }
+
+        double evaluate(double[] values)
+        throws ParseException
+        {
+            if (vars != null) {
+                for (int i=0; i<vars.length; i++) {
+                    if (vars[i] != null) vars[i].setValue(values[i]);
+                }
+            }
+            stack.removeAllElements();
+            return jep.getValue(stack);
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package com.x5.template.filters;
 
 import com.x5.template.Chunk;
+import com.x5.util.BoundedCache;
 
 public class CalcFilter extends BasicFilter implements ChunkFilter
 {
@@ -28,16 +29,10 @@ public class CalcFilter extends BasicFilter implements ChunkFilter
             fmt = args[args.length-1];
         }
 
-        if (expr.indexOf("$x") < 0) {
-            expr = "$_input_" + expr;
-        } else {
-            expr = expr.replace("$x", "$_input_");
-        }
         try {
-            String[] varNames = Calc.parseVarNames(expr);
-            String[] varValues = grokVarValues(context, varNames, text);
-            String jepExpr = expr.replace('$', 'V');
-            return Calc.evalExpression(jepExpr, fmt, varNames, varValues);
+            ParsedExpr parsed = parseExpr(expr);
+            String[] varValues = grokVarValues(context, parsed.varNames, text);
+            return Calc.evalExpression(parsed.jepExpr, fmt, parsed.varNames, varValues);
         } catch (NumberFormatException e) {
             // not a number?  no-op
             return text;
@@ -46,6 +41,36 @@ public class CalcFilter extends BasicFilter implements ChunkFilter
         }
     }
 
+    private static class ParsedExpr
+    {
+        String jepExpr;
+        String[] varNames;
+    }
+
+    // filter arg -> expression ready for jeplite
+    private static final BoundedCache<String,ParsedExpr> parsedExprs
+        = new BoundedCache<String,ParsedExpr>(Calc.MAX_CACHED);
+
+    private static ParsedExpr parseExpr(String arg)
+    {
+        ParsedExpr parsed = parsedExprs.get(arg);
+        if (parsed != null) return parsed;
+
+        String expr = arg;
+        if (expr.indexOf("$x") < 0) {
+            expr = "$_input_" + expr;
+        } else {
+            expr = expr.replace("$x", "$_input_");
+        }
+
+        parsed = new ParsedExpr();
+        parsed.varNames = Calc.parseVarNames(expr);
+        parsed.jepExpr = expr.replace('$', 'V');
+
+        parsedExprs.put(arg, parsed);
+        return parsed;
+    }
+
     private static String[] grokVarValues(Chunk context, String[] varNames, String input)
     {
         String[] varValues = new String[varNames.length];
@@ -0,0 +1,264 @@
+package com.x5.template.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.x5.template.Chunk;
+import com.x5.util.BoundedCache;
+
+/**
+ * A perl-style s/find/replace/gmi expression, parsed and compiled once.
+ *
+ * <P>
+ * Holds the compiled Pattern plus the replacement string broken down into
+ * literal text and group references, so applying it only costs a Matcher.
+ * Instances are immutable and shared between threads via a bounded cache
+ * -- use CompiledRegex.compile(regex) rather than the constructor.
+ */
+public final class CompiledRegex
+{
+    static final int MAX_CACHED = 500;
+    private static final BoundedCache<String,CompiledRegex> cache
+        = new BoundedCache<String,CompiledRegex>(MAX_CACHED);
+
+    private static final Pattern UPPER_BLOCK = Pattern.compile("!U@(.*?)@U!");
+    private static final Pattern LOWER_BLOCK = Pattern.compile("!L@(.*?)@L!");
+    private static final Pattern CASE_CONVERSION = Pattern.compile("\\\\([UL])[\\$\\\\](\\d)");
+
+    private final String regex;
+    // null if regex is missing its delimiters
+    private final Pattern pattern;
+    private final boolean greedy;
+    private final boolean caseConversions;
+    // java replacement string, for when the plan can't be used
+    private final String replaceWith;
+    // literal Strings and Integer group refs, in order.  null if the
+    // replacement uses syntax the plan does not cover (eg named groups)
+    private final Object[] plan;
+    // bad group reference, reported on each use like the old replaceAll did
+    private final String planError;
+
+    /**
+     * @return a compiled, possibly shared, version of this regex.
+     */
+    public static CompiledRegex compile(String regex)
+    {
+        CompiledRegex compiled = cache.get(regex);
+        if (compiled == null) {
+            compiled = new CompiledRegex(regex);
+            cache.put(regex, compiled);
+        }
+        return compiled;
+    }
+
+    static int cacheSize()
+    {
+        return cache.size();
+    }
+
+    private CompiledRegex(String regex)
+    {
+        this.regex = regex;
+
+        // parse perl-style regex a la s/find/replace/gmi
+        int patternStart = 1;
+        if (regex.charAt(0) == 's') patternStart = 2;
+        int patternEnd = RegexFilter.nextRegexDelim(regex, patternStart);
+        int replaceEnd = patternEnd < 0 ? -1 : RegexFilter.nextRegexDelim(regex, patternEnd+1);
+
+        // if the regex is not legal (missing delimiters), it's a no-op
+        if (replaceEnd < 0) {
+            this.pattern = null;
+            this.greedy = false;
+            this.caseConversions = false;
+            this.replaceWith = null;
+            this.plan = null;
+            this.planError = null;
+            return;
+        }
+
+        boolean greedy = false;
+        int flags = 0;
+
+        for (int i=regex.length()-1; i>replaceEnd; i--) {
+            char option = regex.charAt(i);
+            if (option == 'g') greedy = true;
+            if (option == 'i') flags |= Pattern.CASE_INSENSITIVE;
+            if (option == 'm') flags |= Pattern.MULTILINE;
+            if (option == 's') flags |= Pattern.DOTALL; // dot matches newlines too
+        }
+
+        String replaceWith = regex.substring(patternEnd+1,replaceEnd);
+        replaceWith = RegexFilter.parseRegexEscapes(replaceWith);
+        // re-escape escaped backslashes, ie \ -> \\
+        replaceWith = Chunk.findAndReplace(replaceWith,"\\","\\\\");
+
+        boolean caseConversions = false;
+        Matcher m = CASE_CONVERSION.matcher(replaceWith);
+        if (m.find()) {
+            // this monkey business marks up case-conversion blocks
+            // since java's regex engine doesn't support perl-style
+            // case-conversion.  but we do :)
+            caseConversions = true;
+            replaceWith = m.replaceAll("!$1@\\$$2@$1!");
+        }
+
+        this.pattern = Pattern.compile(regex.substring(patternStart,patternEnd), flags);
+        this.greedy = greedy;
+        this.caseConversions = caseConversions;
+        this.replaceWith = replaceWith;
+
+        // break down the replacement the same way Matcher.appendReplacement does
+        int groupCount = pattern.matcher("").groupCount();
+        List<Object> plan = new ArrayList<Object>();
+        StringBuilder literal = new StringBuilder();
+        String planError = null;
+        int len = replaceWith.length();
+        for (int i=0; i<len; i++) {
+            char c = replaceWith.charAt(i);
+            if (c == '\\') {
+                i++;
+                if (i == len) {
+                    // dangling escape, leave it to the Matcher
+                    plan = null;
+                    break;
+                }
+                literal.append(replaceWith.charAt(i));
+            } else if (c == '$') {
+                i++;
+                if (i == len || !isDigit(replaceWith.charAt(i))) {
+                    // named group or illegal ref, leave it to the Matcher
+                    plan = null;
+                    break;
+                }
+                int group = replaceWith.charAt(i) - '0';
+                if (group > groupCount) {
+                    planError = "No group " + group;
+                    break;
+                }
+                // take as many digits as still make a valid group number
+                while (i+1 < len && isDigit(replaceWith.charAt(i+1))) {
+                    int nextGroup = group * 10 + (replaceWith.charAt(i+1) - '0');
+                    if (nextGroup > groupCount) break;
+                    group = nextGroup;
+                    i++;
+                }
+                if (literal.length() > 0) {
+                    plan.add(literal.toString());
+                    literal.setLength(0);
+                }
+                plan.add(Integer.valueOf(group));
+            } else {
+                literal.append(c);
+            }
+        }
+        if (plan != null && literal.length() > 0) {
+            plan.add(literal.toString());
+        }
+
+        this.plan = plan == null ? null : plan.toArray();
+        this.planError = planError;
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    public String getRegex()
+    {
+        return regex;
+    }
+
+    public Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    public String apply(String text)
+    {
+        if (pattern == null || text == null) return text;
+
+        if (planError != null) {
+            // only an error if the replacement actually gets used
+            if (!pattern.matcher(text).find()) return text;
+            return text + "[REGEX "+regex+" Error: "+planError+"]";
+        }
+
+        String result;
+        Matcher m = pattern.matcher(text);
+        if (plan == null) {
+            try {
+                result = greedy ? m.replaceAll(replaceWith) : m.replaceFirst(replaceWith);
+            } catch (IndexOutOfBoundsException e) {
+                return text + "[REGEX "+regex+" Error: "+e.getMessage()+"]";
+            }
+        } else {
+            result = replace(m, text);
+        }
+
+        if (caseConversions) {
+            return applyCaseConversions(result);
+        } else {
+            return result;
+        }
+    }
+
+    private String replace(Matcher m, String text)
+    {
+        if (!m.find()) return text;
+
+        StringBuilder buf = new StringBuilder(text.length() + 16);
+        int last = 0;
+        do {
+            buf.append(text, last, m.start());
+            for (int i=0; i<plan.length; i++) {
+                Object part = plan[i];
+                if (part instanceof String) {
+                    buf.append((String)part);
+                } else {
+                    String group = m.group(((Integer)part).intValue());
+                    if (group != null) buf.append(group);
+                }
+            }
+            last = m.end();
+        } while (greedy && m.find());
+        buf.append(text, last, text.length());
+
+        return buf.toString();
+    }
+
+    private static String applyCaseConversions(String result)
+    {
+        StringBuilder x = new StringBuilder();
+
+        Matcher m = UPPER_BLOCK.matcher(result);
+        int last = 0;
+        while (m.find()) {
+            x.append(result.substring(last, m.start()));
+            x.append(m.group(1).toUpperCase());
+            last = m.end();
+        }
+        if (last > 0) {
+            x.append(result.substring(last));
+            result = x.toString();
+            x = new StringBuilder();
+            last = 0;
+        }
+
+        m = LOWER_BLOCK.matcher(result);
+        while (m.find()) {
+            x.append(result.substring(last, m.start()));
+            x.append(m.group(1).toLowerCase());
+            last = m.end();
+        }
+        if (last > 0) {
+            x.append(result.substring(last));
+            return x.toString();
+        } else {
+            return result;
+        }
+    }
+}
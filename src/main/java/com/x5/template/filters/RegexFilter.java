@@ -31,98 +31,8 @@ public class RegexFilter extends BasicFilter implements ChunkFilter
 
     public static String applyRegex(String text, String regex)
     {
-        // parse perl-style regex a la s/find/replace/gmi
-        int patternStart = 1;
-        if (regex.charAt(0) == 's') patternStart = 2;
-        int patternEnd = nextRegexDelim(regex, patternStart);
-
-        // if the regex is not legal (missing delimiters), bail out
-        if (patternEnd < 0) return text;
-
-        int replaceEnd = nextRegexDelim(regex, patternEnd+1);
-        if (replaceEnd < 0) return text;
-
-        boolean greedy = false;
-        boolean ignoreCase = false;
-        boolean multiLine = false;
-        boolean dotAll = false;
-
-        for (int i=regex.length()-1; i>replaceEnd; i--) {
-            char option = regex.charAt(i);
-            if (option == 'g') greedy = true;
-            if (option == 'i') ignoreCase = true;
-            if (option == 'm') multiLine = true;
-            if (option == 's') dotAll = true; // dot matches newlines too
-        }
-
-        String pattern = regex.substring(patternStart,patternEnd);
-        String replaceWith = regex.substring(patternEnd+1,replaceEnd);
-        replaceWith = parseRegexEscapes(replaceWith);
-        // re-escape escaped backslashes, ie \ -> \\
-        replaceWith = Chunk.findAndReplace(replaceWith,"\\","\\\\");
-
-        if (multiLine) pattern = "(?m)" + pattern;
-        if (ignoreCase) pattern = "(?i)" + pattern;
-        if (dotAll) pattern = "(?s)" + pattern;
-
-        boolean caseConversions = false;
-        if (replaceWith.matches(".*\\\\[UL][\\$\\\\]\\d.*")) {
-            // this monkey business marks up case-conversion blocks
-            // since java's regex engine doesn't support perl-style
-            // case-conversion.  but we do :)
-            caseConversions = true;
-            replaceWith = replaceWith.replaceAll("\\\\([UL])[\\$\\\\](\\d)", "!$1@\\$$2@$1!");
-        }
-
-        try {
-            String result = null;
-
-            if (greedy) {
-                result = text.replaceAll(pattern,replaceWith);
-            } else {
-                result = text.replaceFirst(pattern,replaceWith);
-            }
-
-            if (caseConversions) {
-                return applyCaseConversions(result);
-            } else {
-                return result;
-            }
-        } catch (IndexOutOfBoundsException e) {
-            return text + "[REGEX "+regex+" Error: "+e.getMessage()+"]";
-        }
-    }
-
-    private static String applyCaseConversions(String result)
-    {
-        StringBuilder x = new StringBuilder();
-
-        Matcher m = Pattern.compile("!U@(.*?)@U!").matcher(result);
-        int last = 0;
-        while (m.find()) {
-            x.append(result.substring(last, m.start()));
-            x.append(m.group(1).toUpperCase());
-            last = m.end();
-        }
-        if (last > 0) {
-            x.append(result.substring(last));
-            result = x.toString();
-            x = new StringBuilder();
-            last = 0;
-        }
-
-        m = Pattern.compile("!L@(.*?)@L!").matcher(result);
-        while (m.find()) {
-            x.append(result.substring(last, m.start()));
-            x.append(m.group(1).toLowerCase());
-            last = m.end();
-        }
-        if (last > 0) {
-            x.append(result.substring(last));
-            return x.toString();
-        } else {
-            return result;
-        }
+        // parsed and compiled once per distinct regex
+        return CompiledRegex.compile(regex).apply(text);
     }
 
     public static String parseRegexEscapes(String str)
@@ -0,0 +1,123 @@
+package com.x5.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent map with a size limit, for the small lookup caches that
+ * hold parsed forms of template text (regexes, calc expressions, etc).
+ * The keys seen in practice are a small, fixed set, so the limit only
+ * matters when something feeds in endless new ones.
+ *
+ * <P>
+ * Lookups never lock.  Going over the limit evicts the least recently
+ * used quarter of the entries in one batch, so entries that are still in
+ * use survive.  Only one thread evicts at a time; the others carry on
+ * without waiting.
+ */
+public final class BoundedCache<K,V>
+{
+    private final ConcurrentHashMap<K,Entry<V>> entries = new ConcurrentHashMap<K,Entry<V>>();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final int maxEntries;
+    // bumped on every insert.  lookups stamp entries with it, so recency
+    // is tracked without a shared write on every get.
+    private final AtomicLong tick = new AtomicLong();
+
+    private static final class Entry<V> implements LeastRecentlyUsed.Stamped
+    {
+        final V value;
+        volatile long lastUsed;
+
+        Entry(V value, long now)
+        {
+            this.value = value;
+            this.lastUsed = now;
+        }
+
+        public long lastUsed()
+        {
+            return lastUsed;
+        }
+    }
+
+    public BoundedCache(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    public V get(K key)
+    {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) return null;
+        long now = tick.get();
+        // skip redundant volatile writes when many threads hit the same entry
+        if (entry.lastUsed != now) entry.lastUsed = now;
+        return entry.value;
+    }
+
+    public void put(K key, V value)
+    {
+        entries.put(key, new Entry<V>(value, tick.incrementAndGet()));
+        evictIfFull();
+    }
+
+    /**
+     * @return the value already cached under key, or null if value was
+     * added.
+     */
+    public V putIfAbsent(K key, V value)
+    {
+        Entry<V> existing = entries.putIfAbsent(key, new Entry<V>(value, tick.incrementAndGet()));
+        if (existing != null) return existing.value;
+        evictIfFull();
+        return null;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * @return a copy of the current contents.
+     */
+    public Map<K,V> snapshot()
+    {
+        Map<K,V> copy = new HashMap<K,V>();
+        for (Map.Entry<K,Entry<V>> entry : entries.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().value);
+        }
+        return copy;
+    }
+
+    private void evictIfFull()
+    {
+        if (entries.size() <= maxEntries) return;
+        // another thread is already on it
+        if (!evictLock.tryLock()) return;
+
+        try {
+            int excess = entries.size() - (maxEntries - maxEntries / 4);
+            if (excess <= 0) return;
+
+            List<LeastRecentlyUsed.Aged<K,Entry<V>>> byAge = LeastRecentlyUsed.oldestFirst(entries);
+
+            for (int i=0; i<byAge.size() && excess > 0; i++) {
+                LeastRecentlyUsed.Aged<K,Entry<V>> oldest = byAge.get(i);
+                if (entries.remove(oldest.key, oldest.entry)) excess--;
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.x5.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the template engine knows about one class, worked out once and
+ * shared: whether its instances read as a POJO (public fields) or as a
+ * bean (getters), and an accessor for each property under its template
+ * name -- bookTitle or getBookTitle() as book_title, isActive() as
+ * is_active.
+ *
+ * <P>
+ * Also remembers whether the class has its own toString(), and the
+ * export legend of DataCapsule classes.  Each piece is worked out the
+ * first time it is needed.
+ *
+ * <P>
+ * Use ClassInfo.get(someClass).  The registry is safe to use from any
+ * number of rendering threads.  It holds on to the classes it has seen,
+ * so containers that hot-redeploy should call ClassInfo.evict(oldLoader)
+ * when they discard an application's classloader.
+ */
+public final class ClassInfo
+{
+    private static final ConcurrentHashMap<Class<?>,ClassInfo> registry
+        = new ConcurrentHashMap<Class<?>,ClassInfo>();
+
+    private static final Map<String,PropertyAccessor> NO_PROPERTIES
+        = Collections.emptyMap();
+    private static final Class<?>[] NO_ARGS = new Class<?>[]{};
+
+    private static final AtomicLong registered = new AtomicLong();
+    private static final AtomicLong evicted = new AtomicLong();
+
+    private static volatile BeanIntrospector introspector = null;
+
+    private final Class<?> type;
+
+    // each filled in on first use -- a class that is only ever printed
+    // never has its fields looked at.  races are benign, worst case two
+    // threads do the same work and one result wins.
+    private volatile Map<String,PropertyAccessor> fields = null;
+    private volatile Boolean isPojo = null;
+    private volatile Map<String,PropertyAccessor> beanProperties = null;
+    private volatile Boolean hasOwnToString = null;
+    private volatile DataCapsuleReader capsuleReader = null;
+
+    public static ClassInfo get(Class<?> type)
+    {
+        ClassInfo info = registry.get(type);
+        if (info == null) {
+            info = new ClassInfo(type);
+            ClassInfo prior = registry.putIfAbsent(type, info);
+            if (prior == null) {
+                registered.incrementAndGet();
+            } else {
+                info = prior;
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Forget every class loaded by this classloader or any classloader
+     * below it, eg when a webapp is undeployed.
+     * @return how many classes were forgotten.
+     */
+    public static int evict(ClassLoader loader)
+    {
+        int count = 0;
+        Iterator<Class<?>> i = registry.keySet().iterator();
+        while (i.hasNext()) {
+            Class<?> type = i.next();
+            if (isLoadedBy(type, loader)) {
+                i.remove();
+                count++;
+            }
+        }
+        evicted.addAndGet(count);
+        return count;
+    }
+
+    private static boolean isLoadedBy(Class<?> type, ClassLoader loader)
+    {
+        for (ClassLoader cl = type.getClassLoader(); cl != null; cl = cl.getParent()) {
+            if (cl == loader) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget every class.
+     */
+    public static void clear()
+    {
+        int count = registry.size();
+        registry.clear();
+        evicted.addAndGet(count);
+    }
+
+    /**
+     * @return how many classes are currently registered.
+     */
+    public static int getRegisteredCount()
+    {
+        return registry.size();
+    }
+
+    /**
+     * @return how many classes have ever been registered, including
+     * ones since evicted.
+     */
+    public static long getTotalRegistered()
+    {
+        return registered.get();
+    }
+
+    public static long getEvictedCount()
+    {
+        return evicted.get();
+    }
+
+    private ClassInfo(Class<?> type)
+    {
+        this.type = type;
+    }
+
+    public Class<?> getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return true if instances should be read field by field, unless
+     * explicitly wrapped as a bean.
+     */
+    public boolean isPojo()
+    {
+        Boolean pojo = isPojo;
+        if (pojo == null) {
+            if (type.isAnnotationPresent(AccessAsBean.class)) {
+                pojo = Boolean.FALSE;
+            } else if (type.isAnnotationPresent(AccessAsPojo.class)) {
+                pojo = Boolean.TRUE;
+            } else {
+                // public fields but nothing readable?  treat as bean.
+                boolean hasFields = hasNonFinalPublicFields(grokFields(type)) && !getFields().isEmpty();
+                pojo = Boolean.valueOf(hasFields);
+            }
+            isPojo = pojo;
+        }
+        return pojo.booleanValue();
+    }
+
+    /**
+     * @param asBean true if the object was explicitly wrapped as a bean.
+     * @return accessors by template name, in declaration order.
+     */
+    public Map<String,PropertyAccessor> getProperties(boolean asBean)
+    {
+        if (!asBean && isPojo()) return getFields();
+        return getBeanProperties();
+    }
+
+    /**
+     * @return accessors for the readable fields, whether or not the class
+     * reads as a POJO.
+     */
+    public Map<String,PropertyAccessor> getFields()
+    {
+        Map<String,PropertyAccessor> readable = fields;
+        if (readable == null) {
+            readable = readableFields(grokFields(type));
+            fields = readable;
+        }
+        return readable;
+    }
+
+    /**
+     * @return true if the class overrides Object.toString()
+     */
+    public boolean hasOwnToString()
+    {
+        Boolean hasOwn = hasOwnToString;
+        if (hasOwn == null) {
+            Method toString = null;
+            try {
+                toString = type.getMethod("toString", NO_ARGS);
+            } catch (NoSuchMethodException e) {
+            } catch (SecurityException e) {
+            }
+            hasOwn = Boolean.valueOf(toString != null && !toString.getDeclaringClass().equals(Object.class));
+            hasOwnToString = hasOwn;
+        }
+        return hasOwn.booleanValue();
+    }
+
+    /**
+     * @return the export legend for a DataCapsule class.
+     */
+    DataCapsuleReader getCapsuleReader(DataCapsule sample)
+    {
+        DataCapsuleReader reader = capsuleReader;
+        if (reader == null) {
+            reader = new DataCapsuleReader(new DataCapsule[]{sample});
+            capsuleReader = reader;
+        }
+        return reader;
+    }
+
+    /**
+     * @return the accessor for this template name, or null if the class
+     * has no such property.
+     */
+    public PropertyAccessor getProperty(String name, boolean asBean)
+    {
+        return getProperties(asBean).get(name);
+    }
+
+    private Map<String,PropertyAccessor> getBeanProperties()
+    {
+        Map<String,PropertyAccessor> props = beanProperties;
+        if (props == null) {
+            // benign race, worst case two threads both introspect
+            props = introspect(type);
+            beanProperties = props;
+        }
+        return props;
+    }
+
+    private static Field[] grokFields(Class<?> type)
+    {
+        Field[] fields = type.getDeclaredFields();
+        Field[] publicFields = type.getFields();
+        if (publicFields != null && fields != null) {
+            Field[] allFields = new Field[fields.length + publicFields.length];
+            System.arraycopy(fields, 0, allFields, 0, fields.length);
+            System.arraycopy(publicFields, 0, allFields, fields.length, publicFields.length);
+            return allFields;
+        } else if (fields == null) {
+            return publicFields == null ? new Field[0] : publicFields;
+        }
+        return fields;
+    }
+
+    private static boolean hasNonFinalPublicFields(Field[] fields)
+    {
+        for (int i=0; i<fields.length; i++) {
+            int mods = fields[i].getModifiers();
+            if (Modifier.isPrivate(mods)) continue;
+            if (Modifier.isProtected(mods)) continue;
+            if (Modifier.isFinal(mods)) continue;
+            return true;
+        }
+        return false;
+    }
+
+    private static Map<String,PropertyAccessor> readableFields(Field[] fields)
+    {
+        Map<String,PropertyAccessor> readable = null;
+
+        for (int i=0; i<fields.length; i++) {
+            Field field = fields[i];
+            int mods = field.getModifiers();
+            // private and protected fields are off limits
+            if (Modifier.isPrivate(mods) || Modifier.isProtected(mods)) continue;
+
+            // force access, eg package-private fields of a public class
+            try {
+                field.setAccessible(true);
+            } catch (RuntimeException e) {
+                // module system says no
+                continue;
+            }
+
+            if (readable == null) readable = new LinkedHashMap<String,PropertyAccessor>();
+            // convert isActive to is_active
+            String name = ObjectDataMap.splitCamelCase(field.getName());
+            readable.put(name, PropertyAccessor.forField(name, field));
+        }
+
+        return readable == null ? NO_PROPERTIES : Collections.unmodifiableMap(readable);
+    }
+
+    private static Map<String,PropertyAccessor> introspect(Class<?> type)
+    {
+        BeanIntrospector beans = introspector;
+        if (beans == null) {
+            beans = pickIntrospector();
+            if (beans == null) return NO_PROPERTIES;
+            introspector = beans;
+        }
+        Map<String,PropertyAccessor> props = beans.getProperties(type);
+        if (props == null || props.isEmpty()) return NO_PROPERTIES;
+        return Collections.unmodifiableMap(props);
+    }
+
+    // converts isActive() to is_active, getBookTitle() to book_title
+    private static String propertyName(String name, Method getter)
+    {
+        name = ObjectDataMap.splitCamelCase(name);
+        if (getter.getName().startsWith("is")) {
+            name = "is_" + name;
+        }
+        return name;
+    }
+
+    @SuppressWarnings("unused")
+    private static BeanIntrospector pickIntrospector()
+    {
+        // java.beans.* is missing on android.
+        // Test for existence before use...
+        try {
+            Class<?> beanClass = Class.forName("java.beans.Introspector");
+            return new StandardIntrospector();
+        } catch (ClassNotFoundException e) {
+            try {
+                Class<?> madrobotClass = Class.forName("com.madrobot.beans.Introspector");
+                return new MadRobotIntrospector();
+            } catch (ClassNotFoundException e2) {
+                return null;
+            }
+        }
+    }
+
+    private static interface BeanIntrospector
+    {
+        public Map<String,PropertyAccessor> getProperties(Class<?> beanClass);
+    }
+
+    private static class StandardIntrospector implements BeanIntrospector
+    {
+        public Map<String,PropertyAccessor> getProperties(Class<?> beanClass)
+        {
+            java.beans.PropertyDescriptor[] properties = null;
+            try {
+                java.beans.BeanInfo beanInfo = java.beans.Introspector.getBeanInfo(beanClass);
+                properties = beanInfo.getPropertyDescriptors();
+            } catch (java.beans.IntrospectionException e) {
+                // hmm, not a bean after all...
+                return null;
+            }
+            if (properties == null) return null;
+
+            Map<String,PropertyAccessor> props = new LinkedHashMap<String,PropertyAccessor>();
+            for (java.beans.PropertyDescriptor property : properties) {
+                Method getter = property.getReadMethod();
+                if (getter == null) continue;
+                String name = propertyName(property.getName(), getter);
+                props.put(name, PropertyAccessor.forGetter(name, property.getPropertyType(), getter));
+            }
+            return props;
+        }
+    }
+
+    // mad robot provides a stopgap introspection library for android projects
+    private static class MadRobotIntrospector implements BeanIntrospector
+    {
+        public Map<String,PropertyAccessor> getProperties(Class<?> beanClass)
+        {
+            com.madrobot.beans.PropertyDescriptor[] properties = null;
+            try {
+                com.madrobot.beans.BeanInfo beanInfo = com.madrobot.beans.Introspector.getBeanInfo(beanClass);
+                properties = beanInfo.getPropertyDescriptors();
+            } catch (com.madrobot.beans.IntrospectionException e) {
+                return null;
+            }
+            if (properties == null) return null;
+
+            Map<String,PropertyAccessor> props = new LinkedHashMap<String,PropertyAccessor>();
+            for (com.madrobot.beans.PropertyDescriptor property : properties) {
+                Method getter = property.getReadMethod();
+                if (getter == null) continue;
+                String name = propertyName(property.getName(), getter);
+                props.put(name, PropertyAccessor.forGetter(name, property.getPropertyType(), getter));
+            }
+            return props;
+        }
+    }
+}
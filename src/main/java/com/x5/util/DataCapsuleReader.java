@@ -2,62 +2,38 @@ package com.x5.util;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Hashtable;
 
 public class DataCapsuleReader
 {
-    // For efficiency, keep around instances of DataCapsuleReader objects
-    // in a static hashtable so we don't have to wait for slow reflection
-    // after the first time...
-    private static Hashtable<String, DataCapsuleReader> readerCache
-        = new Hashtable<String, DataCapsuleReader>();
+    // For efficiency, one DataCapsuleReader per class is kept in the
+    // shared ClassInfo registry so we don't have to wait for slow
+    // reflection after the first time...
 
     private String[] labels;
     private String[] bareLabels;
     private String[] methodNames;
-    private Method[] methods;
+    private volatile Method[] methods;
 
     @SuppressWarnings("rawtypes")
     private Class capsuleClass;
 
     public static DataCapsuleReader getReader(DataCapsule[] dataCapsules)
-    {
-        DataCapsuleReader reader = getReaderFromCache(dataCapsules);
-        if (reader == null) {
-            reader = new DataCapsuleReader(dataCapsules);
-            readerCache.put(reader.getDataClassName(), reader);
-        }
-        return reader;
-    }
-
-    public static DataCapsuleReader getReader(DataCapsule dataCapsule)
-    {
-        if (dataCapsule == null) return null;
-
-        DataCapsuleReader reader = getReaderFromCache(dataCapsule);
-        if (reader == null) {
-            reader = new DataCapsuleReader(new DataCapsule[]{dataCapsule});
-            readerCache.put(reader.getDataClassName(), reader);
-        }
-        return reader;
-    }
-
-    private static DataCapsuleReader getReaderFromCache(DataCapsule[] dataCapsules)
     {
         for (int i=0; i<dataCapsules.length; i++) {
             DataCapsule x = dataCapsules[i];
             if (x != null) {
-                String className = x.getClass().getName();
-                return readerCache.get(className);
+                return getReader(x);
             }
         }
-        return null;
+        // no sample to work from
+        return new DataCapsuleReader(dataCapsules);
     }
 
-    private static DataCapsuleReader getReaderFromCache(DataCapsule dataCapsule)
+    public static DataCapsuleReader getReader(DataCapsule dataCapsule)
     {
-        String className = dataCapsule.getClass().getName();
-        return readerCache.get(className);
+        if (dataCapsule == null) return null;
+
+        return ClassInfo.get(dataCapsule.getClass()).getCapsuleReader(dataCapsule);
     }
 
     public DataCapsuleReader(DataCapsule[] dataCapsules)
@@ -151,8 +127,10 @@ public class DataCapsuleReader
 
     public Object[] extractData(DataCapsule data)
     {
+        Method[] methods = this.methods;
         if (methods == null) {
             methods = grokMethods(data);
+            this.methods = methods;
         }
         Object[] rawOutput = new Object[methods.length];
         for (int i=0; i<methods.length; i++) {
@@ -4,7 +4,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLDecoder;
 import java.security.AccessControlException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -38,4 +42,43 @@ public class JarResource
 
         return null;
     }
+
+    /**
+     * Lists every file inside a jar that lives under a given folder.
+     * @param jarFolderURL eg jar:file:/path/to/lib.jar!/themes/
+     * @return full entry names (no leading slash), or an empty list if the jar can not be read.
+     */
+    public static List<String> listFolder(URL jarFolderURL)
+    {
+        List<String> entryNames = new ArrayList<String>();
+
+        String url = jarFolderURL.toString();
+        int bang = url.indexOf("!/");
+        if (bang < 0 || !url.startsWith("jar:file:")) return entryNames;
+
+        String folder = url.substring(bang+2);
+        ZipFile zipFile = null;
+        try {
+            String zipPath = URLDecoder.decode(url.substring("jar:file:".length(), bang), "UTF-8");
+            zipFile = new ZipFile(zipPath);
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().startsWith(folder)) {
+                    entryNames.add(entry.getName());
+                }
+            }
+        } catch (java.io.IOException e) {
+        } catch (AccessControlException e) {
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (java.io.IOException e) {
+                }
+            }
+        }
+
+        return entryNames;
+    }
 }
@@ -0,0 +1,72 @@
+package com.x5.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Eviction order for the caches that track recency with a stamp on each
+ * entry (LRUTemplateCache, SnippetCache, BoundedCache).
+ *
+ * <P>
+ * Lookups keep restamping entries while an eviction runs, so the stamps
+ * are copied once up front and the sort only ever sees the copies.
+ * Sorting on the live stamps can give a comparator inconsistent answers,
+ * which evicts the wrong entries or makes the sort throw.
+ */
+public final class LeastRecentlyUsed
+{
+    /**
+     * A cache entry that remembers when it was last used.
+     */
+    public interface Stamped
+    {
+        long lastUsed();
+    }
+
+    /**
+     * A cache entry, as it stood when the eviction order was taken.
+     * Hand key and entry back to ConcurrentHashMap.remove(key, entry) so
+     * an entry replaced in the meantime is left alone.
+     */
+    public static final class Aged<K,E>
+    {
+        public final K key;
+        public final E entry;
+        private final long lastUsed;
+
+        private Aged(K key, E entry, long lastUsed)
+        {
+            this.key = key;
+            this.entry = entry;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static final Comparator<Aged<?,?>> OLDEST_FIRST = new Comparator<Aged<?,?>>() {
+        public int compare(Aged<?,?> a, Aged<?,?> b)
+        {
+            return (a.lastUsed < b.lastUsed) ? -1 : ((a.lastUsed == b.lastUsed) ? 0 : 1);
+        }
+    };
+
+    private LeastRecentlyUsed()
+    {
+    }
+
+    /**
+     * @return the entries, least recently used first.
+     */
+    public static <K,E extends Stamped> List<Aged<K,E>> oldestFirst(Map<K,E> entries)
+    {
+        List<Aged<K,E>> byAge = new ArrayList<Aged<K,E>>(entries.size());
+        for (Map.Entry<K,E> entry : entries.entrySet()) {
+            E value = entry.getValue();
+            byAge.add(new Aged<K,E>(entry.getKey(), value, value.lastUsed()));
+        }
+        Collections.sort(byAge, OLDEST_FIRST);
+        return byAge;
+    }
+}
@@ -1,13 +1,6 @@
 package com.x5.util;
 
-import java.beans.BeanInfo;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -25,7 +18,14 @@ import java.util.Set;
  * Convert bean properties from getSomeProperty() to some_property
  *  or isVeryHappy() to is_very_happy
  *
- * Values returned are copies, frozen at time of first access.
+ * Properties are read one at a time, the first time a template asks for
+ * them, and remembered -- a template that reads one field of a wide object
+ * pays for one field.  Values returned are copies, frozen at time of first
+ * access.  Asking for the whole map (keySet, entrySet, size...) takes a
+ * full snapshot of every property.
+ *
+ * With setEagerMapping(true) every access takes the full snapshot up front,
+ * as older versions always did.
  *
  */
 @SuppressWarnings("rawtypes")
@@ -34,15 +34,16 @@ public class ObjectDataMap implements Map
     private Map<String,Object> pickle = null;
     private Object object;
     private Boolean isBean = null;
+    // properties read so far, as name, value pairs.  copy-on-write so
+    // concurrent renders never see a half-built cache.
+    private volatile Object[] readCache = null;
+
+    private static volatile boolean eagerMapping = System.getProperty("chunk.eagerobjectmaps") != null;
+    private static final Object ABSENT = new Object();
 
-    private static BeanIntrospector introspector = null;
     private static final Map<String,Object> EMPTY_MAP = new HashMap<String,Object>();
     private static final HashSet<Class<?>> WRAPPER_TYPES = getWrapperTypes();
     private static final String TRUE = "TRUE";
-    private static final Class[] NO_ARGS = new Class[]{};
-
-    private static Map<Class,Field[]> declaredFields = new HashMap<Class,Field[]>();
-    private static Map<Class,Boolean> looksLikePojo = new HashMap<Class,Boolean>();
 
     private static HashSet<Class<?>> getWrapperTypes()
     {
@@ -81,6 +82,23 @@ public class ObjectDataMap implements Map
         }
     }
 
+    /**
+     * Eager mapping copies every property of the wrapped object on first
+     * access, instead of reading only the properties a template asks for.
+     * Turn it on if your code depends on all getters running, or on
+     * get() agreeing with a snapshot taken by keySet()/entrySet().
+     * Also enabled by -Dchunk.eagerobjectmaps
+     */
+    public static void setEagerMapping(boolean eager)
+    {
+        eagerMapping = eager;
+    }
+
+    public static boolean isEagerMapping()
+    {
+        return eagerMapping;
+    }
+
     public static ObjectDataMap wrapBean(Object bean)
     {
         if (bean == null) return null;
@@ -90,8 +108,6 @@ public class ObjectDataMap implements Map
         return boxedBean;
     }
 
-    private static Map<Class,Boolean> hasOwnToString = new HashMap<Class,Boolean>();
-
     public boolean isBean()
     {
         return this.isBean != null && this.isBean;
@@ -99,20 +115,8 @@ public class ObjectDataMap implements Map
 
     public static String getAsString(Object obj)
     {
-        Class objClass = obj.getClass();
-        Boolean doStringify = hasOwnToString.get(objClass);
-        if (doStringify == null) {
-            // perform expensive check... but just this once.
-            Method toString = null;
-            try {
-                toString = obj.getClass().getMethod("toString", NO_ARGS);
-            } catch (NoSuchMethodException e) {
-            } catch (SecurityException e) {
-            }
-            doStringify = new Boolean(toString != null && !toString.getDeclaringClass().equals(Object.class));
-            hasOwnToString.put(objClass, doStringify);
-        }
-        if (doStringify.booleanValue()) {
+        // expensive check, but done just once per class
+        if (ClassInfo.get(obj.getClass()).hasOwnToString()) {
             // class has its own toString method -- safe.
             return obj.toString();
         } else {
@@ -121,177 +125,54 @@ public class ObjectDataMap implements Map
         }
     }
 
-    private boolean hasBeanAnnotation(Class candidateClass)
+    /**
+     * @return true if this map still wraps the live object, ie nothing
+     * has been copied out of it yet, so its properties can be read
+     * one at a time (see ClassInfo).  False for DataCapsules, and when
+     * eager mapping is on.
+     */
+    public boolean canReadDirectly()
     {
-        return candidateClass.isAnnotationPresent(AccessAsBean.class);
-    }
-
-    private boolean hasPojoAnnotation(Class candidateClass)
-    {
-        return candidateClass.isAnnotationPresent(AccessAsPojo.class);
+        return pickle == null && !eagerMapping && !(object instanceof DataCapsule);
     }
 
     private Map<String,Object> mapify(Object pojo)
     {
-        Map<String,Object> data = null;
-
         if (pojo instanceof DataCapsule) {
             return mapifyCapsule((DataCapsule)pojo);
         }
 
+        ClassInfo info = ClassInfo.get(pojo.getClass());
         if (isBean == null) {
-            Class objClass = pojo.getClass();
-            if (looksLikePojo.containsKey(objClass)) {
-                isBean = !looksLikePojo.get(objClass);
-            } else if (mightBePOJO(pojo)) {
-                data = mapifyPOJO(pojo);
-                // This is the first time we've tried to read fields from this class.
-                if (data != null && !data.isEmpty()) {
-                    isBean = false;
-                    return data;
-                }
-                // Failed to access as POJO.  Always treat class as bean.
-                looksLikePojo.put(objClass, false);
-                isBean = true;
-            } else {
-                isBean = true;
-            }
-        }
-
-        if (!isBean) {
-            return mapifyPOJO(pojo);
-        }
-
-        if (introspector == null) {
-            introspector = pickIntrospector();
-            if (introspector == null) {
-                return data;
-            }
-        }
-        try {
-            return introspector.mapifyBean(pojo);
-        } catch (IntrospectionException e) {
-            // hmm, not a bean after all...
+            isBean = !info.isPojo();
         }
 
-        return data;
+        return copyProperties(pojo, info.getProperties(isBean), isBean);
     }
 
-    @SuppressWarnings("unused")
-    private static BeanIntrospector pickIntrospector()
-    {
-        // java.beans.* is missing on android.
-        // Test for existence before use...
-        try {
-            Class<?> beanClass = Class.forName("java.beans.Introspector");
-            return new StandardIntrospector();
-        } catch (ClassNotFoundException e) {
-            try {
-                Class<?> madrobotClass = Class.forName("com.madrobot.beans.Introspector");
-                return new MadRobotIntrospector();
-            } catch (ClassNotFoundException e2) {
-                return null;
-            }
-        }
-    }
-
-    private boolean mightBePOJO(Object pojo) {
-        Class pojoClass = pojo.getClass();
-        if (hasBeanAnnotation(pojoClass)) {
-            looksLikePojo.put(pojoClass, false);
-            return false;
-        }
-
-        if (hasPojoAnnotation(pojoClass)) {
-            looksLikePojo.put(pojoClass, true);
-            return true;
-        }
-
-        if (hasNonFinalPublicFields(pojo)) {
-            looksLikePojo.put(pojoClass, true);
-            return true;
-        }
-
-        return false;
-    }
-
-    private boolean hasNonFinalPublicFields(Object pojo)
-    {
-        boolean found = false;
-
-        Field[] fields = grokFields(pojo);
-        for (int i=0; i<fields.length; i++) {
-            Field field = fields[i];
-            int mods = field.getModifiers();
-            if (Modifier.isPrivate(mods)) {
-                continue;
-            }
-            if (Modifier.isProtected(mods)) {
-                continue;
-            }
-            if (Modifier.isFinal(mods)) {
-                continue;
-            }
-
-            found = true;
-            break;
-        }
-
-        return found;
-    }
-
-    private Field[] grokFields(Object pojo)
+    public Map<String,Object> mapifyPOJO(Object pojo)
     {
-        Field[] fields = null;
-
-        Class pojoClass = pojo.getClass();
-        if (declaredFields.containsKey(pojoClass)) {
-            fields = declaredFields.get(pojoClass);
-        } else {
-            // expensive. cache!
-            fields = pojoClass.getDeclaredFields();
-            Field[] publicFields = pojoClass.getFields();
-            if (publicFields != null && fields != null) {
-                Field[] allFields = new Field[fields.length + publicFields.length];
-                System.arraycopy(fields, 0, allFields, 0, fields.length);
-                System.arraycopy(publicFields, 0, allFields, fields.length, publicFields.length);
-                fields = allFields;
-            } else if (fields == null) {
-                fields = publicFields;
-            }
-            declaredFields.put(pojoClass, fields);
-        }
-
-        return fields;
+        return copyProperties(pojo, ClassInfo.get(pojo.getClass()).getFields(), isBean());
     }
 
-    public Map<String,Object> mapifyPOJO(Object pojo)
+    private static Map<String,Object> copyProperties(Object pojo, Map<String,PropertyAccessor> properties, boolean isBean)
     {
-        Field[] fields = grokFields(pojo);
         Map<String,Object> pickle = null;
 
-        for (int i=0; i<fields.length; i++) {
-            Field field = fields[i];
-            String paramName = field.getName();
-            Class paramClass = field.getType();
-
-            // force access
-            int mods = field.getModifiers();
-            if (!Modifier.isPrivate(mods) && !Modifier.isProtected(mods)) {
-                field.setAccessible(true);
-            }
-
-            Object paramValue = null;
+        for (PropertyAccessor property : properties.values()) {
+            Object paramValue;
             try {
-                paramValue = field.get(pojo);
+                paramValue = property.read(pojo);
             } catch (IllegalAccessException e) {
                 continue;
+            } catch (InvocationTargetException e) {
+                continue;
             }
+            // beans skip null properties, pojos keep them
+            if (paramValue == null && isBean) continue;
 
             if (pickle == null) pickle = new HashMap<String,Object>();
-            // convert isActive to is_active
-            paramName = splitCamelCase(paramName);
-            storeValue(pickle, paramClass, paramName, paramValue, isBean());
+            storeValue(pickle, property.getValueClass(), property.getName(), paramValue, isBean);
         }
 
         return pickle;
@@ -325,27 +206,50 @@ public class ObjectDataMap implements Map
     {
         if (paramValue == null) {
             pickle.put(paramName, null);
-        } else if (paramClass == String.class) {
-            pickle.put(paramName, paramValue);
-        } else if (paramClass.isArray() || paramValue instanceof List) {
-            pickle.put(paramName, paramValue);
-        } else if (paramValue instanceof Boolean) {
-            if (((Boolean)paramValue).booleanValue()) {
-                pickle.put(paramName, TRUE);
-            }
-        } else if (paramClass.isPrimitive() || isWrapperType(paramClass)) {
-            pickle.put(paramName, paramValue);
         } else {
-            // box all non-primitive object member fields
-            // in their own ObjectDataMap wrapper.
-            // lazy init guarantees no infinite recursion here.
-            ObjectDataMap boxedParam = isBean ? wrapBean(paramValue) : new ObjectDataMap(paramValue);
-            pickle.put(paramName, boxedParam);
+            Object value = boxValue(paramClass, paramValue, isBean);
+            // false booleans are left out
+            if (value != null) pickle.put(paramName, value);
         }
+    }
+
+    /**
+     * @return true if a property value of this declared type would be
+     * boxed in its own ObjectDataMap, ie it can have properties of its own.
+     */
+    public static boolean isBoxedValue(Class paramClass, Object paramValue)
+    {
+        if (paramClass == String.class) return false;
+        if (paramClass.isArray() || paramValue instanceof List) return false;
+        if (paramValue instanceof Boolean) return false;
+        if (paramClass.isPrimitive() || isWrapperType(paramClass)) return false;
+        return true;
+    }
 
+    /**
+     * Convert a raw property value the way a mapified object exposes it:
+     * strings, arrays, lists and primitives as-is, true as "TRUE",
+     * false as null, anything else in its own ObjectDataMap.
+     */
+    public static Object boxValue(Class paramClass, Object paramValue, boolean isBean)
+    {
+        if (paramValue == null) return null;
+
+        if (paramValue instanceof Boolean) {
+            return ((Boolean)paramValue).booleanValue() ? TRUE : null;
+        }
+        if (!isBoxedValue(paramClass, paramValue)) {
+            return paramValue;
+        }
+        // box all non-primitive object member fields
+        // in their own ObjectDataMap wrapper.
+        // lazy init guarantees no infinite recursion here.
+        return isBean ? wrapBean(paramValue) : new ObjectDataMap(paramValue);
     }
 
-    private static Map<String,String> snakeCased = new HashMap<String,String>();
+    private static final int MAX_SNAKE_CASED = 5000;
+    private static final BoundedCache<String,String> snakeCased
+        = new BoundedCache<String,String>(MAX_SNAKE_CASED);
 
     // splitCamelCase converts SimpleXMLStuff to simple_xml_stuff
     public static String splitCamelCase(String s)
@@ -400,8 +304,7 @@ public class ObjectDataMap implements Map
 
     public boolean containsKey(Object key)
     {
-        init();
-        return pickle.containsKey(key);
+        return lookup(key) != ABSENT;
     }
 
     public boolean containsValue(Object value)
@@ -412,8 +315,57 @@ public class ObjectDataMap implements Map
 
     public Object get(Object key)
     {
-        init();
-        return pickle.get(key);
+        Object value = lookup(key);
+        return value == ABSENT ? null : value;
+    }
+
+    private Object lookup(Object key)
+    {
+        if (pickle != null || eagerMapping || !(key instanceof String) || object instanceof DataCapsule) {
+            init();
+            Object value = pickle.get(key);
+            return (value == null && !pickle.containsKey(key)) ? ABSENT : value;
+        }
+
+        Object[] cache = readCache;
+        int cached = cache == null ? 0 : cache.length;
+        for (int i=0; i<cached; i+=2) {
+            if (cache[i].equals(key)) return cache[i+1];
+        }
+
+        Object value = readProperty((String)key);
+
+        // append to a fresh copy.  if two threads race, one entry
+        // may be lost, and is simply read again next time.
+        Object[] grown = new Object[cached + 2];
+        if (cached > 0) System.arraycopy(cache, 0, grown, 0, cached);
+        grown[cached] = key;
+        grown[cached+1] = value;
+        readCache = grown;
+
+        return value;
+    }
+
+    private Object readProperty(String name)
+    {
+        ClassInfo info = ClassInfo.get(object.getClass());
+        boolean asBean = isBean != null ? isBean.booleanValue() : !info.isPojo();
+
+        PropertyAccessor property = info.getProperty(name, asBean);
+        if (property == null) return ABSENT;
+
+        Object paramValue;
+        try {
+            paramValue = property.read(object);
+        } catch (IllegalAccessException e) {
+            return ABSENT;
+        } catch (InvocationTargetException e) {
+            return ABSENT;
+        }
+        // same rules as the full snapshot, see copyProperties
+        if (paramValue == null) return asBean ? ABSENT : null;
+        Object value = boxValue(property.getValueClass(), paramValue, asBean);
+        return value == null ? ABSENT : value;
     }
 
     public Object put(Object key, Object value)
@@ -456,143 +408,6 @@ public class ObjectDataMap implements Map
         return pickle.entrySet();
     }
 
-    private static class Getter
-    {
-        private static final Object[] NO_ARGS = (Object[])null;
-
-        Method getter;
-        Class valueClass;
-        String name;
-
-        public Getter(PropertyDescriptor property, Method getter)
-        {
-            this.getter = getter;
-            this.valueClass = property.getPropertyType();
-
-            String paramName = property.getName();
-            paramName = splitCamelCase(paramName);
-            if (getter.getName().startsWith("is")) {
-                paramName = "is_"+paramName;
-            }
-            this.name = paramName;
-        }
-
-        Object invoke(Object target)
-        throws InvocationTargetException, IllegalAccessException
-        {
-            return getter.invoke(target, NO_ARGS);
-        }
-    }
-
-    private static class IntrospectionException extends Exception
-    {
-        private static final long serialVersionUID = 8890979383599687484L;
-    }
-
-    private static interface BeanIntrospector {
-        public Map<String,Object> mapifyBean(Object bean) throws IntrospectionException;
-    }
-
-    private static class StandardIntrospector implements BeanIntrospector
-    {
-        private static Map<Class,List<Getter>> beanGetters = new HashMap<Class,List<Getter>>();
-
-        public Map<String,Object> mapifyBean(Object bean)
-        throws IntrospectionException
-        {
-            Class beanClass = bean.getClass();
-            List<Getter> getters = beanGetters.get(beanClass);
-
-            if (getters == null) {
-                PropertyDescriptor[] properties = null;
-                try {
-                    BeanInfo beanInfo = Introspector.getBeanInfo(bean.getClass());
-                    properties = beanInfo.getPropertyDescriptors();
-                } catch (java.beans.IntrospectionException e) {
-                    throw new IntrospectionException();
-                }
-
-                if (properties == null) return null;
-
-                getters = new ArrayList<Getter>();
-                for (PropertyDescriptor property : properties) {
-                    Method getter = property.getReadMethod();
-                    if (getter == null) continue;
-                    getters.add(new Getter(property, getter));
-                }
-
-                beanGetters.put(beanClass, getters);
-            }
-
-            Map<String,Object> pickle = null;
-
-            // copy properties into hashtable
-            for (Getter getter : getters) {
-                try {
-                    Object paramValue = getter.invoke(bean);
-
-                    if (paramValue != null) {
-                        if (pickle == null) pickle = new HashMap<String,Object>();
-                        storeValue(pickle, getter.valueClass, getter.name, paramValue, true);
-                    }
-                } catch (InvocationTargetException e) {
-                } catch (IllegalAccessException e) {
-                }
-            }
-
-            return pickle;
-        }
-    }
-
-    // mad robot provides a stopgap introspection library for android projects
-    private static class MadRobotIntrospector implements BeanIntrospector
-    {
-        public Map<String,Object> mapifyBean(Object bean)
-        throws IntrospectionException
-        {
-            com.madrobot.beans.PropertyDescriptor[] properties = null;
-            try {
-                com.madrobot.beans.BeanInfo beanInfo = com.madrobot.beans.Introspector.getBeanInfo(bean.getClass());
-                properties = beanInfo.getPropertyDescriptors();
-            } catch (com.madrobot.beans.IntrospectionException e) {
-                throw new IntrospectionException();
-            }
-
-            if (properties == null) return null;
-
-            Map<String,Object> pickle = null;
-
-            // copy properties into hashtable
-            for (com.madrobot.beans.PropertyDescriptor property : properties) {
-                Class paramClass = property.getPropertyType();
-                Method getter = property.getReadMethod();
-                if (getter == null) continue;
-
-                try {
-                    Object paramValue = getter.invoke(bean, (Object[])null);
-
-                    if (paramValue != null) {
-                        // converts isActive() to is_active
-                        // converts getBookTitle() to book_title
-                        String paramName = property.getName();
-                        paramName = splitCamelCase(paramName);
-                        if (getter.getName().startsWith("is")) {
-                            paramName = "is_"+paramName;
-                        }
-
-                        if (pickle == null) pickle = new HashMap<String,Object>();
-
-                        storeValue(pickle, paramClass, paramName, paramValue, true);
-                    }
-                } catch (InvocationTargetException e) {
-                } catch (IllegalAccessException e) {
-                }
-            }
-
-            return pickle;
-        }
-    }
-
     public String toString()
     {
         return getAsString(this.object);
@@ -0,0 +1,86 @@
+package com.x5.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Reads one property (a public field or a bean getter) from instances of
+ * one class.  Made once per class and property by ClassInfo, then shared.
+ */
+public abstract class PropertyAccessor
+{
+    private final String name;
+    private final Class<?> valueClass;
+
+    PropertyAccessor(String name, Class<?> valueClass)
+    {
+        this.name = name;
+        this.valueClass = valueClass;
+    }
+
+    /**
+     * @return the template-facing name, eg book_title for getBookTitle()
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the declared type of the field or getter.
+     */
+    public Class<?> getValueClass()
+    {
+        return valueClass;
+    }
+
+    public abstract Object read(Object target)
+    throws IllegalAccessException, InvocationTargetException;
+
+    static PropertyAccessor forField(String name, Field field)
+    {
+        return new FieldAccessor(name, field);
+    }
+
+    static PropertyAccessor forGetter(String name, Class<?> valueClass, Method getter)
+    {
+        return new GetterAccessor(name, valueClass, getter);
+    }
+
+    private static class FieldAccessor extends PropertyAccessor
+    {
+        private final Field field;
+
+        FieldAccessor(String name, Field field)
+        {
+            super(name, field.getType());
+            this.field = field;
+        }
+
+        public Object read(Object target)
+        throws IllegalAccessException
+        {
+            return field.get(target);
+        }
+    }
+
+    private static class GetterAccessor extends PropertyAccessor
+    {
+        private static final Object[] NO_ARGS = (Object[])null;
+
+        private final Method getter;
+
+        GetterAccessor(String name, Class<?> valueClass, Method getter)
+        {
+            super(name, valueClass);
+            this.getter = getter;
+        }
+
+        public Object read(Object target)
+        throws IllegalAccessException, InvocationTargetException
+        {
+            return getter.invoke(target, NO_ARGS);
+        }
+    }
+}
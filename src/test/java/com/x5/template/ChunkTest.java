@@ -1,12 +1,28 @@
 package com.x5.template;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
 import java.math.BigDecimal;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.Test;
 
+import com.x5.util.ClassInfo;
 import com.x5.util.ObjectDataMap;
 import com.x5.util.AccessAsPojo;
 
@@ -323,6 +339,448 @@ public class ChunkTest
         assertEquals(c.toString(), "Hello, my name is {$name}!");
     }
 
+    @Test
+    public void testManyTags()
+    {
+        Chunk c = new Chunk();
+        StringBuilder template = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i=0; i<100; i++) {
+            template.append("{$tag" + i + "}");
+            expected.append(i % 2 == 0 ? "v" + i : "{$tag" + i + "}");
+            c.set("tag" + i, "x");
+        }
+        c.append(template.toString());
+
+        for (int i=0; i<100; i++) {
+            if (i % 2 == 0) {
+                c.set("tag" + i, "v" + i);
+            } else {
+                c.setOrDelete("tag" + i, null);
+            }
+        }
+        assertEquals(50, c.size());
+        assertEquals(50, c.keySet().size());
+        assertFalse(c.containsKey("tag1"));
+        assertEquals(expected.toString(), c.toString());
+
+        // tags table is live
+        c.getTagsTable().put("tag1", "y");
+        assertTrue(c.hasValue("tag1"));
+        c.keySet().remove("tag0");
+        assertFalse(c.hasValue("tag0"));
+        assertEquals(50, c.size());
+    }
+
+    @Test
+    public void testSharedChunkRendersWithoutLock()
+        throws InterruptedException
+    {
+        // one header chunk embedded in many pages, each with its own title
+        final Chunk header = new Chunk();
+        header.append("<h1>{$title}</h1>");
+
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int t=0; t<threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                public void run()
+                {
+                    Chunk page = new Chunk();
+                    page.append("{$header}");
+                    page.set("title", "page" + id);
+                    page.set("header", header);
+                    results[id] = page.toString();
+                }
+            };
+        }
+
+        // nested renders must not wait on the shared chunk's monitor
+        synchronized (header) {
+            for (Thread thread : threads) thread.start();
+            for (Thread thread : threads) thread.join(5000);
+        }
+
+        for (int t=0; t<results.length; t++) {
+            assertEquals("<h1>page" + t + "</h1>", results[t]);
+        }
+    }
+
+    @Test
+    public void testNestedRenderLeavesSharedTagsAlone()
+        throws Exception
+    {
+        Chunk header = new Chunk();
+        header.append("<h1>{$greeting}</h1>");
+        header.set("greeting", "Hi {$name}");
+
+        Chunk page = new Chunk();
+        page.append("{$header}");
+        page.set("header", header);
+        page.set("name", "Bo");
+        assertEquals("<h1>Hi Bo</h1>", page.toString());
+
+        // rendered as part of the page, so its String value stays unparsed
+        Field tagsField = Chunk.class.getDeclaredField("tags");
+        tagsField.setAccessible(true);
+        TagMap tags = (TagMap)tagsField.get(header);
+        assertTrue(tags.get("greeting") instanceof String);
+    }
+
+    @Test
+    public void testPlainTextValues()
+    {
+        assertTrue(Snippet.isPlainText("Widget {large} 4_ever [x] {"));
+        assertFalse(Snippet.isPlainText("Widget {$size}"));
+        assertFalse(Snippet.isPlainText("{% if $x %}"));
+        assertFalse(Snippet.isPlainText("see _[translate me]"));
+
+        Chunk c = new Chunk();
+        c.append("<b>{$name}</b> {$price}");
+        c.set("name", "Widget {large} 4_ever");
+        c.set("price", "{$currency}9.99");
+        c.set("currency", "$");
+        assertEquals("<b>Widget {large} 4_ever</b> $9.99", c.toString());
+    }
+
+    @Test
+    public void testSetLiteral()
+    {
+        Chunk c = new Chunk();
+        c.append("<p>{$comment}</p><p>{$comment|lower}</p>");
+        c.setLiteral("comment", "hi {$SECRET} _[hello]");
+        c.set("secret", "LEAKED");
+        // filter output is template text again, as it always was
+        assertEquals("<p>hi {$SECRET} _[hello]</p><p>hi LEAKED hello</p>", c.toString());
+    }
+
+    @Test
+    public void testSetData()
+    {
+        Chunk c = new Chunk();
+        c.append("<p>{$comment}</p><p>{$comment|lower}</p>");
+        c.setData("comment", "hi {$SECRET} _[hello]");
+        c.set("secret", "LEAKED");
+        assertEquals("<p>hi {$SECRET} _[hello]</p><p>hi {$secret} _[hello]</p>", c.toString());
+    }
+
+    @Test
+    public void testScannerParity()
+        throws IOException
+    {
+        List<String> corpus = new ArrayList<String>();
+        String[] tricky = new String[]{
+            "", "{", "_", "{$", "_[", "x{", "x_", "{$a", "_[unclosed",
+            "function(){$.ajax()} {$tag} {$(x)} {$ x} {$$x} {$j(1)}",
+            "{% $a %}{%   if ($a) %}b{% endif   %}{%exec%}{%}",
+            "{$a|s/\\}/x/} {$b|ondefined(m/}/,x)} {$c|filter(/}{/,y)} {$d|s/a/b/g}",
+            "a\\{$x} {$y:\\}} {$z:\\\\} _[x\\]y] _[a]_[b]",
+            "{!-- a } b --} {!-- } -- }-- --} {!-- unterminated } }",
+            "{% literal %}{$x} }}{{% endliteral %} {^literal}{$y}{^} {~.literal}{$z}{~.}",
+            "{.literal}{$a}{/literal}{.literal}{$b}{~./literal}{~.literal}unclosed {$c}",
+            "{% loop in $list as $x %}{% if ($x) %}{$x}{% else %}-{% endif %}{% endloop %}",
+            "__[ _ [ { $ {{$a}} {~b}{^c}{*d*}{=e}{+f}{_g}{.h}{/i}{%j}",
+            "{$a\u00e9} _[\u00fc {$b}] \ud83d\ude00{$c}\ud83d\ude00",
+        };
+        for (String t : tricky) corpus.add(t);
+
+        // every template and string literal the test suite uses.  runs
+        // from any directory: resources come off the classpath, sources
+        // from the module root maven reports.
+        File base = new File(System.getProperty("basedir", "."));
+        File themes = classpathDir("/themes");
+        File[] roots = new File[]{
+            themes == null ? new File(base, "src/test/resources") : themes.getParentFile(),
+            new File(base, "src/test/java")
+        };
+        for (File root : roots) {
+            if (root.isDirectory()) collectCorpus(root, corpus);
+        }
+
+        for (String template : corpus) {
+            String expected = describeParts(Snippet.parseCharByChar(template, "parity"));
+            assertEquals(template, expected, describeParts(Snippet.getSnippet(template, "parity")));
+        }
+    }
+
+    private static File classpathDir(String name)
+    {
+        URL url = ChunkTest.class.getResource(name);
+        if (url == null || !"file".equals(url.getProtocol())) return null;
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static void collectCorpus(File file, List<String> corpus)
+        throws IOException
+    {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) for (File f : files) collectCorpus(f, corpus);
+            return;
+        }
+        // test classes share the classpath root with the resources
+        if (file.getName().endsWith(".class")) return;
+        InputStream in = new FileInputStream(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[8192];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) bytes.write(buf, 0, n);
+        } finally {
+            in.close();
+        }
+        String text = bytes.toString("UTF-8");
+        if (!file.getName().endsWith(".java")) {
+            corpus.add(text);
+            // and each subtemplate on its own
+            for (String sub : text.split("\\{#")) corpus.add(sub);
+            return;
+        }
+        Matcher m = Pattern.compile("\"((?:[^\"\\\\\n]|\\\\.)*)\"").matcher(text);
+        while (m.find()) {
+            corpus.add(m.group(1).replace("\\\"", "\"").replace("\\n", "\n").replace("\\\\", "\\"));
+        }
+    }
+
+    private static String describeParts(Snippet snippet)
+    {
+        if (snippet.isSimple()) return "simple[" + snippet.toString() + "]";
+        StringBuilder buf = new StringBuilder();
+        for (SnippetPart part : snippet.getParts()) {
+            buf.append(part.getClass().getSimpleName());
+            if (part.isLiteral()) buf.append('!');
+            buf.append('[').append(part.toString()).append(']');
+            if (part instanceof SnippetBlockTag) {
+                buf.append('(').append(describeParts(((SnippetBlockTag)part).getBody())).append(')');
+            }
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void testRenderToBytes()
+        throws IOException
+    {
+        Chunk c = new Chunk();
+        c.append("<p>Grüße, {$name}! \u20ac{$price}</p>{% loop in $list as $x %}<i>{$x}</i>{% endloop %}");
+        c.set("name", "Zoë");
+        c.set("price", "9,99");
+        c.set("list", new String[]{"\ud83d\ude00", "ß"});
+        String expected = c.toString();
+
+        String[] charsets = new String[]{"UTF-8", "ISO-8859-1", "UTF-16"};
+        for (String name : charsets) {
+            Charset charset = Charset.forName(name);
+            // twice, the second time from the cached bytes
+            for (int i=0; i<2; i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                c.render(out, charset);
+                assertArrayEquals(name, expected.getBytes(charset), out.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testRenderToBytesInstrumented()
+        throws Exception
+    {
+        String html = "<p>Grüße, {$name}!</p>";
+        Snippet snippet = Snippet.getSnippet(html);
+        Chunk c = new Chunk();
+        c.append(snippet);
+        c.set("name", "Zoë");
+        String expected = c.toString();
+
+        RenderMetrics metrics = new RenderMetrics();
+        c.setInstrumentation(metrics);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Charset utf8 = Charset.forName("UTF-8");
+        c.render(out, utf8);
+        assertArrayEquals(expected.getBytes(utf8), out.toByteArray());
+
+        // literals went out pre-encoded, and still got counted
+        Field encoded = SnippetPart.class.getDeclaredField("encoded");
+        encoded.setAccessible(true);
+        assertNotNull(encoded.get(snippet.getParts().get(0)));
+        long chars = 0;
+        for (RenderMetrics.Stat stat : metrics.getStats()) {
+            if (stat.getKind().equals(RenderMetrics.CHUNK)) chars += stat.getChars();
+        }
+        assertEquals(expected.length(), chars);
+    }
+
+    @Test
+    public void testRenderStreamBackpressure()
+        throws InterruptedException
+    {
+        AtomicInteger rendered = new AtomicInteger();
+        assertRenderStreamBackpressure(makeStreamTestChunk(rendered), rendered);
+    }
+
+    @Test
+    public void testRenderStreamBackpressureInstrumented()
+        throws InterruptedException
+    {
+        AtomicInteger rendered = new AtomicInteger();
+        Chunk c = makeStreamTestChunk(rendered);
+        c.setInstrumentation(new RenderMetrics());
+        assertRenderStreamBackpressure(c, rendered);
+    }
+
+    private Chunk makeStreamTestChunk(AtomicInteger rendered)
+    {
+        Chunk c = new Chunk();
+        c.append("{% loop in $list as $x %}<li>{$x.name}</li>{% endloop %}");
+        CountedItem[] list = new CountedItem[500];
+        for (int i=0; i<list.length; i++) list[i] = new CountedItem(i, rendered);
+        c.set("list", list);
+        return c;
+    }
+
+    private void assertRenderStreamBackpressure(Chunk c, AtomicInteger rendered)
+        throws InterruptedException
+    {
+        final String expected = c.toString();
+        rendered.set(0);
+
+        final StringBuilder received = new StringBuilder();
+        final AtomicInteger pieces = new AtomicInteger();
+        final Semaphore arrived = new Semaphore(0);
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final RenderStream stream = new RenderStream(c, new RenderStream.Subscriber() {
+            public void onSubscribe(RenderStream s)
+            {
+                subscribed.countDown();
+            }
+            public void onNext(String chunk)
+            {
+                assertTrue(chunk.length() <= 256);
+                received.append(chunk);
+                pieces.incrementAndGet();
+                arrived.release();
+            }
+            public void onError(Throwable t)
+            {
+                done.countDown();
+            }
+            public void onComplete()
+            {
+                done.countDown();
+            }
+        }, 256);
+
+        Thread renderer = new Thread(stream);
+        renderer.start();
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+        // one piece at a time, render must wait in between
+        for (int i=0; i<3; i++) {
+            awaitParked(renderer);
+            assertEquals(i, pieces.get());
+            // paused at the next part boundary, not a few pieces later
+            assertTrue(rendered.get() < (i+1) * 256 / 16 + 4);
+            stream.request(1);
+            assertTrue(arrived.tryAcquire(5, TimeUnit.SECONDS));
+        }
+        stream.request(Long.MAX_VALUE);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(expected, received.toString());
+    }
+
+    // the render thread only ever waits for demand, so once it is
+    // parked it has stopped pulling data
+    private static void awaitParked(Thread renderer)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (renderer.getState() != Thread.State.WAITING) {
+            assertTrue("render never paused", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testRenderStreamInterrupted()
+        throws InterruptedException
+    {
+        final Throwable[] error = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+
+        RenderStream stream = new RenderStream(makeStreamTestChunk(new AtomicInteger()), new RenderStream.Subscriber() {
+            public void onSubscribe(RenderStream s)
+            {
+                // never asks for anything
+            }
+            public void onNext(String chunk)
+            {
+                fail("nothing was requested");
+            }
+            public void onError(Throwable t)
+            {
+                error[0] = t;
+                done.countDown();
+            }
+            public void onComplete()
+            {
+                done.countDown();
+            }
+        }, 256);
+
+        Thread renderer = new Thread(stream);
+        renderer.start();
+        awaitParked(renderer);
+        renderer.interrupt();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        renderer.join(5000);
+        assertFalse(renderer.isAlive());
+        assertTrue(error[0] instanceof InterruptedException);
+    }
+
+    @Test
+    public void testRenderStreamBadRequest()
+        throws InterruptedException
+    {
+        final Thread[] errorThread = new Thread[1];
+        final Throwable[] error = new Throwable[1];
+        final AtomicInteger completions = new AtomicInteger();
+
+        RenderStream stream = new RenderStream(makeStreamTestChunk(new AtomicInteger()), new RenderStream.Subscriber() {
+            public void onSubscribe(RenderStream s)
+            {
+                s.request(0);
+            }
+            public void onNext(String chunk)
+            {
+                fail("no pieces after a bad request");
+            }
+            public void onError(Throwable t)
+            {
+                errorThread[0] = Thread.currentThread();
+                error[0] = t;
+            }
+            public void onComplete()
+            {
+                completions.incrementAndGet();
+            }
+        }, 256);
+
+        Thread renderer = new Thread(stream);
+        renderer.start();
+        renderer.join(5000);
+
+        assertSame(renderer, errorThread[0]);
+        assertTrue(error[0] instanceof IllegalArgumentException);
+        assertEquals(0, completions.get());
+    }
+
     @Test
     public void testSetBoolean()
     {
@@ -803,6 +1261,65 @@ public class ChunkTest
         assertEquals("Bob Bob LIST copy-A copy-B", c.toString());
     }
 
+    @Test
+    public void deepBeanPathReadsOnlyNamedProperties()
+    {
+        Chunk c = new Chunk();
+        c.append("{$order.customer.name} {$order.customer.is_vip:no} {$order.customer.zip:none} {$order.total}");
+
+        OrderBean order = new OrderBean();
+        c.setToBean("order", order);
+
+        assertEquals("Ada TRUE none 19.99", c.toString());
+        assertEquals("Ada TRUE none 19.99", c.toString());
+        // the other getters were never called
+        assertEquals(0, order.expensiveCalls);
+    }
+
+    @Test
+    public void objectDataMapReadsPropertiesOnDemand()
+    {
+        OrderBean order = new OrderBean();
+        ObjectDataMap lazy = ObjectDataMap.wrapBean(order);
+        assertTrue(lazy.containsKey("customer"));
+        assertNull(lazy.get("nope"));
+        assertEquals(0, order.expensiveCalls);
+
+        // whole-map views still see every property
+        assertTrue(lazy.keySet().contains("expensive"));
+        assertEquals(1, order.expensiveCalls);
+
+        ObjectDataMap.setEagerMapping(true);
+        try {
+            ObjectDataMap eager = ObjectDataMap.wrapBean(order);
+            eager.get("customer");
+            assertEquals(2, order.expensiveCalls);
+        } finally {
+            ObjectDataMap.setEagerMapping(false);
+        }
+    }
+
+    @Test
+    public void classInfoEvictsByClassLoader()
+    {
+        Chunk c = new Chunk();
+        c.append("{$x.name}");
+        c.set("x", new Thing("Bob",28,true));
+        assertEquals("Bob", c.toString());
+
+        int before = ClassInfo.getRegisteredCount();
+        assertTrue(before > 0);
+        assertSame(ClassInfo.get(Thing.class), ClassInfo.get(Thing.class));
+
+        // test classes, not java.lang ones
+        assertTrue(ClassInfo.evict(Thing.class.getClassLoader()) > 0);
+        assertTrue(ClassInfo.getRegisteredCount() < before);
+        assertTrue(ClassInfo.getEvictedCount() > 0);
+
+        // still works, metadata is rebuilt
+        assertEquals("Bob", c.toString());
+    }
+
     @Test
     public void arrayOfPOJOTest()
     {
@@ -1011,6 +1528,27 @@ public class ChunkTest
         }
     }
 
+    /**
+     * for render stream tests, counts rows as they render
+     */
+    public static class CountedItem
+    {
+        private final int n;
+        private final AtomicInteger rendered;
+
+        public CountedItem(int n, AtomicInteger rendered)
+        {
+            this.n = n;
+            this.rendered = rendered;
+        }
+
+        public String getName()
+        {
+            rendered.incrementAndGet();
+            return "item " + n;
+        }
+    }
+
     /**
      * for POJO with nothing but final members test
      */
@@ -1094,6 +1632,41 @@ public class ChunkTest
         }
     }
 
+    public static class OrderBean
+    {
+        int expensiveCalls = 0;
+        private CustomerBean customer = new CustomerBean();
+
+        public CustomerBean getCustomer()
+        {
+            return customer;
+        }
+
+        public BigDecimal getTotal()
+        {
+            return new BigDecimal("19.99");
+        }
+
+        public String getExpensive()
+        {
+            expensiveCalls++;
+            return "expensive";
+        }
+    }
+
+    public static class CustomerBean
+    {
+        public String getName()
+        {
+            return "Ada";
+        }
+
+        public boolean isVip()
+        {
+            return true;
+        }
+    }
+
     /**
      * for bean tests
      */
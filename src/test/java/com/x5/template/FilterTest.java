@@ -10,10 +10,12 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import com.x5.template.filters.BasicFilter;
+import com.x5.template.filters.CompiledRegex;
 import com.x5.template.filters.FilterArgs;
 import com.x5.template.filters.ObjectFilter;
 
@@ -319,6 +321,36 @@ public class FilterTest
         assertEquals("90",c.toString());
     }
 
+    @Test
+    public void testCalcAcrossThreads()
+        throws InterruptedException
+    {
+        // same cached expression and formatter, different values per thread
+        final Snippet shared = Snippet.getSnippet("{.calc(\"$x*$y+1\",\"#,##0.00\",$a,$b)} {$a|calc(*2)|sprintf(%.0f)}");
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t=0; t<threads.length; t++) {
+            final int a = t + 1;
+            threads[t] = new Thread() {
+                public void run()
+                {
+                    for (int i=0; i<200; i++) {
+                        Chunk c = new Chunk();
+                        c.append(shared);
+                        c.set("a", a);
+                        c.set("b", 1000);
+                        String expected = a + ",001.00 " + (a*2);
+                        if (!expected.equals(c.toString())) failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(0, failures.get());
+    }
+
     @Test
     public void testQuickCalc()
     {
@@ -881,6 +913,32 @@ public class FilterTest
         assertEquals(c.toString(),"Where is my Apples A-pples Bananas B-ananas Chaucer C-haucer?");
     }
 
+    @Test
+    public void testRegexCompiledOnce()
+    {
+        CompiledRegex a = CompiledRegex.compile("s/(\\w+)@(\\w+)/$2 at $1/g");
+        assertSame(a, CompiledRegex.compile("s/(\\w+)@(\\w+)/$2 at $1/g"));
+        assertEquals("x b at a y d at c", a.apply("x a@b y c@d"));
+        // bad group ref only shows up when the pattern matches
+        CompiledRegex bad = CompiledRegex.compile("s/a/$3/");
+        assertEquals("xyz", bad.apply("xyz"));
+        assertEquals("abc[REGEX s/a/$3/ Error: No group 3]", bad.apply("abc"));
+        // multi-digit refs fall back to fewer digits, like java's replaceAll
+        assertEquals("a0", CompiledRegex.compile("s/(a)/$10/").apply("a"));
+        assertEquals("A-BC", CompiledRegex.compile("s/(a)(.*)/\\U$1-\\U$2/i").apply("abc"));
+    }
+
+    @Test
+    public void testRegexCacheKeepsHotEntries()
+    {
+        CompiledRegex hot = CompiledRegex.compile("s/hot/cold/");
+        // flood the cache with one-off regexes, using the hot one throughout
+        for (int i=0; i<2000; i++) {
+            CompiledRegex.compile("s/once" + i + "/x/");
+            assertSame(hot, CompiledRegex.compile("s/hot/cold/"));
+        }
+    }
+
     @Test
     public void testRegexBraces()
     {
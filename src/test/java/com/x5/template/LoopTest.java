@@ -1,8 +1,13 @@
 package com.x5.template;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -476,6 +481,71 @@ public class LoopTest
         assertEquals("a-b-c-d", c.toString());
     }
 
+    @Test
+    public void testLoopOverIteratorIsStreamed()
+        throws java.io.IOException
+    {
+        Theme theme = new Theme();
+        Chunk c = theme.makeChunk();
+        final CountingIterator rows = new CountingIterator(1000);
+        final int[] pulledAtFirstWrite = new int[]{-1};
+        c.set("rows", rows);
+        c.append("{% loop in $rows as $row first_last='first,last' %}{% if $first %}[{% endif %}{$row}{% if $last %}]{% endif %}{% endloop %}");
+
+        java.io.StringWriter out = new java.io.StringWriter() {
+            public void write(String str, int off, int len)
+            {
+                if (pulledAtFirstWrite[0] < 0) pulledAtFirstWrite[0] = rows.pulled;
+                super.write(str, off, len);
+            }
+        };
+        c.render(out);
+
+        String output = out.toString();
+        assertTrue(output.startsWith("[0123"));
+        assertTrue(output.endsWith("998999]"));
+        // rows are wrapped as they render, not copied up front
+        assertTrue(pulledAtFirstWrite[0] <= 1);
+        assertEquals(1000, rows.pulled);
+    }
+
+    @Test
+    public void testLoopOverEmptyIterator()
+    {
+        Theme theme = new Theme();
+        Chunk c = theme.makeChunk();
+        c.set("rows", new CountingIterator(0));
+        c.append("{% loop in $rows as $row %}{$row}{% onEmpty %}EMPTY{% endloop %}");
+
+        assertEquals("EMPTY", c.toString());
+    }
+
+    private static class CountingIterator implements java.util.Iterator<String>
+    {
+        private final int size;
+        int pulled = 0;
+
+        CountingIterator(int size)
+        {
+            this.size = size;
+        }
+
+        public boolean hasNext()
+        {
+            return pulled < size;
+        }
+
+        public String next()
+        {
+            return Integer.toString(pulled++);
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     @Test
     public void testBadCloseTag()
     {
@@ -608,4 +678,59 @@ public class LoopTest
         String outputB = c.toString();
         assertEquals("EMPTY", outputB);
     }
+
+    @Test
+    public void testSharedLoopSnippetAcrossThreads()
+        throws InterruptedException
+    {
+        // one compiled loop, rendered from many threads at once
+        final Snippet shared = Snippet.getSnippet("{% loop in $list as $x divider=',' %}{$x}{% endloop %}|"
+            + "{.loop in $list as $y}{$y}{.divider}-{/divider}{/loop}");
+        final int threadCount = 8;
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+
+        for (int t=0; t<threadCount; t++) {
+            final String id = "t" + t;
+            threads[t] = new Thread() {
+                public void run()
+                {
+                    String[] list = new String[]{id+"a", id+"b", id+"c"};
+                    String expected = id+"a,"+id+"b,"+id+"c|"+id+"a-"+id+"b-"+id+"c";
+                    for (int i=0; i<500; i++) {
+                        Chunk c = new Chunk();
+                        c.append(shared);
+                        c.set("list", list);
+                        if (!expected.equals(c.toString())) failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    public void testLoopOverUsedUpStreamLogsError()
+        throws Exception
+    {
+        // java 8 streams, by reflection like the library itself
+        Method streamOf = Arrays.class.getMethod("stream", Object[].class);
+        Method iterator = Class.forName("java.util.stream.BaseStream").getMethod("iterator");
+
+        Chunk c = new Chunk();
+        c.append("{% loop in $list as $x %}{$x} {% onEmpty %}none{% endloop %}");
+        c.set("list", streamOf.invoke(null, (Object)new String[]{"a", "b"}));
+        assertEquals("a b ", c.toString());
+
+        ByteArrayOutputStream errLog = new ByteArrayOutputStream();
+        c.setErrorHandling(false, new PrintStream(errLog));
+        Object used = streamOf.invoke(null, (Object)new String[]{"a", "b"});
+        iterator.invoke(used);
+        c.set("list", used);
+        assertEquals("none", c.toString());
+        assertTrue(errLog.toString().contains("[Loop error: could not read stream: java.lang.IllegalStateException"));
+    }
 }
@@ -1,6 +1,28 @@
 package com.x5.template;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -58,6 +80,780 @@ public class ThemeTest
         assertEquals("order.chunk\n", chunk.toString());
     }
 
+    @Test
+    public void testTemplateCacheEvictsLeastRecentlyUsed()
+    {
+        // every put and get happens one tick later than the last
+        LRUTemplateCache cache = new LRUTemplateCache(16) {
+            private long clock = 0;
+
+            long now()
+            {
+                return ++clock;
+            }
+        };
+        for (int i=0; i<16; i++) {
+            cache.put("chtml.t" + i, Snippet.getSnippet("T" + i));
+        }
+        // t0 is now the most recently used, t1 and t2 the least
+        assertNotNull(cache.get("chtml.t0"));
+
+        cache.put("chtml.t16", Snippet.getSnippet("T16"));
+
+        // over the limit by one, evicts down to 15/16 of it
+        assertEquals(15, cache.size());
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals("T0", cache.get("chtml.t0").toString());
+        assertEquals("T16", cache.get("chtml.t16").toString());
+        assertNull(cache.get("chtml.t1"));
+        assertNull(cache.get("chtml.t2"));
+        for (int i=3; i<16; i++) {
+            assertNotNull(cache.get("chtml.t" + i));
+        }
+        assertEquals(16, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testTemplateCacheEvictsWhileBeingRead()
+        throws InterruptedException
+    {
+        // every get restamps its entry, so eviction sorts a moving target
+        final AtomicLong clock = new AtomicLong();
+        final LRUTemplateCache cache = new LRUTemplateCache(1000) {
+            long now()
+            {
+                return clock.incrementAndGet();
+            }
+        };
+        for (int i=0; i<1000; i++) {
+            cache.put("chtml.t" + i, Snippet.getSnippet("T" + i));
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] readers = new Thread[4];
+        for (int r=0; r<readers.length; r++) {
+            final int seed = r;
+            readers[r] = new Thread() {
+                public void run()
+                {
+                    int i = seed;
+                    while (!done.get()) {
+                        i = (i * 31 + 7) & 0xffff;
+                        cache.get("chtml.t" + (i % 3000));
+                    }
+                }
+            };
+            readers[r].start();
+        }
+
+        try {
+            for (int i=1000; i<3000; i++) {
+                cache.put("chtml.t" + i, Snippet.getSnippet("T" + i));
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) reader.join();
+        }
+
+        assertTrue(cache.size() <= 1000);
+        assertEquals("T2999", cache.get("chtml.t2999").toString());
+    }
+
+    @Test
+    public void testTemplateCachePutAllIsAtomic()
+    {
+        final LRUTemplateCache cache = new LRUTemplateCache();
+        cache.put("chtml.a", Snippet.getSnippet("A1"));
+
+        final List<String> midway = new ArrayList<String>();
+        final Map.Entry<String,Snippet> a = new AbstractMap.SimpleEntry<String,Snippet>("chtml.a", Snippet.getSnippet("A2"));
+        final Map.Entry<String,Snippet> b = new AbstractMap.SimpleEntry<String,Snippet>("chtml.b", Snippet.getSnippet("B2")) {
+            public Snippet getValue()
+            {
+                // a is in the map by now, but lookups still see the old one
+                midway.add(cache.get("chtml.a") + "," + cache.contains("chtml.b"));
+                return super.getValue();
+            }
+        };
+        Map<String,Snippet> batch = new AbstractMap<String,Snippet>() {
+            public Set<Map.Entry<String,Snippet>> entrySet()
+            {
+                Set<Map.Entry<String,Snippet>> entries = new LinkedHashSet<Map.Entry<String,Snippet>>();
+                entries.add(a);
+                entries.add(b);
+                return entries;
+            }
+        };
+        cache.putAll(batch, false);
+
+        assertEquals("A1,false", midway.get(0));
+        assertEquals("A2", cache.get("chtml.a").toString());
+        assertEquals("B2", cache.get("chtml.b").toString());
+    }
+
+    @Test
+    public void testTemplateCacheContainsIsNotALookup()
+    {
+        LRUTemplateCache cache = new LRUTemplateCache();
+        cache.put("chtml.x", Snippet.getSnippet("X"));
+        assertTrue(cache.contains("chtml.x"));
+        assertFalse(cache.contains("chtml.y"));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testTemplateCacheExpiry()
+        throws InterruptedException
+    {
+        LRUTemplateCache cache = new LRUTemplateCache();
+        cache.setTimeToLive(20);
+        cache.put("chtml.x", Snippet.getSnippet("X"));
+        assertNotNull(cache.get("chtml.x"));
+        Thread.sleep(40);
+        assertNull(cache.get("chtml.x"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testWatchForChanges()
+        throws Exception
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "watched.chtml");
+        writeFile(file, "Version 1\n{#sub}\nSub 1\n{#}\n");
+
+        TemplateSet templates = new TemplateSet(dir.getPath(), "chtml", 0);
+        templates.setWatchForChanges(true);
+        try {
+            assertEquals("Version 1", templates.getSnippet("watched").toString().trim());
+            assertEquals("Sub 1", templates.getSnippet("watched#sub").toString().trim());
+
+            writeFile(file, "Version 2\n{#sub}\nSub 2\n{#}\n");
+
+            // never expires on a timer, so this only passes if the watcher reloads
+            String latest = null;
+            for (int i=0; i<100; i++) {
+                latest = templates.getSnippet("watched#sub").toString().trim();
+                if (latest.equals("Sub 2")) break;
+                Thread.sleep(50);
+            }
+            assertEquals("Sub 2", latest);
+            assertEquals("Version 2", templates.getSnippet("watched").toString().trim());
+        } finally {
+            templates.close();
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testBlankLinesInSubtemplates()
+        throws Exception
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "blanks.chtml");
+        writeFile(file, "Top\n\nT2\n{#a}\nA1\n\n\nA2\n{#}\n\n{#b}\nB1\n\nB2\n{#}\n");
+
+        try {
+            TemplateSet templates = new TemplateSet(dir.getPath(), "chtml", 0);
+            assertEquals("Top\n\nT2\n\n", templates.getSnippet("blanks").toString());
+            assertEquals("A1\n\n\nA2\n", templates.getSnippet("blanks#a").toString());
+            assertEquals("B1\n\nB2\n", templates.getSnippet("blanks#b").toString());
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testWatcherWaitsForFileToSettle()
+    {
+        final long[] clock = new long[]{1000};
+        final List<File> fired = new ArrayList<File>();
+        TemplateWatcher.Listener listener = new TemplateWatcher.Listener() {
+            public void templateFileChanged(File file)
+            {
+                fired.add(file);
+            }
+        };
+        TemplateWatcher watcher = new TemplateWatcher(listener) {
+            void watch(File file) {}
+            void stop() {}
+            long now() { return clock[0]; }
+        };
+
+        File file = new File("watched.chtml");
+        watcher.changed(file);
+        clock[0] += 50;
+        // still being written
+        watcher.changed(file);
+        assertEquals(TemplateWatcher.SETTLE_MILLIS, watcher.firePending());
+        clock[0] += TemplateWatcher.SETTLE_MILLIS - 1;
+        assertEquals(1, watcher.firePending());
+        assertTrue(fired.isEmpty());
+
+        clock[0] += 1;
+        assertEquals(-1, watcher.firePending());
+        assertEquals(Arrays.asList(file), fired);
+        assertFalse(watcher.isOrphaned());
+    }
+
+    @Test
+    public void testStoppingWatcherWaitsForReload()
+        throws Exception
+    {
+        File file = File.createTempFile("chunk", ".chtml");
+        final CountDownLatch reloading = new CountDownLatch(1);
+        final AtomicBoolean release = new AtomicBoolean();
+        final AtomicBoolean finished = new AtomicBoolean();
+        TemplateWatcher.Listener listener = new TemplateWatcher.Listener() {
+            public void templateFileChanged(File changed)
+            {
+                reloading.countDown();
+                // a slow reload, deaf to interrupts
+                while (!release.get()) Thread.yield();
+                finished.set(true);
+            }
+        };
+        TemplateWatcher watcher = new PollingTemplateWatcher(listener, 10);
+        try {
+            watcher.watch(file);
+            file.setLastModified(file.lastModified() - 10000);
+            assertTrue(reloading.await(5, TimeUnit.SECONDS));
+
+            new Thread() {
+                public void run()
+                {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                    }
+                    release.set(true);
+                }
+            }.start();
+            watcher.stop();
+            assertTrue(finished.get());
+        } finally {
+            release.set(true);
+            watcher.stop();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testIncrementalReload()
+        throws Exception
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "watched.chtml");
+        writeFile(file, "Top {$x}\n{#a}\nA {$x}\n{#}\n{#b}\nB 1\n{#}\n");
+
+        TemplateSet templates = new TemplateSet(dir.getPath(), "chtml", 0);
+        templates.setWatchForChanges(true);
+        try {
+            Snippet top = templates.getSnippet("watched");
+            Snippet a = templates.getSnippet("watched#a");
+            Snippet b = templates.getSnippet("watched#b");
+
+            writeFile(file, "Top {$x}\n{#a}\nA {$x}\n{#}\n{#b}\nB 2\n{#}\n");
+
+            Snippet latest = null;
+            for (int i=0; i<100; i++) {
+                latest = templates.getSnippet("watched#b");
+                if (latest.toString().trim().equals("B 2")) break;
+                Thread.sleep(50);
+            }
+            assertEquals("B 2", latest.toString().trim());
+            assertNotSame(b, latest);
+            // the rest of the file was not parsed again
+            assertSame(top, templates.getSnippet("watched"));
+            assertSame(a, templates.getSnippet("watched#a"));
+        } finally {
+            templates.setWatchForChanges(false);
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testLoadFile()
+        throws Exception
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File small = new File(dir, "crlf.chtml");
+        writeFile(small, "Top\r\n\r\n{#sub}\r\nHello\r\n\r\n{$x}\r\n{#}\r\nEnd");
+        // big enough to be mapped rather than read
+        StringBuilder big = new StringBuilder("{#sub}\nbig{#}\n");
+        while (big.length() < (1 << 21)) big.append("0123456789abcdef\n");
+        File large = new File(dir, "large.chtml");
+        writeFile(large, big.toString());
+
+        TemplateSet templates = new TemplateSet(dir.getPath(), "chtml", 0);
+        try {
+            Chunk c = templates.makeChunk("crlf#sub");
+            c.set("x", "!");
+            assertEquals("Hello\n\n!\n", c.toString());
+            assertEquals("Top\n\nEnd\n", templates.makeChunk("crlf").toString());
+            assertEquals("big", templates.makeChunk("large#sub").toString());
+            assertEquals(big.length() - 14, templates.makeChunk("large").toString().length());
+        } finally {
+            small.delete();
+            large.delete();
+            dir.delete();
+        }
+    }
+
+    private void writeFile(File file, String contents)
+        throws IOException
+    {
+        // swap in a complete file, so the watcher never sees a half-written one
+        File tmp = new File(file.getPath() + ".tmp");
+        FileWriter out = new FileWriter(tmp);
+        out.write(contents);
+        out.close();
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+        }
+        // make sure the timestamp moves even on coarse-grained filesystems
+        file.setLastModified(System.currentTimeMillis() + 2000);
+    }
+
+    @Test
+    public void testPreload()
+    {
+        Theme theme = new Theme("themes","test/base,test/override");
+        theme.setDirtyInterval(10);
+        List<WarmUpReport> reports = theme.preload();
+
+        assertEquals(2, reports.size());
+        assertEquals("test/base", reports.get(0).getLayerName());
+        assertEquals(0, reports.get(0).getErrorCount());
+        assertEquals(6, reports.get(0).getFileCount());
+        assertTrue(reports.get(0).getTemplateCount() > reports.get(0).getFileCount());
+        assertEquals("test/override", reports.get(1).getLayerName());
+        assertTrue(reports.get(1).getTemplateCount() > 0);
+
+        Chunk c = theme.makeChunk("chunk_test");
+        assertEquals("Override Layer", c.toString().trim());
+    }
+
+    @Test
+    public void testWarmUpFillsCache()
+    {
+        TemplateSet templates = new TemplateSet("themes", "chtml", 10);
+        WarmUpReport report = templates.warmUp();
+        assertTrue(report.getTemplateCount() > 0);
+
+        TemplateCache cache = templates.getCache();
+        long misses = cache.getMissCount();
+        assertNotNull(templates.getSnippet("test/base/chunk_test"));
+        assertNotNull(templates.getSnippet("test/override/chunk_test#layer_test"));
+        assertEquals(misses, cache.getMissCount());
+    }
+
+    @Test
+    public void testWarmedTemplatesOutliveDefaultCacheTime()
+    {
+        final long[] clock = new long[]{System.currentTimeMillis()};
+        TemplateSet templates = new TemplateSet("themes", "chtml", 0);
+        templates.setCache(new LRUTemplateCache() {
+            long now() { return clock[0]; }
+        });
+        templates.warmUp();
+
+        TemplateCache cache = templates.getCache();
+        long misses = cache.getMissCount();
+        clock[0] += 60 * 60 * 1000;
+        assertNotNull(templates.getSnippet("test/base/chunk_test"));
+        assertEquals(misses, cache.getMissCount());
+
+        // an ordinary entry still expires
+        cache.put("scratch", Snippet.getSnippet("x"));
+        clock[0] += 60 * 60 * 1000;
+        assertNull(cache.get("scratch"));
+        assertNotNull(templates.getSnippet("test/base/chunk_test"));
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    @Test
+    public void testPrecompiledBundle()
+        throws IOException
+    {
+        TemplateSet fromSource = new TemplateSet("themes", "chtml", 10);
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        int written = fromSource.writeBundle(bundle);
+        assertTrue(written > 0);
+
+        TemplateSet precompiled = new TemplateSet("themes", "chtml", 10);
+        assertEquals(written, precompiled.loadBundle(new ByteArrayInputStream(bundle.toByteArray())));
+
+        String[] names = new String[]{"test/base/chunk_test", "test/base/macro_test#table_test",
+            "test/base/loop_test#whitespace_test", "test/base/alternator#loop_test", "test/override/layer_test#snippet"};
+        for (String name : names) {
+            assertEquals(fromSource.getSnippet(name).toString(), precompiled.getSnippet(name).toString());
+        }
+        // served entirely from the bundle
+        assertEquals(0, precompiled.getCache().getMissCount());
+
+        for (String name : new String[]{"test/base/macro_test#table_test", "test/base/loop_test#whitespace_test"}) {
+            Chunk a = fromSource.makeChunk(name);
+            Chunk b = precompiled.makeChunk(name);
+            a.set("list", new String[]{"Frodo","Bilbo","Sam"});
+            b.set("list", new String[]{"Frodo","Bilbo","Sam"});
+            assertEquals(a.toString(), b.toString());
+        }
+    }
+
+    @Test
+    public void testBundledTemplatesOutliveDefaultCacheTime()
+        throws IOException
+    {
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        new TemplateSet("themes", "chtml", 0).writeBundle(bundle);
+
+        final long[] clock = new long[]{System.currentTimeMillis()};
+        TemplateSet precompiled = new TemplateSet("themes", "chtml", 0);
+        precompiled.setCache(new LRUTemplateCache() {
+            long now() { return clock[0]; }
+        });
+        precompiled.loadBundle(new ByteArrayInputStream(bundle.toByteArray()));
+
+        clock[0] += 60 * 60 * 1000;
+        assertNotNull(precompiled.getSnippet("test/base/macro_test#table_test"));
+        assertEquals(0, precompiled.getCache().getMissCount());
+    }
+
+    @Test
+    public void testStaleBundleFallsBackToSource()
+        throws IOException
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "bundled.chtml");
+        writeFile(file, "Version 1\n");
+        try {
+            ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+            int written = new TemplateSet(dir.getPath(), "chtml", 10).writeBundle(bundle);
+
+            writeFile(file, "Version 2\n");
+            TemplateSet templates = new TemplateSet(dir.getPath(), "chtml", 10);
+            // everything but the edited file
+            assertEquals(written - 1, templates.loadBundle(new ByteArrayInputStream(bundle.toByteArray())));
+            assertEquals("Version 2", templates.getSnippet("bundled").toString().trim());
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testTemplateSetCacheStats()
+    {
+        TemplateSet templates = new TemplateSet("themes", "chtml", 1);
+        templates.setMaxCacheEntries(100);
+        templates.getSnippet("test/base/chunk_test");
+        templates.getSnippet("test/base/chunk_test");
+
+        TemplateCache cache = templates.getCache();
+        assertTrue(cache.getHitCount() >= 1);
+        assertTrue(cache.size() > 0);
+    }
+
+    @Test
+    public void testRenderMetrics()
+    {
+        Theme theme = new Theme("themes", "test/base");
+        RenderMetrics metrics = new RenderMetrics();
+        theme.setInstrumentation(metrics);
+
+        for (int i=0; i<2; i++) {
+            Chunk c = theme.makeChunk("loop_test#whitespace_test");
+            c.set("list", new String[]{"a","b","c"});
+            assertEquals("a<br/>b<br/>c<br/>", c.toString().replaceAll("\\s", ""));
+        }
+
+        assertTrue(metrics.getHotList(null, 10).size() > 0);
+        List<RenderMetrics.Stat> loops = metrics.getHotList(RenderMetrics.BLOCK, 10);
+        assertEquals(1, loops.size());
+        assertEquals(2, loops.get(0).getCount());
+        assertEquals(6, loops.get(0).getRows());
+        assertTrue(metrics.getHotList(RenderMetrics.CHUNK, 10).size() > 0);
+        assertTrue(metrics.getCacheMisses() > 0);
+        assertTrue(metrics.getCacheHits() > 0);
+    }
+
+    @Test
+    public void testRenderOnThousandsOfThreads()
+        throws Exception
+    {
+        // cold cache, so the first renders also race to load the files
+        final Theme theme = new Theme("themes", "test/base");
+        // built with two appends, merged lazily by whichever render is first
+        final Chunk footer = new Chunk();
+        footer.append("<p>{$title}");
+        footer.append("</p>");
+
+        final int tasks = 2000;
+        final String[] results = new String[tasks];
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService pool = virtualThreadsOrPool();
+        try {
+            for (int t=0; t<tasks; t++) {
+                final int id = t;
+                pool.execute(new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        Chunk page = theme.makeChunk("loop_test#whitespace_test");
+                        page.set("list", new String[]{"a" + id, "b" + id});
+                        Chunk wrapper = theme.makeChunk();
+                        wrapper.append("{$page}{$footer}");
+                        wrapper.set("page", page);
+                        wrapper.set("footer", footer);
+                        wrapper.set("title", "t" + id);
+                        results[id] = wrapper.toString();
+                    }
+                });
+            }
+            go.countDown();
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(pool.awaitTermination(60, TimeUnit.SECONDS));
+
+        for (int t=0; t<tasks; t++) {
+            assertEquals("a" + t + "<br/>b" + t + "<br/><p>t" + t + "</p>", results[t].replaceAll("\\s", ""));
+        }
+    }
+
+    @Test
+    public void testParallelRender()
+        throws Exception
+    {
+        Theme theme = new Theme("themes", "test/base");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        theme.setRenderExecutor(pool);
+        try {
+            // each widget only finishes if all three are running at once
+            final CountDownLatch allStarted = new CountDownLatch(3);
+            Chunk c = theme.makeChunk();
+            c.append("[{$a}|{% include chunk_test#hello_include %}|{$b}|{$c}]");
+            for (final String name : new String[]{"a","b","c"}) {
+                c.setAsync(name, new Callable<String>() {
+                    public String call()
+                        throws InterruptedException
+                    {
+                        allStarted.countDown();
+                        boolean together = allStarted.await(5, TimeUnit.SECONDS);
+                        return together ? name.toUpperCase() : "one-at-a-time";
+                    }
+                });
+            }
+            assertEquals("[A|HelloInclude!|B|C]", c.toString().replaceAll("\\s", ""));
+        } finally {
+            pool.shutdown();
+        }
+
+        // without an executor, async values are simply awaited in turn
+        FutureTask<String> ready = new FutureTask<String>(
+            new Callable<String>() {
+                public String call()
+                {
+                    return "done";
+                }
+            });
+        ready.run();
+        Chunk plain = new Chunk();
+        plain.append("{$x|upper}");
+        plain.setAsync("x", ready);
+        assertEquals("DONE", plain.toString());
+
+        // a future that never completes gives up after the timeout
+        FutureTask<String> never = new FutureTask<String>(new Callable<String>() {
+            public String call()
+            {
+                return "never";
+            }
+        });
+        Chunk stuck = new Chunk();
+        stuck.append("[{$x}]");
+        stuck.setAsync("x", never, 50);
+        assertTrue(stuck.toString().contains("gave up waiting for value of tag 'x'"));
+    }
+
+    public static class CallableBean implements Callable<String>
+    {
+        public String getName()
+        {
+            return "bean";
+        }
+
+        public String call()
+        {
+            return "called";
+        }
+    }
+
+    @Test
+    public void testCallableBeanIsNotAsync()
+    {
+        // only setAsync() values are awaited, anything else is data
+        Chunk c = new Chunk();
+        c.append("{$x.name}");
+        c.set("x", new CallableBean());
+        assertEquals("bean", c.toString());
+    }
+
+    @Test
+    public void testSnippetCache()
+    {
+        Theme theme = new Theme("themes", "test/base");
+        SnippetCache cache = theme.getSnippetCache();
+        assertNotNull(cache);
+        assertNotSame(cache, new Theme("themes", "test/base").getSnippetCache());
+
+        for (int i=0; i<3; i++) {
+            Chunk c = theme.makeChunk();
+            c.append("{$greeting}");
+            c.set("greeting", "Hello {$name}");
+            c.set("name", "n" + i);
+            assertEquals("Hello n" + i, c.toString());
+        }
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+
+        // same text, different origin: parsed separately
+        Snippet a = cache.get("{$x}", "one");
+        Snippet b = cache.get("{$x}", "two");
+        assertNotSame(a, b);
+        assertSame(a, cache.get("{$x}", "one"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testSnippetCacheEviction()
+    {
+        Executor inline = new Executor() {
+            public void execute(Runnable r)
+            {
+                r.run();
+            }
+        };
+        SnippetCache cache = new SnippetCache(2000, inline);
+        for (int i=0; i<200; i++) {
+            cache.get("{$tag" + i + "} and some padding to make it weigh more", null);
+            assertTrue(cache.getWeight() <= 2000);
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.size() < 200);
+        assertEquals(0.0, cache.getHitRatio(), 0.0);
+
+        // no cache at all
+        Theme theme = new Theme("themes", "test/base");
+        theme.setSnippetCache(null);
+        Chunk c = theme.makeChunk();
+        c.append("{$greeting}");
+        c.set("greeting", "Hi {$name}");
+        c.set("name", "Bo");
+        assertEquals("Hi Bo", c.toString());
+    }
+
+    @Test
+    public void testSnippetCacheWeightSurvivesClear()
+        throws InterruptedException
+    {
+        final SnippetCache cache = new SnippetCache(1L << 20, null);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean negative = new AtomicBoolean();
+        Thread[] readers = new Thread[4];
+        for (int r=0; r<readers.length; r++) {
+            final int seed = r;
+            readers[r] = new Thread() {
+                public void run()
+                {
+                    int i = seed;
+                    while (!done.get()) {
+                        i = (i * 31 + 7) & 0xfff;
+                        cache.get("{$tag" + i + "}", null);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+
+        try {
+            for (int i=0; i<2000; i++) {
+                cache.clear();
+                if (cache.getWeight() < 0) negative.set(true);
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) reader.join();
+        }
+
+        assertFalse(negative.get());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    // virtual threads on Java 21+, otherwise a plain pool
+    private static ExecutorService virtualThreadsOrPool()
+    {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (Exception e) {
+            return Executors.newFixedThreadPool(64);
+        }
+    }
+
+    @Test
+    public void testOutputSizeEstimate()
+    {
+        Theme theme = new Theme("themes", "test/base");
+        RenderMetrics metrics = new RenderMetrics();
+        theme.setInstrumentation(metrics);
+
+        String[] big = new String[500];
+        Arrays.fill(big, "xyz");
+        Chunk c = theme.makeChunk("loop_test#whitespace_test");
+        c.set("list", big);
+        String output = c.toString();
+        assertEquals(output, c.toString());
+
+        String origin = null;
+        for (String key : metrics.getOutputSizeEstimates().keySet()) {
+            if (key.indexOf("loop_test") > -1) origin = key;
+        }
+        assertNotNull(origin);
+        assertEquals(output.length(), metrics.getOutputSizeEstimate(origin));
+
+        // smaller output only nudges the estimate down
+        c.set("list", new String[]{"a"});
+        c.toString();
+        int estimate = metrics.getOutputSizeEstimate(origin);
+        assertTrue(estimate < output.length());
+        assertTrue(estimate > output.length() / 2);
+    }
+
     @Test
     public void testOtherExtensions()
     {